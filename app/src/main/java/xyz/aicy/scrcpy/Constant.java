@@ -6,6 +6,7 @@ public class Constant {
     public static final String CONTROL_NO = "no_control";
     public static final String CONTROL_SCREEN_OFF = "control_screen_off";
     public static final String CONTROL_AUDIO = "control_audio";
+    public static final String CONTROL_LOW_LATENCY = "control_low_latency";
     public static final String CONTROL_AUTO_RECONNECT = "control_auto_reconnect";
     public static final String CONTROL_REMOTE_ADDR = "control_remote_addr";
     public static final String CONTROL_CAPTURE_KEYS = "control_capture_keys";  // 捕获物理按键发送到远程设备
@@ -110,8 +110,9 @@ public class MainActivity extends Activity implements Scrcpy.ServiceCallbacks, S
                     Progress.showDialog(MainActivity.this, getString(R.string.please_wait), "", false, MainActivity.this::cancelConnection);
                 }
                 boolean audioEnabled = PreUtils.get(context, Constant.CONTROL_AUDIO, true);
+                boolean lowLatency = PreUtils.get(context, Constant.CONTROL_LOW_LATENCY, true);
                 scrcpy.start(surface, Scrcpy.LOCAL_IP + ":" + Scrcpy.LOCAL_FORWART_PORT,
-                        screenHeight, screenWidth, delayControl, audioEnabled);
+                        screenHeight, screenWidth, delayControl, audioEnabled, lowLatency);
                 ThreadUtils.workPost(() -> {
                     int count = 50;
                     while (count > 0 && !scrcpy.check_socket_connection() && isConnecting) {
@@ -328,6 +329,7 @@ public class MainActivity extends Activity implements Scrcpy.ServiceCallbacks, S
         final Switch aSwitch1 = findViewById(R.id.switch1);
         final Switch switchScreenOff = findViewById(R.id.switch_screen_off);
         final Switch switchAudioForward = findViewById(R.id.switch_audio_forward);
+        final Switch switchLowLatency = findViewById(R.id.switch_low_latency);
         String historySpServerAdr = PreUtils.get(context, Constant.CONTROL_REMOTE_ADDR, "");
         if (TextUtils.isEmpty(historySpServerAdr)) {
             String[] historyList = getHistoryList();
@@ -341,6 +343,7 @@ public class MainActivity extends Activity implements Scrcpy.ServiceCallbacks, S
         aSwitch1.setChecked(PreUtils.get(context, Constant.CONTROL_NAV, false));
         switchScreenOff.setChecked(PreUtils.get(context, Constant.CONTROL_SCREEN_OFF, false));
         switchAudioForward.setChecked(PreUtils.get(context, Constant.CONTROL_AUDIO, true));
+        switchLowLatency.setChecked(PreUtils.get(context, Constant.CONTROL_LOW_LATENCY, true));
         setSpinner(R.array.options_resolution_values, R.id.spinner_video_resolution, Constant.PREFERENCE_SPINNER_RESOLUTION);
         setSpinner(R.array.options_bitrate_keys, R.id.spinner_video_bitrate, Constant.PREFERENCE_SPINNER_BITRATE);
         setSpinner(R.array.options_delay_keys, R.id.delay_control_spinner, Constant.PREFERENCE_SPINNER_DELAY);
@@ -598,10 +601,13 @@ public class MainActivity extends Activity implements Scrcpy.ServiceCallbacks, S
         boolean screenOff = switchScreenOff.isChecked();
         final Switch switchAudioForward = findViewById(R.id.switch_audio_forward);
         boolean audioForward = switchAudioForward.isChecked();
+        final Switch switchLowLatency = findViewById(R.id.switch_low_latency);
+        boolean lowLatency = switchLowLatency.isChecked();
         PreUtils.put(context, Constant.CONTROL_NO, no_control);
         PreUtils.put(context, Constant.CONTROL_NAV, nav);
         PreUtils.put(context, Constant.CONTROL_SCREEN_OFF, screenOff);
         PreUtils.put(context, Constant.CONTROL_AUDIO, audioForward);
+        PreUtils.put(context, Constant.CONTROL_LOW_LATENCY, lowLatency);
 
         final String[] videoResolutions = getResources().getStringArray(R.array.options_resolution_values)[videoResolutionSpinner.getSelectedItemPosition()].split("x");
         screenHeight = Integer.parseInt(videoResolutions[0]);
@@ -4,6 +4,7 @@ import android.app.Service;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.MotionEvent;
@@ -11,22 +12,26 @@ import android.view.Surface;
 
 import xyz.aicy.scrcpy.decoder.AudioDecoder;
 import xyz.aicy.scrcpy.decoder.VideoDecoder;
-import xyz.aicy.scrcpy.model.AudioPacket;
-import xyz.aicy.scrcpy.model.ByteUtils;
-import xyz.aicy.scrcpy.model.MediaPacket;
-import xyz.aicy.scrcpy.model.VideoPacket;
+import xyz.aicy.scrcpy.net.BufferPool;
+import xyz.aicy.scrcpy.net.ControlEventRing;
+import xyz.aicy.scrcpy.net.PacketBuffer;
+import xyz.aicy.scrcpy.net.PlayoutDeadline;
+import xyz.aicy.scrcpy.net.StreamConnection;
+import xyz.aicy.scrcpy.protocol.ControlMessage;
+import xyz.aicy.scrcpy.protocol.Handshake;
+import xyz.aicy.scrcpy.protocol.MediaPacket;
+import xyz.aicy.scrcpy.protocol.StreamInfo;
+import xyz.aicy.scrcpy.protocol.VideoCodec;
+import xyz.aicy.scrcpy.protocol.VideoPacket;
+import xyz.aicy.scrcpy.stats.FeedbackReporter;
+import xyz.aicy.scrcpy.stats.StreamStats;
 import xyz.aicy.scrcpy.utils.Util;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ConnectException;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 
@@ -45,12 +50,20 @@ public class Scrcpy extends Service {
     private int screenWidth;
     private int screenHeight;
 
-    private final Queue<byte[]> event = new LinkedList<byte[]>();
-    // private byte[] event = null;
+    // 控制事件环形队列：UI 线程写入，网络线程批量发送
+    private final ControlEventRing controlEvents = new ControlEventRing(8192);
+    // 多点 MOVE 的 (x, y, pointerId)，仅在 UI 线程使用
+    private final int[] movePointers = new int[ControlMessage.MAX_POINTERS * ControlMessage.POINTER_INTS];
+    // 需要向服务端请求关键帧，任何线程都可以设置，由网络线程编码发送（控制事件环形队列只能由 UI 线程写入）
+    private final AtomicBoolean keyFrameWanted = new AtomicBoolean(false);
     private VideoDecoder videoDecoder;
     private AudioDecoder audioDecoder;
     private boolean audioEnabled = true;
+    // 低延迟模式：编解码器实时优先级、无 B 帧、最小缓冲
+    private boolean lowLatency = true;
     private final AtomicBoolean updateAvailable = new AtomicBoolean(false);
+    // 网络线程在此等待新的 Surface，由 signalSurfaceUpdate() 唤醒
+    private final Object surfaceLock = new Object();
     private final IBinder mBinder = new MyServiceBinder();
     private boolean first_time = true;
 
@@ -58,11 +71,24 @@ public class Scrcpy extends Service {
     private ServiceCallbacks serviceCallbacks;
     private final int[] remote_dev_resolution = new int[2];
     private boolean socket_status = false;
+    private static final int DEFAULT_MAX_FPS = 60;
+    // 握手协商出的协议版本，旧版服务端为 Handshake.VERSION_LEGACY
+    private volatile int protocolVersion = Handshake.VERSION_LEGACY;
+    // 服务端选择的视频编码，旧版服务端为 H.264
+    private volatile VideoCodec videoCodec = VideoCodec.H264;
     private volatile boolean backgroundMode = false;
     private static final int BACKGROUND_SLEEP_MS = 30;
     private volatile boolean pendingForegroundRefresh = false;
     private volatile VideoPacket.StreamSettings cachedStreamSettings = null;
-    private volatile byte[] cachedKeyFrame = null;
+    private volatile PacketBuffer cachedKeyFrame = null;
+    // 接收数据包的缓冲池，数据包拷贝进解码器后归还
+    private final BufferPool bufferPool = new BufferPool();
+    // 当前连接，其他线程通过它唤醒网络线程
+    private volatile StreamConnection connection;
+    // 丢包统计：服务端发送、客户端接收、客户端丢弃、解码队列丢弃
+    private final StreamStats streamStats = new StreamStats();
+    // 定期向服务端报告接收情况，服务端据此调整码率
+    private final FeedbackReporter feedbackReporter = new FeedbackReporter(streamStats);
     private volatile boolean suspendStream = false;
     private static final int SUSPEND_SLEEP_MS = 50;
 
@@ -86,18 +112,18 @@ public class Scrcpy extends Service {
             audioDecoder.start();
         }
 
-
-        updateAvailable.set(true);
-
+        signalSurfaceUpdate();
     }
 
-    public void start(Surface surface, String serverAdr, int screenHeight, int screenWidth, int delay, boolean audioEnabled) {
+    public void start(Surface surface, String serverAdr, int screenHeight, int screenWidth, int delay, boolean audioEnabled,
+                      boolean lowLatency) {
         this.audioEnabled = audioEnabled;
-        this.videoDecoder = new VideoDecoder();
+        this.lowLatency = lowLatency;
+        this.videoDecoder = createVideoDecoder();
         videoDecoder.start();
 
         if (audioEnabled) {
-            this.audioDecoder = new AudioDecoder();
+            this.audioDecoder = new AudioDecoder(streamStats.audio);
             audioDecoder.start();
         } else {
             this.audioDecoder = null;
@@ -136,7 +162,7 @@ public class Scrcpy extends Service {
         if (audioDecoder != null) {
             audioDecoder.start();
         }
-        updateAvailable.set(true);
+        signalSurfaceUpdate();
     }
 
     public void setBackgroundMode(boolean enable) {
@@ -146,18 +172,53 @@ public class Scrcpy extends Service {
         } else {
             resume();
             pendingForegroundRefresh = true;
-            updateAvailable.set(true);
+            signalSurfaceUpdate();
+            wakeupConnection();
         }
     }
 
     public void setStreamSuspended(boolean enable) {
         suspendStream = enable;
+        wakeupConnection();
+    }
+
+    /**
+     * 通知网络线程下一个视频包之前需要重新配置解码器（新的 Surface 或解码器重启）
+     */
+    private void signalSurfaceUpdate() {
+        synchronized (surfaceLock) {
+            updateAvailable.set(true);
+            surfaceLock.notifyAll();
+        }
+    }
+
+    /**
+     * 等待界面提供新的 Surface（旋转后重建），服务停止时返回 false
+     */
+    private boolean awaitSurfaceUpdate() throws InterruptedException {
+        synchronized (surfaceLock) {
+            while (!updateAvailable.get() && LetServceRunning.get()) {
+                surfaceLock.wait();
+            }
+        }
+        return updateAvailable.get();
+    }
+
+    private void wakeupConnection() {
+        StreamConnection current = connection;
+        if (current != null) {
+            current.wakeup();
+        }
     }
 
     public void StopService() {
         LetServceRunning.set(false);
+        synchronized (surfaceLock) {
+            surfaceLock.notifyAll();
+        }
+        wakeupConnection();
         if (videoDecoder != null) {
-            videoDecoder.stop();
+            videoDecoder.release();
         }
         if (audioDecoder != null) {
             audioDecoder.stop();
@@ -192,15 +253,15 @@ public class Scrcpy extends Service {
 
         switch (actionMasked) {  // 使用 actionMasked 进行判断，而不是 getAction()
             case MotionEvent.ACTION_MOVE: // 所有手指移动
-                // 遍历所有触摸点，使用 pointerId 和 pointerIndex 来获取所有触摸点的信息
-                for (int i = 0; i < touch_event.getPointerCount(); i++) {
-                    int currentPointerId = touch_event.getPointerId(i);
-                    int x = (int) touch_event.getX(i);
-                    int y = (int) touch_event.getY(i);
-                    // 处理每一个触摸点的x, y坐标
-                    // Log.e("Scrcpy", "触摸移动，index : " + i + " ,x : " + x + " , y: " + y + " ,currentPointerId: " + currentPointerId);
-                    sendTouchEvent(MotionEvent.ACTION_MOVE, touch_event.getButtonState(), (int) (x * realW / displayW), (int) (y * realH / displayH), currentPointerId);
+                // 所有触摸点合并为一条消息，服务端注入一个 MotionEvent
+                int pointerCount = Math.min(touch_event.getPointerCount(), ControlMessage.MAX_POINTERS);
+                for (int i = 0; i < pointerCount; i++) {
+                    int offset = i * ControlMessage.POINTER_INTS;
+                    movePointers[offset] = (int) (touch_event.getX(i) * realW / displayW);
+                    movePointers[offset + 1] = (int) (touch_event.getY(i) * realH / displayH);
+                    movePointers[offset + 2] = touch_event.getPointerId(i);
                 }
+                sendMultiMoveEvent(touch_event.getButtonState(), pointerCount, movePointers);
                 break;
             case MotionEvent.ACTION_POINTER_UP: // 中间手指抬起
             case MotionEvent.ACTION_UP: // 最后一个手指抬起
@@ -217,20 +278,42 @@ public class Scrcpy extends Service {
 
     private void sendTouchEvent(int action, int buttonState, int x, int y, int pointerId){
         // 为支持多点触控，将 pointid 添加到最末尾
-        // TODO : 后续需要改造 event 传输方式
-        int[] buf = new int[]{action, buttonState, x, y, pointerId};
-        final byte[] array = new byte[buf.length * 4]; // https://stackoverflow.com/questions/2183240/java-integer-to-byte-array
-        for (int j = 0; j < buf.length; j++) {
-            final int c = buf[j];
-            array[j * 4] = (byte) ((c & 0xFF000000) >> 24);
-            array[j * 4 + 1] = (byte) ((c & 0xFF0000) >> 16);
-            array[j * 4 + 2] = (byte) ((c & 0xFF00) >> 8);
-            array[j * 4 + 3] = (byte) (c & 0xFF);
+        offerControlEvent(action, buttonState, x, y, pointerId);
+    }
+
+    private void sendMultiMoveEvent(int buttonState, int pointerCount, int[] pointers) {
+        if (!LetServceRunning.get()) {
+            return;
+        }
+        if (!Handshake.acceptsMultiMove(protocolVersion)) {
+            // 旧版服务端不认识合并的移动消息，仍然每个触摸点发送一条
+            for (int i = 0; i < pointerCount; i++) {
+                int offset = i * ControlMessage.POINTER_INTS;
+                offerControlEvent(MotionEvent.ACTION_MOVE, buttonState, pointers[offset], pointers[offset + 1], pointers[offset + 2]);
+            }
+            return;
         }
-        if (LetServceRunning.get()) {
-            event.offer(array);
+        if (!controlEvents.offerMultiMove(buttonState, pointerCount, pointers)) {
+            Log.w("Scrcpy", "Control event queue full, dropping move event");
         }
-        // event = array;
+        wakeupConnection();
+    }
+
+    private void offerControlEvent(int i0, int i1, int i2, int i3, int i4) {
+        if (!LetServceRunning.get()) {
+            return;
+        }
+        if (!controlEvents.offer(i0, i1, i2, i3, i4)) {
+            Log.w("Scrcpy", "Control event queue full, dropping event " + i0);
+        }
+        wakeupConnection();
+    }
+
+    /**
+     * 当前会话的丢包统计，用于区分网络卡顿和解码器积压
+     */
+    public StreamStats getStreamStats() {
+        return streamStats;
     }
 
     public int[] get_remote_device_resolution() {
@@ -257,20 +340,7 @@ public class Scrcpy extends Service {
         // buffer[0]=keycode, buffer[1]=action|repeat组合, buffer[2]=0, buffer[3]=0, buffer[4]=0
         // action 存在低8位，repeat 存在高8位
         int actionRepeat = (repeat << 8) | (action & 0xFF);
-        int[] buf = new int[]{keycode, actionRepeat, 0, 0, 0};
-
-        final byte[] array = new byte[buf.length * 4];   // https://stackoverflow.com/questions/2183240/java-integer-to-byte-array
-        for (int j = 0; j < buf.length; j++) {
-            final int c = buf[j];
-            array[j * 4] = (byte) ((c & 0xFF000000) >> 24);
-            array[j * 4 + 1] = (byte) ((c & 0xFF0000) >> 16);
-            array[j * 4 + 2] = (byte) ((c & 0xFF00) >> 8);
-            array[j * 4 + 3] = (byte) (c & 0xFF);
-        }
-        if (LetServceRunning.get()) {
-            event.offer(array);
-            // event = array;
-        }
+        offerControlEvent(keycode, actionRepeat, 0, 0, 0);
     }
 
     /**
@@ -310,21 +380,60 @@ public class Scrcpy extends Service {
         sendKeyevent(1002);
     }
 
+    /**
+     * 请求服务端尽快发送关键帧（解码器重建或出错后需要），旧版服务端不支持
+     */
+    public void requestKeyFrame() {
+        if (!Handshake.acceptsKeyFrameRequests(protocolVersion)) {
+            return;
+        }
+        if (LetServceRunning.get() && !keyFrameWanted.getAndSet(true)) {
+            Log.d("Scrcpy", "Requesting key frame");
+            wakeupConnection();
+        }
+    }
+
+    private VideoDecoder createVideoDecoder() {
+        final VideoDecoder decoder = new VideoDecoder(streamStats.video, lowLatency);
+        decoder.setErrorListener(new VideoDecoder.ErrorListener() {
+            @Override
+            public void onDecoderError(Exception e) {
+                // 重启解码器，收到下一个视频包时重新配置，并请求关键帧
+                decoder.stop();
+                decoder.start();
+                signalSurfaceUpdate();
+                requestKeyFrame();
+            }
+        });
+        // 丢帧后直到下一个关键帧的帧都无法解码，立即请求关键帧
+        // 在网络线程上调用，请求在下一轮循环的 sendControl 之前发出，无需唤醒；超时重发时只是再次设置标志
+        decoder.setKeyFrameListener(new VideoDecoder.KeyFrameListener() {
+            @Override
+            public void onKeyFrameNeeded() {
+                if (Handshake.acceptsKeyFrameRequests(protocolVersion)) {
+                    keyFrameWanted.set(true);
+                }
+            }
+        });
+        return decoder;
+    }
+
     private void startConnection(String ip, int port, int delay) {
 
-        videoDecoder = new VideoDecoder();
+        // start() 创建的解码器被替换，释放其解码器实例
+        if (videoDecoder != null) {
+            videoDecoder.release();
+        }
+        videoDecoder = createVideoDecoder();
         videoDecoder.start();
         if (audioEnabled) {
-            audioDecoder = new AudioDecoder();
+            audioDecoder = new AudioDecoder(streamStats.audio);
             audioDecoder.start();
         } else {
             audioDecoder = null;
         }
 
-        DataInputStream mediaInputStream = null;
-        DataOutputStream controlOutputStream = null;
-        Socket mediaSocket = null;
-        Socket controlSocket = null;
+        StreamConnection connection = null;
         boolean firstConnect = true;
         int attempts = 50;
         int controlPort = port + 1;
@@ -332,10 +441,9 @@ public class Scrcpy extends Service {
         while (attempts > 0) {
             try {
                 Log.e("Scrcpy", "Connecting to " + LOCAL_IP);
-                mediaSocket = new Socket();
-                mediaSocket.connect(new InetSocketAddress(ip, port), 5000); // 设置连接超时5000毫秒
-                controlSocket = new Socket();
-                controlSocket.connect(new InetSocketAddress(ip, controlPort), 5000); // 控制通道
+                // 画面通道和控制通道，连接超时5000毫秒
+                connection = StreamConnection.open(ip, port, controlPort, 5000, bufferPool);
+                this.connection = connection;
                 if (!LetServceRunning.get()) {
                     return;
                 }
@@ -349,37 +457,26 @@ public class Scrcpy extends Service {
                     attempts = 5;
                 }
                 
-                // 设置 socket 读取超时，替代不可靠的 available() 轮询
+                // 握手：声明客户端的解码能力，服务端回复选择的流参数（旧版服务端只回复分辨率）
+                connection.sendRaw(buildClientHello(delay));
                 // 服务端启动可能需要一些时间，设置较长的超时
-                mediaSocket.setSoTimeout(5000);  // 5秒读取超时
-                
-                mediaInputStream = new DataInputStream(mediaSocket.getInputStream());
-                controlOutputStream = new DataOutputStream(controlSocket.getOutputStream());
-                
-                // 直接阻塞读取分辨率数据，不再使用 available() 轮询
-                // 服务端发送 8 字节 (2个int)，但为了兼容性读取16字节
-                byte[] buf = new byte[16];
-                int bytesRead = 0;
-                int toRead = 8;  // 服务端实际发送 8 字节（宽度和高度各4字节）
-                while (bytesRead < toRead) {
-                    int n = mediaInputStream.read(buf, bytesRead, toRead - bytesRead);
-                    if (n == -1) {
-                        throw new IOException("Connection closed while reading resolution");
-                    }
-                    bytesRead += n;
-                }
-                Log.d("Scrcpy", "Received resolution data: " + bytesRead + " bytes");
-                
-                // 恢复无限等待模式，后续数据流需要持续读取
-                mediaSocket.setSoTimeout(0);
-                
+                Handshake.ServerHello serverHello = connection.readServerHello(5000);  // 5秒读取超时
+                protocolVersion = Handshake.negotiateVersion(serverHello.version);
+                connection.setProtocolVersion(protocolVersion);
+                videoCodec = VideoCodec.fromMask(serverHello.videoCodec);
+                // 在第一个 CONFIG 到达之前于后台创建解码器
+                videoDecoder.prepare(videoCodec);
+                // 上一个会话缓存的参数集可能属于另一种编码
+                cachedStreamSettings = null;
+                streamStats.reset();
+                feedbackReporter.reset(SystemClock.uptimeMillis());
+                Log.d("Scrcpy", "Server hello: version=" + serverHello.version + " device=" + serverHello.deviceWidth
+                        + "x" + serverHello.deviceHeight + " video=" + serverHello.videoWidth + "x" + serverHello.videoHeight
+                        + " codec=" + videoCodec + " fps=" + serverHello.maxFps + " audio=" + serverHello.audioCodec);
+
                 attempts = 0;
-                for (int i = 0; i < remote_dev_resolution.length; i++) {
-                    remote_dev_resolution[i] = (((int) (buf[i * 4]) << 24) & 0xFF000000) |
-                            (((int) (buf[i * 4 + 1]) << 16) & 0xFF0000) |
-                            (((int) (buf[i * 4 + 2]) << 8) & 0xFF00) |
-                            ((int) (buf[i * 4 + 3]) & 0xFF);
-                }
+                remote_dev_resolution[0] = serverHello.deviceWidth;
+                remote_dev_resolution[1] = serverHello.deviceHeight;
                 if (remote_dev_resolution[0] > remote_dev_resolution[1]) {
                     first_time = false;
                     int i = remote_dev_resolution[0];
@@ -388,7 +485,7 @@ public class Scrcpy extends Service {
                 }
                 socket_status = true;
 
-                loop(mediaInputStream, controlOutputStream, delay);
+                loop(connection, delay);
 
             } catch (Exception e) {
                 e.printStackTrace();
@@ -430,36 +527,22 @@ public class Scrcpy extends Service {
                 Log.e("Scrcpy", e.getMessage() != null ? e.getMessage() : e.toString());
                 Log.e("Scrcpy", "attempts--");
             } finally {
-                if (controlSocket != null) {
-                    try {
-                        controlSocket.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-                if (mediaSocket != null) {
-                    try {
-                        mediaSocket.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-                if (controlOutputStream != null) {
-                    try {
-                        controlOutputStream.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-                if (mediaInputStream != null) {
-                    try {
-                        mediaInputStream.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+                this.connection = null;
+                if (connection != null) {
+                    connection.close();
+                    connection = null;
+                    Log.i("Scrcpy", "Stream stats: " + streamStats);
                 }
                 // 清除事件队列
-                event.clear();
+                controlEvents.clear();
+                keyFrameWanted.set(false);
+                // 释放缓存的关键帧，会话结束后空闲缓冲区交给 GC
+                PacketBuffer keyFrame = cachedKeyFrame;
+                cachedKeyFrame = null;
+                if (keyFrame != null) {
+                    keyFrame.release();
+                }
+                bufferPool.clear();
 
             }
 
@@ -467,204 +550,189 @@ public class Scrcpy extends Service {
 
     }
 
-    private void loop(DataInputStream mediaInputStream, DataOutputStream controlOutputStream, int delay) throws InterruptedException {
+    private ByteBuffer buildClientHello(int delay) {
+        Handshake.ClientHello hello = new Handshake.ClientHello();
+        // 解码器需要时会主动请求关键帧，服务端可以用帧内刷新代替周期性关键帧
+        hello.flags = Handshake.FLAG_KEY_FRAME_REQUEST | (lowLatency ? Handshake.FLAG_LOW_LATENCY : 0);
+        hello.videoCodecs = VideoDecoder.getSupportedCodecs();
+        hello.audioCodecs = audioEnabled ? Handshake.AUDIO_CODEC_AAC : 0;
+        hello.maxSize = Math.max(screenWidth, screenHeight);
+        hello.maxFps = DEFAULT_MAX_FPS;
+        hello.latencyTargetMs = delay;
+        ByteBuffer buffer = ByteBuffer.allocate(Handshake.PREAMBLE_SIZE + Handshake.ClientHello.BODY_SIZE);
+        hello.write(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void loop(StreamConnection connection, int delay) throws IOException, InterruptedException {
         VideoPacket.StreamSettings streamSettings = null;
-        byte[] packetSize = new byte[4];
+        // 当前视频流的方向，以及下一个 CONFIG 是否只是同方向的尺寸变化（服务端画质阶梯）
+        boolean landscape = false;
+        boolean resizeOnly = false;
 
-        // 由于网络传输存在延迟，丢弃数据包计数
-        long lastVideoOffset = 0;
-        long lastAudioOffset = 0;
-        int videoPassCount = 0;
-        int audioPassCount = 0;
+        // 自适应播放截止时间：根据网络抖动调整目标延迟，不缓存数据包，超时的数据包会被丢弃，丢弃数量记录在 streamStats 中
+        // delay 为 0（自动）时使用默认上限，否则作为目标延迟的上限
+        int floorMs = lowLatency ? PlayoutDeadline.LOW_LATENCY_FLOOR_MS : PlayoutDeadline.FLOOR_MS;
+        int maxDelayMs = delay > 0 ? delay : PlayoutDeadline.DEFAULT_MAX_DELAY_MS;
+        PlayoutDeadline videoDeadline = new PlayoutDeadline(floorMs, maxDelayMs);
+        PlayoutDeadline audioDeadline = new PlayoutDeadline(floorMs, maxDelayMs);
 
         while (LetServceRunning.get()) {
-            boolean waitEvent = true;
-            try {
-                if (!backgroundMode && pendingForegroundRefresh) {
-                    if (surface == null || !surface.isValid()) {
-                        try {
-                            Thread.sleep(5);
-                        } catch (InterruptedException ignore) {
-                        }
-                        continue;
-                    }
-                    if (cachedStreamSettings != null) {
-                        streamSettings = cachedStreamSettings;
-                        videoDecoder.configure(surface, screenWidth, screenHeight,
-                                streamSettings.sps, streamSettings.pps);
-                        if (cachedKeyFrame != null) {
-                            VideoPacket key = VideoPacket.readHead(cachedKeyFrame);
-                            videoDecoder.decodeSample(cachedKeyFrame, VideoPacket.getHeadLen(),
-                                    cachedKeyFrame.length - VideoPacket.getHeadLen(),
-                                    0, key.flag.getFlag());
-                        }
+            if (!backgroundMode && pendingForegroundRefresh) {
+                if (surface == null || !surface.isValid()) {
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException ignore) {
                     }
-                    pendingForegroundRefresh = false;
+                    continue;
                 }
-                byte[] sendevent = event.poll();
-                if (sendevent != null) {
-                    waitEvent = false;
-                    try {
-                        controlOutputStream.write(sendevent, 0, sendevent.length);
-                        controlOutputStream.flush();  // 确保数据立即发送，避免缓冲延迟
-                    } catch (IOException e) {
-                        Log.e("Scrcpy", "Control channel write failed, disconnecting", e);
-                        if (serviceCallbacks != null) {
-                            serviceCallbacks.errorDisconnect();
-                        }
-                        LetServceRunning.set(false);
-                    } finally {
-                        // event = null;
+                if (cachedStreamSettings != null) {
+                    streamSettings = cachedStreamSettings;
+                    videoDecoder.configure(surface, screenWidth, screenHeight, streamSettings);
+                    PacketBuffer keyFrame = cachedKeyFrame;
+                    if (keyFrame != null) {
+                        videoDecoder.decodeSample(keyFrame.retain());
                     }
+                    // 使用帧内刷新时缓存的关键帧可能已经很旧
+                    requestKeyFrame();
                 }
+                pendingForegroundRefresh = false;
+            }
+            boolean feedback = Handshake.acceptsFeedback(protocolVersion) && !backgroundMode && !suspendStream;
+            if (feedback) {
+                feedbackReporter.maybeReport(SystemClock.uptimeMillis(), videoDecoder.getQueueDepth(), connection);
+            }
+            if (keyFrameWanted.getAndSet(false) && !connection.sendKeyFrameRequest()) {
+                // 发送缓冲区已满，下一轮再试
+                keyFrameWanted.set(true);
+            }
+            // 一次唤醒只写一次，把所有待发送的事件合并发送
+            connection.sendControl(controlEvents);
 
-                if (suspendStream) {
-                    try {
-                        Thread.sleep(SUSPEND_SLEEP_MS);
-                    } catch (InterruptedException ignore) {
+            if (suspendStream) {
+                // 暂停期间不读取画面数据，只等待控制事件或恢复
+                connection.await(false);
+                continue;
+            }
+
+            PacketBuffer packet = connection.nextPacket();
+            if (packet == null) {
+                // 没有完整的数据包，等待数据到达、新的控制事件或者下一次报告
+                connection.await(true, feedback ? feedbackReporter.timeUntilNextReport(SystemClock.uptimeMillis()) : 0);
+                continue;
+            }
+            MediaPacket header = connection.header();
+            if (header.type == MediaPacket.Type.INFO) {
+                // 服务端每次启动编码器都会先发送新的视频尺寸，触摸坐标仍然使用握手时的尺寸
+                StreamInfo info = StreamInfo.read(ByteBuffer.wrap(packet.copyBytes()));
+                packet.release();
+                resizeOnly = streamSettings != null && info.isLandscape() == landscape;
+                landscape = info.isLandscape();
+                Log.d("Scrcpy", "Video stream " + info + (resizeOnly ? " (resize)" : ""));
+                continue;
+            }
+            if (header.type != null) {
+                streamStats.get(header.type).onReceived(header.sequence, packet.size());
+            }
+            if (backgroundMode) {
+                if (header.type == MediaPacket.Type.VIDEO && header.flag == MediaPacket.Flag.CONFIG) {
+                    VideoPacket.StreamSettings settings = VideoPacket.getStreamSettings(videoCodec, packet.copyBytes());
+                    if (settings != null) {
+                        cachedStreamSettings = settings;
                     }
-                    continue;
+                    packet.release();
+                } else if (header.type == MediaPacket.Type.VIDEO && header.flag == MediaPacket.Flag.KEY_FRAME) {
+                    // 缓存持有该包的引用，直到被新的关键帧替换
+                    PacketBuffer previous = cachedKeyFrame;
+                    cachedKeyFrame = packet;
+                    if (previous != null) {
+                        previous.release();
+                    }
+                } else {
+                    packet.release();
                 }
-
-                if (mediaInputStream.available() > 0) {
-                    waitEvent = false;
-                    mediaInputStream.readFully(packetSize, 0, 4);
-                    int size = ByteUtils.bytesToInt(packetSize);
-                    if (size <= 0 || size > 4 * 1024 * 1024) {  // 如果单个数据包大小异常，直接断开连接
-                        StringBuilder hex = new StringBuilder(11);
-                        for (int i = 0; i < 4; i++) {
-                            int v = packetSize[i] & 0xFF;
-                            if (i > 0) {
-                                hex.append(' ');
+                try {
+                    Thread.sleep(BACKGROUND_SLEEP_MS);
+                } catch (InterruptedException ignore) {
+                }
+                continue;
+            }
+            if (header.type == MediaPacket.Type.VIDEO) {
+                if (header.flag == MediaPacket.Flag.CONFIG || updateAvailable.get()) {
+                    // a new encoder (CONFIG) starts with a key frame, a decoder reconfigured for a new surface does not
+                    boolean needsKeyFrame = header.flag != MediaPacket.Flag.CONFIG;
+                    if (!updateAvailable.get()) {
+                        streamSettings = VideoPacket.getStreamSettings(videoCodec, packet.copyBytes());
+                        if (streamSettings == null) {
+                            Log.w("Scrcpy", "Video CONFIG parse failed, len=" + packet.size());
+                        }
+                        if (!first_time && !resizeOnly) {
+                            if (serviceCallbacks != null) {
+                                serviceCallbacks.loadNewRotation();
                             }
-                            if (v < 0x10) {
-                                hex.append('0');
+                            // 界面重建后通过 setParms() 唤醒，不再轮询
+                            if (!awaitSurfaceUpdate()) {
+                                packet.release();
+                                return;
                             }
-                            hex.append(Integer.toHexString(v));
-                        }
-                        Log.e("Scrcpy", "Invalid packet size=" + size + " header=" + hex);
-                        if (serviceCallbacks != null) {
-                            serviceCallbacks.errorDisconnect();
                         }
-                        LetServceRunning.set(false);
-                        return;
+                        resizeOnly = false;
                     }
-                    if (backgroundMode) {
-                        byte[] packet = new byte[size];
-                        mediaInputStream.readFully(packet, 0, size);
-                        if (MediaPacket.Type.getType(packet[0]) == MediaPacket.Type.VIDEO) {
-                            VideoPacket videoPacket = VideoPacket.readHead(packet);
-                            if (videoPacket.flag == VideoPacket.Flag.CONFIG) {
-                                int dataLength = packet.length - VideoPacket.getHeadLen();
-                                byte[] data = new byte[dataLength];
-                                System.arraycopy(packet, VideoPacket.getHeadLen(), data, 0, dataLength);
-                                VideoPacket.StreamSettings settings = VideoPacket.getStreamSettings(data);
-                                if (settings != null && settings.sps != null && settings.pps != null) {
-                                    cachedStreamSettings = settings;
-                                }
-                            } else if (videoPacket.flag == VideoPacket.Flag.KEY_FRAME) {
-                                cachedKeyFrame = packet;
-                            }
-                        }
-                        try {
-                            Thread.sleep(BACKGROUND_SLEEP_MS);
-                        } catch (InterruptedException ignore) {
+                    updateAvailable.set(false);
+                    if (streamSettings != null) {
+                        videoDecoder.configure(surface, screenWidth, screenHeight, streamSettings);
+                        if (needsKeyFrame) {
+                            requestKeyFrame();
                         }
-                        continue;
                     }
-                    byte[] packet = new byte[size];
-                    mediaInputStream.readFully(packet, 0, size);
-                    if (MediaPacket.Type.getType(packet[0]) == MediaPacket.Type.VIDEO) {
-                        VideoPacket videoPacket = VideoPacket.readHead(packet);
-                        // byte[] data = videoPacket.data;
-                        if (videoPacket.flag == VideoPacket.Flag.CONFIG || updateAvailable.get()) {
-                            if (!updateAvailable.get()) {
-                                int dataLength = packet.length - VideoPacket.getHeadLen();
-                                byte[] data = new byte[dataLength];
-                                System.arraycopy(packet, VideoPacket.getHeadLen(), data, 0, dataLength);
-                                streamSettings = VideoPacket.getStreamSettings(data);
-                                if (streamSettings == null || streamSettings.sps == null || streamSettings.pps == null) {
-                                    Log.w("Scrcpy", "Video CONFIG parse failed, len=" + dataLength);
-                                }
-                                if (!first_time) {
-                                    if (serviceCallbacks != null) {
-                                        serviceCallbacks.loadNewRotation();
-                                    }
-                                    while (!updateAvailable.get()) {
-                                        // Waiting for new surface
-                                        try {
-                                            Thread.sleep(100);
-                                        } catch (InterruptedException e) {
-                                            e.printStackTrace();
-                                        }
-                                    }
-
-                                }
-                            }
-                            updateAvailable.set(false);
-                            if (streamSettings != null && streamSettings.sps != null && streamSettings.pps != null) {
-                                videoDecoder.configure(surface, screenWidth, screenHeight, streamSettings.sps, streamSettings.pps);
-                            }
-                        } else if (videoPacket.flag == VideoPacket.Flag.END) {
-                            // need close stream
-                            Log.e("Scrcpy", "END ... ");
+                    packet.release();
+                } else if (header.flag == MediaPacket.Flag.END) {
+                    // need close stream
+                    Log.e("Scrcpy", "END ... ");
+                    packet.release();
+                } else {
+                    // Log.e("Scrcpy", "videoPacket presentationTimeStamp ... " + header.presentationTimeStamp);
+                    boolean inTime = videoDeadline.onPacket(SystemClock.uptimeMillis(), header.presentationTimeStamp);
+                    streamStats.video.setPlayoutDelay(videoDeadline.getTargetDelayMs());
+                    if (header.flag == MediaPacket.Flag.KEY_FRAME) {
+                        videoDecoder.decodeSample(packet);
+                    } else {
+                        if (inTime) {
+                            videoDecoder.decodeSample(packet);
                         } else {
-                            // Log.e("Scrcpy", "videoPacket presentationTimeStamp ... " + videoPacket.presentationTimeStamp);
-                            // 帧在 100 ms 以内
-                            if (lastVideoOffset == 0) {
-                                lastVideoOffset = System.currentTimeMillis() - (videoPacket.presentationTimeStamp / 1000);
-                            }
-                            if (videoPacket.flag == VideoPacket.Flag.KEY_FRAME) {
-                                videoDecoder.decodeSample(packet, VideoPacket.getHeadLen(), packet.length - VideoPacket.getHeadLen(),
-                                        0, videoPacket.flag.getFlag());
-                            } else {
-                                if (System.currentTimeMillis() - (lastVideoOffset + (videoPacket.presentationTimeStamp / 1000)) < delay) {
-                                    videoPassCount = 0;
-                                    videoDecoder.decodeSample(packet, VideoPacket.getHeadLen(), packet.length - VideoPacket.getHeadLen(),
-                                            0, videoPacket.flag.getFlag());
-                                } else {
-                                    videoPassCount++;
-                                }
-                            }
-                        }
-                        first_time = false;
-                    } else if (MediaPacket.Type.getType(packet[0]) == MediaPacket.Type.AUDIO) {
-                        if (!audioEnabled || audioDecoder == null) {
-                            continue;
-                        }
-                        AudioPacket audioPacket = AudioPacket.readHead(packet);
-                        // byte[] data = audioPacket.data;
-                        if (audioPacket.flag == AudioPacket.Flag.CONFIG) {
-                            int dataLength = packet.length - AudioPacket.getHeadLen();
-                            byte[] data = new byte[dataLength];
-                            System.arraycopy(packet, AudioPacket.getHeadLen(), data, 0, dataLength);
-                            Log.d("Scrcpy", "Audio CONFIG len=" + dataLength);
-                            audioDecoder.configure(data);
-                        } else if (audioPacket.flag == AudioPacket.Flag.END) {
-                            // need close stream
-                            Log.e("Scrcpy", "Audio END ... ");
-                        } else {
-                            if (lastAudioOffset == 0) {
-                                lastAudioOffset = System.currentTimeMillis() - (audioPacket.presentationTimeStamp / 1000);
-                            }
-                            if (System.currentTimeMillis() - (lastAudioOffset + (audioPacket.presentationTimeStamp / 1000)) < delay) {
-                                audioPassCount = 0;
-                                audioDecoder.decodeSample(packet, VideoPacket.getHeadLen(), packet.length - AudioPacket.getHeadLen(),
-                                        0, audioPacket.flag.getFlag());
-                            } else {
-                                audioPassCount++;
-                            }
+                            // 丢弃过期帧，解码器会一直丢到下一个关键帧
+                            streamStats.video.onClientDropped();
+                            videoDecoder.skipSample(packet);
                         }
                     }
-
                 }
-            } catch (IOException e) {
-                Log.e("Scrcpy", "IOException: " + e.getMessage());
-                e.printStackTrace();
-            } finally {
-                if (waitEvent) {
-                    Thread.sleep(5);
+                first_time = false;
+            } else if (header.type == MediaPacket.Type.AUDIO) {
+                if (!audioEnabled || audioDecoder == null) {
+                    packet.release();
+                    continue;
+                }
+                if (header.flag == MediaPacket.Flag.CONFIG) {
+                    Log.d("Scrcpy", "Audio CONFIG len=" + packet.size());
+                    audioDecoder.configure(packet.copyBytes());
+                    packet.release();
+                } else if (header.flag == MediaPacket.Flag.END) {
+                    // need close stream
+                    Log.e("Scrcpy", "Audio END ... ");
+                    packet.release();
+                } else {
+                    boolean inTime = audioDeadline.onPacket(SystemClock.uptimeMillis(), header.presentationTimeStamp);
+                    streamStats.audio.setPlayoutDelay(audioDeadline.getTargetDelayMs());
+                    if (inTime) {
+                        audioDecoder.decodeSample(packet);
+                    } else {
+                        streamStats.audio.onClientDropped();
+                        packet.release();
+                    }
                 }
+            } else {
+                packet.release();
             }
         }
     }
@@ -166,10 +166,11 @@ public class SendCommands {
         // 执行启动命令
         Log.i("Scrcpy", "Starting server with command");
         String ipArg = "/" + localip;
+        // 编码器自动选择（"-"），首次在该机型上启动时测量各硬件编码器的延迟并记住最快的（"auto"）
         String startCmd = "echo shell_start >/data/local/tmp/scrcpy.shell; "
                 + "export CLASSPATH=/data/local/tmp/scrcpy-server.jar; "
                 + "/system/bin/app_process / org.server.scrcpy.Server "
-                + ipArg + " " + size + " " + bitrate + " false " + audioEnabled
+                + ipArg + " " + size + " " + bitrate + " false " + audioEnabled + " - auto"
                 + " >/data/local/tmp/scrcpy.log 2>&1 &";
         App.adbCmd("-s", targetDevice, "shell", "sh", "-c", startCmd);
 
@@ -8,6 +8,9 @@ import android.media.MediaFormat;
 import android.util.Log;
 
 
+import xyz.aicy.scrcpy.net.PacketBuffer;
+import xyz.aicy.scrcpy.stats.StreamStats;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.ArrayBlockingQueue;
@@ -26,6 +29,13 @@ public class AudioDecoder {
     private AudioTrack audioTrack;
     private final int SAMPLE_RATE = 48000;
 
+    // packets discarded by this decoder are accounted here
+    private final StreamStats.Counters stats;
+
+    public AudioDecoder(StreamStats.Counters stats) {
+        this.stats = stats;
+    }
+
     private void initAudioTrack() {
         int bufferSizeInBytes = AudioTrack.getMinBufferSize(SAMPLE_RATE, AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT);
         AudioAttributes attributes = new AudioAttributes.Builder()
@@ -45,9 +55,17 @@ public class AudioDecoder {
                 .build();
     }
 
-    public void decodeSample(byte[] data, int offset, int size, long presentationTimeUs, int flags) {
-        if (mWorker != null) {
-            mWorker.decodeSample(data, offset, size, presentationTimeUs, flags);
+    /**
+     * Queue a packet for decoding. The caller's reference is handed over: the decoder releases the packet once
+     * it has been copied into a codec input buffer (or dropped).
+     */
+    public void decodeSample(PacketBuffer packet) {
+        Worker worker = mWorker;
+        if (worker != null) {
+            worker.decodeSample(packet);
+        } else {
+            stats.onDecoderDropped();
+            packet.release();
         }
     }
 
@@ -69,6 +87,7 @@ public class AudioDecoder {
     public void stop() {
         if (mWorker != null) {
             mWorker.setRunning(false);
+            mWorker.clearQueue();
             mWorker = null;
             mIsConfigured.set(false);
             if (mCodec != null) {
@@ -83,7 +102,7 @@ public class AudioDecoder {
     private class Worker extends Thread {
 
         private AtomicBoolean mIsRunning = new AtomicBoolean(false);
-        private final BlockingQueue<Sample> sampleQueue = new ArrayBlockingQueue<>(SAMPLE_QUEUE_CAPACITY);
+        private final BlockingQueue<PacketBuffer> sampleQueue = new ArrayBlockingQueue<>(SAMPLE_QUEUE_CAPACITY);
 
         Worker() {
         }
@@ -92,6 +111,13 @@ public class AudioDecoder {
             mIsRunning.set(isRunning);
         }
 
+        private void clearQueue() {
+            PacketBuffer packet;
+            while ((packet = sampleQueue.poll()) != null) {
+                packet.release();
+            }
+        }
+
         private void configure(byte[] data) {
             if (data == null || data.length == 0) {
                 Log.w("Scrcpy", "Audio configure skipped: empty CSD");
@@ -106,7 +132,7 @@ public class AudioDecoder {
                     audioTrack.stop();
                 }
             }
-            sampleQueue.clear();
+            clearQueue();
             MediaFormat format = MediaFormat.createAudioFormat(MIMETYPE_AUDIO_AAC, SAMPLE_RATE, 2);
             // 设置比特率
             format.setInteger(MediaFormat.KEY_BIT_RATE, 128000);
@@ -131,23 +157,31 @@ public class AudioDecoder {
         }
 
 
-        public void decodeSample(byte[] data, int offset, int size, long presentationTimeUs, int flags) {
+        public void decodeSample(PacketBuffer packet) {
             if (!mIsConfigured.get() || !mIsRunning.get()) {
+                stats.onDecoderDropped();
+                packet.release();
                 return;
             }
-            Sample sample = new Sample(data, offset, size, presentationTimeUs, flags);
-            if (!sampleQueue.offer(sample)) {
+            if (!sampleQueue.offer(packet)) {
                 // Drop oldest to keep audio in sync with video
-                sampleQueue.poll();
-                sampleQueue.offer(sample);
+                PacketBuffer oldest = sampleQueue.poll();
+                if (oldest != null) {
+                    stats.onDecoderDropped();
+                    oldest.release();
+                }
+                if (!sampleQueue.offer(packet)) {
+                    stats.onDecoderDropped();
+                    packet.release();
+                }
             }
         }
 
         @Override
         public void run() {
+            PacketBuffer pendingSample = null;
             try {
                 MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-                Sample pendingSample = null;
                 while (mIsRunning.get()) {
                     if (mIsConfigured.get()) {
                         if (pendingSample == null) {
@@ -159,8 +193,10 @@ public class AudioDecoder {
                                 ByteBuffer buffer;
                                 buffer = mCodec.getInputBuffer(inputIndex);
                                 if (buffer != null) {
-                                    buffer.put(pendingSample.data, pendingSample.offset, pendingSample.size);
-                                    mCodec.queueInputBuffer(inputIndex, 0, pendingSample.size, pendingSample.presentationTimeUs, pendingSample.flags);
+                                    pendingSample.copyTo(buffer);
+                                    mCodec.queueInputBuffer(inputIndex, 0, pendingSample.size(), pendingSample.presentationTimeUs, pendingSample.flags);
+                                    // the payload now lives in the codec, give the packet back to the pool
+                                    pendingSample.release();
                                     pendingSample = null;
                                 }
                             } else {
@@ -184,9 +220,8 @@ public class AudioDecoder {
                             if (outputBuffer != null && info.size > 0) {
                                 outputBuffer.position(info.offset);
                                 outputBuffer.limit(info.offset + info.size);
-                                byte[] data = new byte[info.size];
-                                outputBuffer.get(data);
-                                audioTrack.write(data, 0, info.size);
+                                // write the pcm straight from the codec buffer, no intermediate array
+                                audioTrack.write(outputBuffer, info.size, AudioTrack.WRITE_BLOCKING);
                             }
                             // release (audio buffers must not be rendered)
                             mCodec.releaseOutputBuffer(outputIndex, false);
@@ -200,24 +235,13 @@ public class AudioDecoder {
                     }
                 }
             } catch (IllegalStateException e) {
+            } finally {
+                if (pendingSample != null) {
+                    pendingSample.release();
+                }
+                clearQueue();
             }
 
         }
     }
-
-    private static class Sample {
-        final byte[] data;
-        final int offset;
-        final int size;
-        final long presentationTimeUs;
-        final int flags;
-
-        Sample(byte[] data, int offset, int size, long presentationTimeUs, int flags) {
-            this.data = data;
-            this.offset = offset;
-            this.size = size;
-            this.presentationTimeUs = presentationTimeUs;
-            this.flags = flags;
-        }
-    }
 }
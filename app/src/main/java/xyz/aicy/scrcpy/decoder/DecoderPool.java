@@ -0,0 +1,116 @@
+package xyz.aicy.scrcpy.decoder;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Decoder instances of a session.
+ * <p>
+ * Creating a decoder takes 50 to 200 ms, and nothing is displayed meanwhile. The pool keeps one unconfigured
+ * spare: it is created in the background as soon as the codec of the session is known ({@link #prepare}), and a
+ * decoder which is replaced (new stream settings, decoder stopped) is {@link MediaCodec#reset() reset} to become
+ * the next spare instead of being thrown away. Every other instance is released right away, none is left to the
+ * garbage collector.
+ */
+final class DecoderPool {
+
+    // guarded by this
+    private MediaCodec spare;
+    private String spareMimeType;
+    private boolean creating;
+    private boolean released;
+
+    /**
+     * Create a spare decoder for {@code mimeType} in the background, if there is none yet.
+     */
+    void prepare(final String mimeType) {
+        synchronized (this) {
+            if (released || creating || (spare != null && mimeType.equals(spareMimeType))) {
+                return;
+            }
+            creating = true;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                MediaCodec codec = null;
+                try {
+                    codec = MediaCodec.createDecoderByType(mimeType);
+                } catch (IOException | RuntimeException e) {
+                    Log.w("Scrcpy", "Cannot create a spare " + mimeType + " decoder", e);
+                }
+                synchronized (DecoderPool.this) {
+                    creating = false;
+                    if (codec != null) {
+                        keep(codec, mimeType);
+                    }
+                }
+            }
+        }, "decoder-spare").start();
+    }
+
+    /**
+     * Take the spare decoder if it handles {@code mimeType}, otherwise create one now.
+     *
+     * @return an unconfigured decoder, owned by the caller until {@link #recycle} or {@link MediaCodec#release()}
+     */
+    MediaCodec acquire(String mimeType) {
+        synchronized (this) {
+            if (spare != null && mimeType.equals(spareMimeType)) {
+                MediaCodec codec = spare;
+                spare = null;
+                return codec;
+            }
+        }
+        try {
+            return MediaCodec.createDecoderByType(mimeType);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create codec", e);
+        }
+    }
+
+    /**
+     * Give back a decoder in any state (running, stopped or failed), which becomes the spare if possible.
+     */
+    void recycle(MediaCodec codec, String mimeType) {
+        try {
+            // back to the uninitialized state, errors included, the component is kept
+            codec.reset();
+        } catch (IllegalStateException e) {
+            codec.release();
+            return;
+        }
+        synchronized (this) {
+            keep(codec, mimeType);
+        }
+    }
+
+    /**
+     * Release the spare, the pool must not be used any more.
+     */
+    synchronized void release() {
+        released = true;
+        if (spare != null) {
+            spare.release();
+            spare = null;
+        }
+    }
+
+    /**
+     * Must hold this.
+     */
+    private void keep(MediaCodec codec, String mimeType) {
+        if (released) {
+            codec.release();
+            return;
+        }
+        if (spare != null) {
+            // the newest one matches the current stream
+            spare.release();
+        }
+        spare = codec;
+        spareMimeType = mimeType;
+    }
+}
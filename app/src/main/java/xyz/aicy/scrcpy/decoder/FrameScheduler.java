@@ -0,0 +1,151 @@
+package xyz.aicy.scrcpy.decoder;
+
+import android.media.MediaCodec;
+import android.os.Handler;
+import android.view.Choreographer;
+
+import xyz.aicy.scrcpy.stats.StreamStats;
+
+/**
+ * Presents the decoded video frames on the display vsync.
+ * <p>
+ * Releasing an output buffer as soon as it is decoded lands it at an arbitrary point of the refresh period: when
+ * two frames are decoded within one period, both are rendered but only the second one is ever displayed.
+ * <p>
+ * The vsync phase and period are learned from {@link Choreographer} on the codec thread. A decoded frame is held
+ * until just before the first vsync it can still make, then released with a render timestamp targeting that
+ * vsync ({@link MediaCodec#releaseOutputBuffer(int, long)}). A frame decoded meanwhile for the same vsync
+ * replaces it, and the older one is skipped without being rendered. The held frame is displayed at the vsync it
+ * would have reached if released immediately, so holding it adds no latency. The stream pts is not used to delay
+ * frames, only their decode time counts: pacing them by pts would hold early frames back, i.e. add the delay of a
+ * jitter buffer, which this low-latency mirror avoids ({@code PlayoutDeadline} drops late frames instead).
+ * <p>
+ * Until the vsync is known, frames are rendered immediately.
+ */
+final class FrameScheduler implements Choreographer.FrameCallback {
+
+    // the held frame is released this long before its vsync, for the compositor to latch it
+    private static final long LATCH_MARGIN_NS = 4_000_000;
+    private static final long DEFAULT_PERIOD_NS = 16_666_667;
+    // stop listening to vsync when no frame was decoded for this long
+    private static final long IDLE_NS = 500_000_000;
+
+    private final Handler handler;
+    private final Runnable deadlineTask;
+    private final StreamStats.Counters stats;
+
+    // codec thread only
+    private Choreographer choreographer;
+    private boolean vsyncRequested;
+    // 0 until the first vsync
+    private long lastVsyncNs;
+    private long periodNs = DEFAULT_PERIOD_NS;
+    private long lastFrameNs;
+
+    // guarded by the decoder lock
+    private MediaCodec pendingCodec;
+    private int pendingIndex;
+    private long pendingVsyncNs;
+
+    /**
+     * @param handler      handler of the codec thread
+     * @param deadlineTask posted on {@code handler} to call {@link #onDeadline()} with the decoder lock held
+     */
+    FrameScheduler(Handler handler, Runnable deadlineTask, StreamStats.Counters stats) {
+        this.handler = handler;
+        this.deadlineTask = deadlineTask;
+        this.stats = stats;
+    }
+
+    /**
+     * Codec thread, decoder lock held: a frame was decoded into the output buffer {@code index} of {@code codec}.
+     */
+    void onFrameDecoded(MediaCodec codec, int index) {
+        long now = System.nanoTime();
+        lastFrameNs = now;
+        requestVsync();
+        if (lastVsyncNs == 0) {
+            if (pendingCodec != null) {
+                render();
+            }
+            codec.releaseOutputBuffer(index, true);
+            return;
+        }
+        long vsyncNs = nextVsync(now + LATCH_MARGIN_NS);
+        if (pendingCodec != null) {
+            if (pendingCodec == codec && pendingVsyncNs == vsyncNs) {
+                // both frames would reach the same vsync, only the newest one would be displayed
+                pendingCodec = null;
+                codec.releaseOutputBuffer(pendingIndex, false);
+                stats.onSkipped();
+            } else {
+                // its deadline is overdue
+                render();
+            }
+        }
+        pendingCodec = codec;
+        pendingIndex = index;
+        pendingVsyncNs = vsyncNs;
+        handler.removeCallbacks(deadlineTask);
+        handler.postDelayed(deadlineTask, Math.max(0, (vsyncNs - LATCH_MARGIN_NS - now) / 1_000_000));
+    }
+
+    /**
+     * Codec thread, decoder lock held: the held frame must be released now to make its vsync.
+     */
+    void onDeadline() {
+        if (pendingCodec != null) {
+            render();
+        }
+    }
+
+    /**
+     * Decoder lock held: the codec is being released, and its buffers with it.
+     */
+    void clear() {
+        pendingCodec = null;
+        handler.removeCallbacks(deadlineTask);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        vsyncRequested = false;
+        if (lastVsyncNs != 0) {
+            long delta = frameTimeNanos - lastVsyncNs;
+            // callbacks may skip vsyncs when the thread is busy, only consecutive ones tell the period
+            if (delta > periodNs / 2 && delta < periodNs * 3 / 2) {
+                periodNs += (delta - periodNs) / 8;
+            }
+        }
+        lastVsyncNs = frameTimeNanos;
+        if (System.nanoTime() - lastFrameNs < IDLE_NS) {
+            requestVsync();
+        }
+    }
+
+    private void requestVsync() {
+        if (!vsyncRequested) {
+            if (choreographer == null) {
+                // bound to the looper of the calling thread
+                choreographer = Choreographer.getInstance();
+            }
+            choreographer.postFrameCallback(this);
+            vsyncRequested = true;
+        }
+    }
+
+    /**
+     * The first vsync at or after {@code timeNs}.
+     */
+    private long nextVsync(long timeNs) {
+        long periods = (timeNs - lastVsyncNs + periodNs - 1) / periodNs;
+        return lastVsyncNs + Math.max(0, periods) * periodNs;
+    }
+
+    private void render() {
+        MediaCodec codec = pendingCodec;
+        pendingCodec = null;
+        // the frame is displayed at the first vsync after its timestamp, leave some slack before the target one
+        codec.releaseOutputBuffer(pendingIndex, pendingVsyncNs - periodNs * 8 / 10);
+    }
+}
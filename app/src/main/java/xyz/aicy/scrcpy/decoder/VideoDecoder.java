@@ -1,59 +1,777 @@
 package xyz.aicy.scrcpy.decoder;
 
+import android.annotation.TargetApi;
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 
 
-import java.io.IOException;
+import xyz.aicy.scrcpy.net.PacketBuffer;
+import xyz.aicy.scrcpy.protocol.VideoCodec;
+import xyz.aicy.scrcpy.protocol.VideoPacket;
+import xyz.aicy.scrcpy.stats.StreamStats;
+
 import java.nio.ByteBuffer;
+import java.util.Locale;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Decodes the video stream onto a {@link Surface}.
+ * <p>
+ * Since Android 6.0 the decoder runs in asynchronous mode ({@link AsyncEngine}): the network thread hands each
+ * packet to {@link #decodeSample(PacketBuffer)}, which copies it straight into a free codec input buffer, and the
+ * codec callbacks hand every output to a {@link FrameScheduler}, which renders it on the display vsync. Older
+ * versions keep the polling {@link Worker}, which renders every output as soon as it is decoded.
+ * <p>
+ * A frame is never dropped alone: the frames after it reference a picture the decoder never got, and would
+ * smear the picture until the next key frame. Once a frame is dropped (late, or the queue is full), every
+ * following frame is dropped up to the next key frame, which is requested right away from the server.
+ * <p>
+ * Decoder instances come from a {@link DecoderPool}, which has one ready before the first configuration
+ * ({@link #prepare(VideoCodec)}) and keeps the replaced ones as spare until {@link #release()}.
+ */
 public class VideoDecoder {
     private MediaCodec mCodec;
-    private Worker mWorker;
+    private Engine mEngine;
     private AtomicBoolean mIsConfigured = new AtomicBoolean(false);
     private static final int SAMPLE_QUEUE_CAPACITY = 30;
+    // input buffers of a codec, more than any decoder allocates
+    private static final int MAX_INPUT_BUFFERS = 64;
+    // a key frame request not answered within this delay was lost (or ignored), it is sent again
+    private static final long KEY_FRAME_REQUEST_TIMEOUT_MS = 1000;
+    // frames tracked for the decode latency, more than any decoder holds
+    private static final int LATENCY_SLOTS = 32;
+    // largest side an adaptive decoder is prepared for, at least: the stream may grow after a rotation or a
+    // quality change
+    private static final int ADAPTIVE_MIN_SIZE = 1920;
+
+    // packets discarded by this decoder are accounted here
+    private final StreamStats.Counters stats;
+    // outlives the engines, so that a decoder stopped in background is reused on resume
+    private final DecoderPool pool = new DecoderPool();
+    private final boolean lowLatency;
+    private volatile ErrorListener errorListener;
+    private volatile KeyFrameListener keyFrameListener;
+
+    // network thread only: a frame was dropped or the decoder is new, the frames up to the next key frame
+    // cannot be decoded
+    private boolean waitingForKeyFrame;
+    private long keyFrameRequestMs;
+
+    public interface ErrorListener {
+        /**
+         * Called when the codec failed, the decoder must be restarted and needs a key frame. Called on the decoder
+         * thread, or in asynchronous mode on the next thread calling {@link #decodeSample(PacketBuffer)}.
+         */
+        void onDecoderError(Exception e);
+    }
+
+    public interface KeyFrameListener {
+        /**
+         * Called on the network thread when frames were dropped, the server must send a key frame.
+         */
+        void onKeyFrameNeeded();
+    }
+
+    private interface Engine {
+        void configure(Surface surface, int width, int height, VideoPacket.StreamSettings settings);
+
+        void decodeSample(PacketBuffer packet);
+
+        int getQueueDepth();
+
+        void release();
+    }
+
+    public VideoDecoder(StreamStats.Counters stats, boolean lowLatency) {
+        this.stats = stats;
+        this.lowLatency = lowLatency;
+    }
 
-    public void decodeSample(byte[] data, int offset, int size, long presentationTimeUs, int flags) {
-        if (mWorker != null) {
-            mWorker.decodeSample(data, offset, size, presentationTimeUs, flags);
+    public void setErrorListener(ErrorListener errorListener) {
+        this.errorListener = errorListener;
+    }
+
+    public void setKeyFrameListener(KeyFrameListener keyFrameListener) {
+        this.keyFrameListener = keyFrameListener;
+    }
+
+    /**
+     * Queue a packet for decoding, called directly by the network thread. The caller's reference is handed over:
+     * the decoder releases the packet once it has been copied into a codec input buffer (or dropped).
+     */
+    public void decodeSample(PacketBuffer packet) {
+        Engine engine = mEngine;
+        if (engine != null && acceptSample(packet)) {
+            engine.decodeSample(packet);
+        } else {
+            stats.onDecoderDropped();
+            packet.release();
         }
     }
 
-    public void configure(Surface surface, int width, int height, ByteBuffer csd0, ByteBuffer csd1) {
-        if (mWorker != null) {
-            mWorker.configure(surface, width, height, csd0, csd1);
+    /**
+     * Drop a packet instead of decoding it, e.g. because it is late. The caller's reference is released, and the
+     * frames up to the next key frame are dropped too.
+     */
+    public void skipSample(PacketBuffer packet) {
+        packet.release();
+        waitForKeyFrame();
+    }
+
+    private static boolean isKeyFrame(PacketBuffer packet) {
+        // the packet flags are the codec buffer flags
+        return (packet.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+    }
+
+    /**
+     * Network thread: whether the frame can be decoded, that is whether the frames it depends on were.
+     */
+    private boolean acceptSample(PacketBuffer packet) {
+        if (isKeyFrame(packet)) {
+            waitingForKeyFrame = false;
+            return true;
+        }
+        if (!waitingForKeyFrame) {
+            return true;
         }
+        if (SystemClock.uptimeMillis() - keyFrameRequestMs >= KEY_FRAME_REQUEST_TIMEOUT_MS) {
+            requestKeyFrame();
+        }
+        return false;
+    }
+
+    /**
+     * Network thread: a frame was dropped, drop everything up to the next key frame and request it now, so that
+     * the decoding resumes after one round trip instead of one GOP.
+     */
+    private void waitForKeyFrame() {
+        if (!waitingForKeyFrame) {
+            waitingForKeyFrame = true;
+            requestKeyFrame();
+        }
+    }
+
+    private void requestKeyFrame() {
+        keyFrameRequestMs = SystemClock.uptimeMillis();
+        KeyFrameListener listener = keyFrameListener;
+        if (listener != null) {
+            listener.onKeyFrameNeeded();
+        }
+    }
+
+    /**
+     * Number of packets waiting for a codec input buffer.
+     */
+    public int getQueueDepth() {
+        Engine engine = mEngine;
+        return engine != null ? engine.getQueueDepth() : 0;
+    }
+
+    public void configure(Surface surface, int width, int height, VideoPacket.StreamSettings settings) {
+        Engine engine = mEngine;
+        if (engine != null) {
+            // a new decoder starts with a key frame, the caller requests it if the server does not send one
+            waitingForKeyFrame = true;
+            keyFrameRequestMs = SystemClock.uptimeMillis();
+            engine.configure(surface, width, height, settings);
+        }
+    }
+
+    /**
+     * Bitmask of the {@link VideoCodec}s this device can decode in hardware, H.264 is always included.
+     */
+    public static int getSupportedCodecs() {
+        int mask = VideoCodec.H264.getMask();
+        MediaCodecInfo[] codecInfos;
+        try {
+            codecInfos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        } catch (RuntimeException e) {
+            Log.w("Scrcpy", "Cannot list decoders", e);
+            return mask;
+        }
+        for (MediaCodecInfo info : codecInfos) {
+            // software HEVC/AV1 decoders add more latency than the bitrate saving is worth
+            if (info.isEncoder() || !isHardware(info)) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                for (VideoCodec codec : VideoCodec.values()) {
+                    if (codec.getMimeType().equalsIgnoreCase(type)) {
+                        mask |= codec.getMask();
+                    }
+                }
+            }
+        }
+        return mask;
+    }
+
+    private static boolean isHardware(MediaCodecInfo info) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return info.isHardwareAccelerated();
+        }
+        String name = info.getName().toLowerCase(Locale.US);
+        return !name.startsWith("omx.google.") && !name.startsWith("c2.android.");
     }
 
 
     public void start() {
-        if (mWorker == null) {
-            mWorker = new Worker();
-            mWorker.setRunning(true);
-            mWorker.start();
+        if (mEngine == null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                mEngine = new AsyncEngine();
+            } else {
+                Worker worker = new Worker();
+                worker.setRunning(true);
+                worker.start();
+                mEngine = worker;
+            }
         }
     }
 
     public void stop() {
-        if (mWorker != null) {
-            mWorker.setRunning(false);
-            mWorker = null;
+        Engine engine = mEngine;
+        if (engine != null) {
+            mEngine = null;
+            engine.release();
+        }
+    }
+
+    /**
+     * Create a decoder for {@code codec} in the background, before the first stream settings arrive.
+     */
+    public void prepare(VideoCodec codec) {
+        pool.prepare(codec.getMimeType());
+    }
+
+    /**
+     * Stop and release every decoder instance, this decoder must not be started again.
+     */
+    public void release() {
+        stop();
+        pool.release();
+    }
+
+    /**
+     * @return the decoder format for {@code settings}, or {@code null} if it cannot be configured yet
+     */
+    private MediaFormat createFormat(Surface surface, int width, int height, VideoPacket.StreamSettings settings) {
+        ByteBuffer csd0 = settings == null ? null : settings.csd0;
+        ByteBuffer csd1 = settings == null ? null : settings.csd1;
+        int csd0Len = csd0 == null ? -1 : csd0.remaining();
+        int csd1Len = csd1 == null ? -1 : csd1.remaining();
+        // only H.264 splits its parameter sets over csd-0 and csd-1
+        boolean needsCsd1 = settings != null && settings.codec == VideoCodec.H264;
+        if (surface == null || !surface.isValid() || csd0Len <= 0 || (needsCsd1 && csd1Len <= 0)) {
+            Log.w("Scrcpy", "Video configure skipped: surface=" + (surface != null)
+                    + " csd0=" + csd0Len + " csd1=" + csd1Len);
+            return null;
+        }
+        MediaFormat format = MediaFormat.createVideoFormat(settings.codec.getMimeType(), width, height);
+        format.setByteBuffer("csd-0", csd0);
+        if (csd1 != null) {
+            format.setByteBuffer("csd-1", csd1);
+        }
+        return format;
+    }
+
+    private static boolean sameBuffer(ByteBuffer a, ByteBuffer b) {
+        // compares the remaining bytes
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * The parameter sets of {@code settings} in a single buffer, to be queued in-band as codec config.
+     */
+    private static ByteBuffer joinConfig(VideoPacket.StreamSettings settings) {
+        int size = settings.csd0.remaining() + (settings.csd1 == null ? 0 : settings.csd1.remaining());
+        ByteBuffer config = ByteBuffer.allocate(size);
+        config.put(settings.csd0.duplicate());
+        if (settings.csd1 != null) {
+            config.put(settings.csd1.duplicate());
+        }
+        config.flip();
+        return config;
+    }
+
+    /**
+     * Let the codec take a new video size without being replaced, both orientations included.
+     *
+     * @return whether the codec supports adaptive playback
+     */
+    private static boolean applyAdaptivePlayback(MediaCodec codec, MediaFormat format, String mimeType,
+                                                 int width, int height) {
+        try {
+            MediaCodecInfo.CodecCapabilities capabilities = codec.getCodecInfo().getCapabilitiesForType(mimeType);
+            if (!capabilities.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_AdaptivePlayback)) {
+                return false;
+            }
+            MediaCodecInfo.VideoCapabilities video = capabilities.getVideoCapabilities();
+            int size = Math.max(ADAPTIVE_MIN_SIZE, Math.max(width, height));
+            format.setInteger(MediaFormat.KEY_MAX_WIDTH, Math.min(size, video.getSupportedWidths().getUpper()));
+            format.setInteger(MediaFormat.KEY_MAX_HEIGHT, Math.min(size, video.getSupportedHeights().getUpper()));
+            return true;
+        } catch (IllegalArgumentException e) {
+            Log.w("Scrcpy", "Cannot read decoder capabilities", e);
+            return false;
+        }
+    }
+
+    private void applyLowLatency(MediaCodec codec, MediaFormat format, String mimeType) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            format.setInteger(MediaFormat.KEY_PRIORITY, 0); // 0 = realtime
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            try {
+                MediaCodecInfo.CodecCapabilities capabilities = codec.getCodecInfo().getCapabilitiesForType(mimeType);
+                if (capabilities.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_LowLatency)) {
+                    // output each frame as soon as it is decoded instead of filling the pipeline first
+                    format.setInteger(MediaFormat.KEY_LOW_LATENCY, 1);
+                }
+            } catch (IllegalArgumentException e) {
+                Log.w("Scrcpy", "Cannot read decoder capabilities", e);
+            }
+        }
+    }
+
+    /**
+     * Network thread: the full decoder queue has been flushed, it is so far behind that dropping only its oldest
+     * frame would not catch up, and would break the frames after it anyway.
+     *
+     * @return whether {@code packet} is a key frame and can be queued, otherwise it is dropped (released)
+     */
+    private boolean keepAfterFlush(PacketBuffer packet) {
+        if (isKeyFrame(packet)) {
+            return true;
+        }
+        stats.onDecoderDropped();
+        packet.release();
+        waitForKeyFrame();
+        return false;
+    }
+
+    /**
+     * (presentation time, queue time) of the last queued inputs, to measure the decode latency.
+     */
+    private static final class LatencyTracker {
+        private final long[] queuedPts = new long[LATENCY_SLOTS];
+        private final long[] queuedAtUs = new long[LATENCY_SLOTS];
+        private int queuedCount;
+
+        void onQueued(long pts) {
+            int slot = queuedCount++ % LATENCY_SLOTS;
+            queuedPts[slot] = pts;
+            queuedAtUs[slot] = System.nanoTime() / 1000;
+        }
+
+        /**
+         * @return the time the input of the output {@code pts} spent in the codec, or -1 if unknown
+         */
+        long onDecoded(long pts) {
+            // newest first, the output is almost always one of the last inputs
+            for (int i = 1; i <= Math.min(queuedCount, LATENCY_SLOTS); ++i) {
+                int slot = (queuedCount - i) % LATENCY_SLOTS;
+                if (queuedPts[slot] == pts) {
+                    return System.nanoTime() / 1000 - queuedAtUs[slot];
+                }
+            }
+            return -1;
+        }
+
+        void reset() {
+            queuedCount = 0;
+        }
+    }
+
+    /**
+     * Asynchronous mode: no thread of its own polls the codec.
+     * <p>
+     * The codec callbacks run on a {@link HandlerThread}. An input buffer announced while no packet is waiting
+     * is kept in {@link #freeInputs}, so that the next packet is queued to the codec by the network thread
+     * itself; a packet received while no input buffer is free waits in {@link #samples} until the codec
+     * announces one. Outputs are presented on the display vsync by the {@link FrameScheduler}.
+     * <p>
+     * A new configuration keeps the running codec when it can ({@link #reuseCodec}): it is flushed and restarted,
+     * the new surface is attached in place and new parameter sets are queued in-band. Otherwise the codec is
+     * replaced by the spare of the {@link DecoderPool}, and becomes the next spare.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private final class AsyncEngine extends MediaCodec.Callback implements Engine {
+
+        private final HandlerThread thread = new HandlerThread("video-decoder");
+        private final Handler handler;
+        private final Object lock = new Object();
+        private final LatencyTracker latency = new LatencyTracker();
+        private final FrameScheduler scheduler;
+        private final Runnable deadlineTask = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (lock) {
+                    if (codec == null || error != null) {
+                        return;
+                    }
+                    try {
+                        scheduler.onDeadline();
+                    } catch (IllegalStateException e) {
+                        fail(e);
+                    }
+                }
+            }
+        };
+        // posted after every (re)configuration: the callbacks queued before it belong to the previous run of
+        // the codec, or to a codec which has been recycled since
+        private final Runnable startTask = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (lock) {
+                    if (!starting || codec == null || error != null) {
+                        return;
+                    }
+                    starting = false;
+                    try {
+                        codec.start();
+                    } catch (IllegalStateException e) {
+                        fail(e);
+                    }
+                }
+            }
+        };
+
+        // guarded by lock
+        private MediaCodec codec;
+        private String codecMimeType;
+        private Surface codecSurface;
+        private VideoPacket.StreamSettings codecSettings;
+        // whether the codec accepts in-band parameter sets changing the video size
+        private boolean adaptive;
+        private boolean starting;
+        // parameter sets to queue before the next sample
+        private ByteBuffer pendingConfig;
+        private final int[] freeInputs = new int[MAX_INPUT_BUFFERS];
+        private int freeInputCount;
+        private final PacketBuffer[] samples = new PacketBuffer[SAMPLE_QUEUE_CAPACITY];
+        private int sampleHead;
+        private int sampleCount;
+        private Exception error;
+        private boolean stopped;
+
+        AsyncEngine() {
+            thread.start();
+            handler = new Handler(thread.getLooper());
+            scheduler = new FrameScheduler(handler, deadlineTask, stats);
+        }
+
+        @Override
+        public void configure(Surface surface, int width, int height, VideoPacket.StreamSettings settings) {
+            MediaFormat format = createFormat(surface, width, height, settings);
+            if (format == null) {
+                return;
+            }
+            String mimeType = settings.codec.getMimeType();
+            synchronized (lock) {
+                if (stopped) {
+                    return;
+                }
+                if (reuseCodec(surface, settings)) {
+                    Log.d("Scrcpy", "Video decoder reused: " + settings.codec + " " + width + "x" + height);
+                    return;
+                }
+                // acquired first, so that the codec being replaced does not take the place of the spare
+                MediaCodec newCodec = pool.acquire(mimeType);
+                releaseCodec();
+                // a new codec replaces the failed one anyway
+                error = null;
+                if (lowLatency) {
+                    applyLowLatency(newCodec, format, mimeType);
+                }
+                boolean newAdaptive = applyAdaptivePlayback(newCodec, format, mimeType, width, height);
+                // must be set before configure()
+                newCodec.setCallback(this, handler);
+                try {
+                    newCodec.configure(format, surface, null, 0);
+                } catch (IllegalStateException | IllegalArgumentException e) {
+                    newCodec.release();
+                    throw e;
+                }
+                codec = newCodec;
+                codecMimeType = mimeType;
+                codecSurface = surface;
+                codecSettings = settings;
+                adaptive = newAdaptive;
+                restart();
+                mCodec = newCodec;
+                mIsConfigured.set(true);
+            }
+            Log.d("Scrcpy", "Video decoder configured (async): " + settings.codec + " " + width + "x" + height
+                    + " lowLatency=" + lowLatency + " adaptive=" + adaptive);
+        }
+
+        /**
+         * Must hold lock. Flush the running codec and set it up for {@code settings}, if it can decode them: same
+         * codec, and the same parameter sets, or an adaptive decoder of Annex B stream, which takes new ones
+         * in-band.
+         *
+         * @return whether the codec was reused, otherwise it must be replaced
+         */
+        private boolean reuseCodec(Surface surface, VideoPacket.StreamSettings settings) {
+            if (codec == null || error != null || !settings.codec.getMimeType().equals(codecMimeType)) {
+                return false;
+            }
+            boolean sameConfig = sameBuffer(settings.csd0, codecSettings.csd0)
+                    && sameBuffer(settings.csd1, codecSettings.csd1);
+            if (!sameConfig && (!adaptive || settings.codec.getNalCodec() == null)) {
+                return false;
+            }
+            try {
+                codec.flush();
+                dropInputs();
+                if (surface != codecSurface) {
+                    codec.setOutputSurface(surface);
+                    codecSurface = surface;
+                }
+            } catch (IllegalStateException | IllegalArgumentException e) {
+                Log.w("Scrcpy", "Cannot reuse the video decoder", e);
+                return false;
+            }
+            if (!sameConfig) {
+                pendingConfig = joinConfig(settings);
+            }
+            codecSettings = settings;
+            restart();
+            mIsConfigured.set(true);
+            return true;
+        }
+
+        /**
+         * Must hold lock. The codec is configured or flushed, start it once the callbacks of its previous run
+         * have been discarded.
+         */
+        private void restart() {
+            starting = true;
+            handler.post(startTask);
+        }
+
+        @Override
+        public void decodeSample(PacketBuffer packet) {
+            Exception failure;
+            synchronized (lock) {
+                failure = error;
+                error = null;
+                if (failure != null) {
+                    releaseCodec();
+                }
+                if (codec == null || stopped) {
+                    stats.onDecoderDropped();
+                    packet.release();
+                } else if (sampleCount < samples.length || onQueueFull(packet)) {
+                    samples[(sampleHead + sampleCount++) % samples.length] = packet;
+                    drainInputs();
+                }
+            }
+            if (failure != null) {
+                ErrorListener listener = errorListener;
+                if (listener != null) {
+                    listener.onDecoderError(failure);
+                }
+            }
+        }
+
+        @Override
+        public int getQueueDepth() {
+            synchronized (lock) {
+                return sampleCount;
+            }
+        }
+
+        @Override
+        public void release() {
+            synchronized (lock) {
+                stopped = true;
+                releaseCodec();
+            }
+            thread.quitSafely();
+        }
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec mediaCodec, int index) {
+            synchronized (lock) {
+                if (mediaCodec != codec || error != null || starting) {
+                    // late callback of a released, failed or flushed codec
+                    return;
+                }
+                if (freeInputCount < freeInputs.length) {
+                    freeInputs[freeInputCount++] = index;
+                }
+                drainInputs();
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec mediaCodec, int index, MediaCodec.BufferInfo info) {
+            synchronized (lock) {
+                if (mediaCodec != codec || error != null || starting) {
+                    return;
+                }
+                long latencyUs = latency.onDecoded(info.presentationTimeUs);
+                if (latencyUs >= 0) {
+                    stats.onDecoded(latencyUs);
+                }
+                try {
+                    scheduler.onFrameDecoded(mediaCodec, index);
+                } catch (IllegalStateException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec mediaCodec, MediaFormat format) {
+            Log.d("Scrcpy", "Video decoder output format: " + format);
+        }
+
+        @Override
+        public void onError(MediaCodec mediaCodec, MediaCodec.CodecException e) {
+            synchronized (lock) {
+                if (mediaCodec == codec && error == null && !starting) {
+                    fail(e);
+                }
+            }
+        }
+
+        /**
+         * Must hold lock. The codec must not be released nor the decoder restarted from its own callbacks: the
+         * failure is handled by the next {@link #decodeSample(PacketBuffer)}.
+         */
+        private void fail(Exception e) {
+            Log.e("Scrcpy", "Video decoder error", e);
+            error = e;
             mIsConfigured.set(false);
-            if (mCodec != null) {
-                mCodec.stop();
+        }
+
+        /**
+         * Must hold lock. Queue the pending parameter sets, then the waiting samples, into the free input buffers.
+         */
+        private void drainInputs() {
+            while (freeInputCount > 0 && error == null && (pendingConfig != null || sampleCount > 0)) {
+                int index = freeInputs[--freeInputCount];
+                if (pendingConfig != null) {
+                    queueConfig(index);
+                } else {
+                    queueInput(index, pollSample());
+                }
+            }
+        }
+
+        /**
+         * Must hold lock.
+         */
+        private void queueConfig(int index) {
+            ByteBuffer config = pendingConfig;
+            pendingConfig = null;
+            try {
+                ByteBuffer buffer = codec.getInputBuffer(index);
+                if (buffer == null) {
+                    return;
+                }
+                buffer.clear();
+                buffer.put(config);
+                codec.queueInputBuffer(index, 0, buffer.position(), 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+            } catch (IllegalStateException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Must hold lock.
+         */
+        private void queueInput(int index, PacketBuffer packet) {
+            try {
+                ByteBuffer buffer = codec.getInputBuffer(index);
+                if (buffer == null) {
+                    stats.onDecoderDropped();
+                    return;
+                }
+                buffer.clear();
+                packet.copyTo(buffer);
+                codec.queueInputBuffer(index, 0, packet.size(), packet.presentationTimeUs, packet.flags);
+                latency.onQueued(packet.presentationTimeUs);
+            } catch (IllegalStateException e) {
+                stats.onDecoderDropped();
+                fail(e);
+            } finally {
+                // the payload now lives in the codec, give the packet back to the pool
+                packet.release();
+            }
+        }
+
+        /**
+         * Must hold lock.
+         *
+         * @return whether {@code packet} can still be queued
+         */
+        private boolean onQueueFull(PacketBuffer packet) {
+            while (sampleCount > 0) {
+                stats.onDecoderDropped();
+                pollSample().release();
+            }
+            return keepAfterFlush(packet);
+        }
+
+        /**
+         * Must hold lock.
+         */
+        private PacketBuffer pollSample() {
+            PacketBuffer packet = samples[sampleHead];
+            samples[sampleHead] = null;
+            sampleHead = (sampleHead + 1) % samples.length;
+            --sampleCount;
+            return packet;
+        }
+
+        /**
+         * Must hold lock. Forget everything queued to the codec or waiting for it, the input and output buffers
+         * are gone.
+         */
+        private void dropInputs() {
+            while (sampleCount > 0) {
+                pollSample().release();
+            }
+            freeInputCount = 0;
+            pendingConfig = null;
+            latency.reset();
+            scheduler.clear();
+        }
+
+        /**
+         * Must hold lock. The codec goes back to the pool, to become the next spare.
+         */
+        private void releaseCodec() {
+            mIsConfigured.set(false);
+            dropInputs();
+            starting = false;
+            if (codec != null) {
+                MediaCodec released = codec;
+                codec = null;
+                codecSurface = null;
+                codecSettings = null;
+                pool.recycle(released, codecMimeType);
             }
         }
     }
 
-    private class Worker extends Thread {
+    private class Worker extends Thread implements Engine {
 
         private AtomicBoolean mIsRunning = new AtomicBoolean(false);
-        private final BlockingQueue<Sample> sampleQueue = new ArrayBlockingQueue<>(SAMPLE_QUEUE_CAPACITY);
+        private String mCodecMimeType;
+        private final BlockingQueue<PacketBuffer> sampleQueue = new ArrayBlockingQueue<>(SAMPLE_QUEUE_CAPACITY);
 
         Worker() {
         }
@@ -62,66 +780,103 @@ public class VideoDecoder {
             mIsRunning.set(isRunning);
         }
 
-        private void configure(Surface surface, int width, int height, ByteBuffer csd0, ByteBuffer csd1) {
-            int csd0Len = csd0 == null ? -1 : csd0.remaining();
-            int csd1Len = csd1 == null ? -1 : csd1.remaining();
-            if (surface == null || !surface.isValid() || csd0 == null || csd1 == null || csd0Len <= 0 || csd1Len <= 0) {
-                Log.w("Scrcpy", "Video configure skipped: surface=" + (surface != null)
-                        + " csd0=" + csd0Len + " csd1=" + csd1Len);
-                return;
+        private void clearQueue() {
+            PacketBuffer packet;
+            while ((packet = sampleQueue.poll()) != null) {
+                packet.release();
             }
-            if (mIsConfigured.get()) {
-                mIsConfigured.set(false);
-                if (mCodec != null) {
-                    mCodec.stop();
-                }
+        }
+
+        @Override
+        public void configure(Surface surface, int width, int height, VideoPacket.StreamSettings settings) {
+            MediaFormat format = createFormat(surface, width, height, settings);
+            if (format == null) {
+                return;
             }
-            sampleQueue.clear();
-            MediaFormat format = MediaFormat.createVideoFormat("video/avc", width, height);
-            format.setByteBuffer("csd-0", csd0);
-            format.setByteBuffer("csd-1", csd1);
-            try {
-                mCodec = MediaCodec.createDecoderByType("video/avc");
-            } catch (IOException e) {
-                throw new RuntimeException("Failed to create codec", e);
+            String mimeType = settings.codec.getMimeType();
+            MediaCodec newCodec = pool.acquire(mimeType);
+            mIsConfigured.set(false);
+            recycleCodec();
+            clearQueue();
+            mCodec = newCodec;
+            mCodecMimeType = mimeType;
+            if (lowLatency) {
+                applyLowLatency(mCodec, format, mimeType);
             }
             mCodec.configure(format, surface, null, 0);
             mCodec.start();
-            Log.d("Scrcpy", "Video decoder configured: " + width + "x" + height);
+            Log.d("Scrcpy", "Video decoder configured: " + settings.codec + " " + width + "x" + height
+                    + " lowLatency=" + lowLatency);
             mIsConfigured.set(true);
         }
 
+        @Override
+        public int getQueueDepth() {
+            return sampleQueue.size();
+        }
+
+        @Override
+        public void release() {
+            setRunning(false);
+            clearQueue();
+            mIsConfigured.set(false);
+            recycleCodec();
+        }
 
-        public void decodeSample(byte[] data, int offset, int size, long presentationTimeUs, int flags) {
+        /**
+         * The codec goes back to the pool, to become the next spare.
+         */
+        private void recycleCodec() {
+            if (mCodec != null) {
+                pool.recycle(mCodec, mCodecMimeType);
+                mCodec = null;
+            }
+        }
+
+        @Override
+        public void decodeSample(PacketBuffer packet) {
             if (!mIsConfigured.get() || !mIsRunning.get()) {
+                stats.onDecoderDropped();
+                packet.release();
                 return;
             }
-            Sample sample = new Sample(data, offset, size, presentationTimeUs, flags);
-            if (!sampleQueue.offer(sample)) {
-                // Drop oldest frame to keep latency low
-                sampleQueue.poll();
-                sampleQueue.offer(sample);
+            if (!sampleQueue.offer(packet)) {
+                PacketBuffer oldest;
+                while ((oldest = sampleQueue.poll()) != null) {
+                    stats.onDecoderDropped();
+                    oldest.release();
+                }
+                if (keepAfterFlush(packet) && !sampleQueue.offer(packet)) {
+                    stats.onDecoderDropped();
+                    packet.release();
+                }
             }
         }
 
         @Override
         public void run() {
+            PacketBuffer pendingSample = null;
+            LatencyTracker latency = new LatencyTracker();
             try {
                 MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-                Sample pendingSample = null;
                 while (mIsRunning.get()) {
-                    if (mIsConfigured.get()) {
+                    // replaced (and recycled) under our feet by configure(), which is not an error
+                    MediaCodec codec = mCodec;
+                    if (mIsConfigured.get() && codec != null) {
                         if (pendingSample == null) {
                             pendingSample = sampleQueue.poll();
                         }
                         if (pendingSample != null) {
-                            int inputIndex = mCodec.dequeueInputBuffer(0);
+                            int inputIndex = codec.dequeueInputBuffer(0);
                             if (inputIndex >= 0) {
                                 ByteBuffer buffer;
-                                buffer = mCodec.getInputBuffer(inputIndex);
+                                buffer = codec.getInputBuffer(inputIndex);
                                 if (buffer != null) {
-                                    buffer.put(pendingSample.data, pendingSample.offset, pendingSample.size);
-                                    mCodec.queueInputBuffer(inputIndex, 0, pendingSample.size, pendingSample.presentationTimeUs, pendingSample.flags);
+                                    pendingSample.copyTo(buffer);
+                                    codec.queueInputBuffer(inputIndex, 0, pendingSample.size(), pendingSample.presentationTimeUs, pendingSample.flags);
+                                    latency.onQueued(pendingSample.presentationTimeUs);
+                                    // the payload now lives in the codec, give the packet back to the pool
+                                    pendingSample.release();
                                     pendingSample = null;
                                 }
                             } else {
@@ -132,10 +887,14 @@ public class VideoDecoder {
                             }
                         }
 
-                        int outputIndex = mCodec.dequeueOutputBuffer(info, 0);
+                        int outputIndex = codec.dequeueOutputBuffer(info, 0);
                         if (outputIndex >= 0) {
+                            long latencyUs = latency.onDecoded(info.presentationTimeUs);
+                            if (latencyUs >= 0) {
+                                stats.onDecoded(latencyUs);
+                            }
                             // setting true is telling system to render frame onto Surface
-                            mCodec.releaseOutputBuffer(outputIndex, true);
+                            codec.releaseOutputBuffer(outputIndex, true);
                             if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == MediaCodec.BUFFER_FLAG_END_OF_STREAM) {
                                 break;
                             }
@@ -149,24 +908,22 @@ public class VideoDecoder {
                     }
                 }
             } catch (IllegalStateException e) {
+                // also thrown when the codec is stopped under our feet, which is not an error
+                if (mIsRunning.get()) {
+                    Log.e("Scrcpy", "Video decoder error", e);
+                    mIsConfigured.set(false);
+                    ErrorListener listener = errorListener;
+                    if (listener != null) {
+                        listener.onDecoderError(e);
+                    }
+                }
+            } finally {
+                if (pendingSample != null) {
+                    pendingSample.release();
+                }
+                clearQueue();
             }
 
         }
     }
-
-    private static class Sample {
-        final byte[] data;
-        final int offset;
-        final int size;
-        final long presentationTimeUs;
-        final int flags;
-
-        Sample(byte[] data, int offset, int size, long presentationTimeUs, int flags) {
-            this.data = data;
-            this.offset = offset;
-            this.size = size;
-            this.presentationTimeUs = presentationTimeUs;
-            this.flags = flags;
-        }
-    }
 }
@@ -1,38 +0,0 @@
-package xyz.aicy.scrcpy.model;
-
-import java.math.BigInteger;
-import java.nio.ByteBuffer;
-
-/**
- * Created by Alexandr Golovach on 27.06.16.
- * https://www.github.com/alexmprog/VideoCodec
- */
-
-public class ByteUtils {
-
-    public static byte[] longToBytes(long x) {
-        ByteBuffer buffer = ByteBuffer.allocate(Long.SIZE / 8);
-        buffer.putLong(0, x);
-        return buffer.array();
-    }
-
-    public static long bytesToLong(byte[] bytes) {
-        return new BigInteger(bytes).longValue();
-    }
-
-    public static byte[] intToBytes(int x) {
-        ByteBuffer buffer = ByteBuffer.allocate(Integer.SIZE / 8);
-        buffer.putInt(0, x);
-        return buffer.array();
-    }
-
-    public static int bytesToInt(byte[] bytes) {
-        if (bytes == null || bytes.length < 4) {
-            throw new IllegalArgumentException("bytesToInt requires at least 4 bytes");
-        }
-        return ((bytes[0] & 0xFF) << 24)
-                | ((bytes[1] & 0xFF) << 16)
-                | ((bytes[2] & 0xFF) << 8)
-                | (bytes[3] & 0xFF);
-    }
-}
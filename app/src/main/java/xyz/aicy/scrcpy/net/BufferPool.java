@@ -0,0 +1,87 @@
+package xyz.aicy.scrcpy.net;
+
+import xyz.aicy.scrcpy.protocol.MediaPacket;
+
+import java.util.Arrays;
+
+/**
+ * Size-classed pool of {@link PacketBuffer}s for the receive path.
+ * <p>
+ * Capacities are powers of two from 1 KiB up to {@link MediaPacket#MAX_PACKET_SIZE}. Buffers are acquired on
+ * the socket reader thread and returned from the decoder threads once their content has been copied into a
+ * codec input buffer, so a long session reaches a steady state where no packet allocates.
+ */
+public final class BufferPool {
+
+    private static final int MIN_SHIFT = 10; // 1 KiB
+    private static final int MAX_SHIFT = 32 - Integer.numberOfLeadingZeros(MediaPacket.MAX_PACKET_SIZE - 1);
+    private static final int CLASS_COUNT = MAX_SHIFT - MIN_SHIFT + 1;
+
+    // keep at most this many bytes idle per size class (but always a couple of buffers)
+    private static final int RETAINED_BYTES_PER_CLASS = 4 * 1024 * 1024;
+    private static final int MAX_RETAINED_PER_CLASS = 32;
+    private static final int MIN_RETAINED_PER_CLASS = 2;
+
+    private final PacketBuffer[][] free = new PacketBuffer[CLASS_COUNT][];
+    private final int[] freeCount = new int[CLASS_COUNT];
+
+    public BufferPool() {
+        for (int i = 0; i < CLASS_COUNT; ++i) {
+            int retained = RETAINED_BYTES_PER_CLASS >> (MIN_SHIFT + i);
+            free[i] = new PacketBuffer[Math.max(MIN_RETAINED_PER_CLASS, Math.min(MAX_RETAINED_PER_CLASS, retained))];
+        }
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= (1 << MIN_SHIFT)) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * Borrow a buffer able to hold {@code size} bytes, with its limit set to {@code size} and a reference count of 1.
+     */
+    public PacketBuffer acquire(int size) {
+        if (size < 0 || size > MediaPacket.MAX_PACKET_SIZE) {
+            throw new IllegalArgumentException("Invalid packet size: " + size);
+        }
+        int sizeClass = sizeClass(size);
+        PacketBuffer packet = null;
+        synchronized (this) {
+            int count = freeCount[sizeClass];
+            if (count > 0) {
+                packet = free[sizeClass][--count];
+                free[sizeClass][count] = null;
+                freeCount[sizeClass] = count;
+            }
+        }
+        if (packet == null) {
+            packet = new PacketBuffer(this, sizeClass, 1 << (MIN_SHIFT + sizeClass));
+        }
+        packet.reset(size);
+        return packet;
+    }
+
+    void recycle(PacketBuffer packet) {
+        int sizeClass = packet.getSizeClass();
+        synchronized (this) {
+            int count = freeCount[sizeClass];
+            if (count < free[sizeClass].length) {
+                free[sizeClass][count] = packet;
+                freeCount[sizeClass] = count + 1;
+            }
+            // otherwise let the GC reclaim it, the pool is already full for this size
+        }
+    }
+
+    /**
+     * Drop all idle buffers, e.g. when the session ends.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < CLASS_COUNT; ++i) {
+            Arrays.fill(free[i], null);
+            freeCount[i] = 0;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package xyz.aicy.scrcpy.net;
+
+import xyz.aicy.scrcpy.protocol.ControlMessage;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-producer/single-consumer ring of control messages.
+ * <p>
+ * Messages are stored as the ints of their {@link ControlMessage} encoding, the producer (UI thread)
+ * never allocates, and the consumer (network thread) encodes everything pending into its send buffer
+ * at once, so a burst of touch events costs a single socket write.
+ */
+public final class ControlEventRing {
+
+    private final int[] ring;
+    private final int mask;
+
+    // next int to read, only advanced by the consumer
+    private final AtomicLong head = new AtomicLong();
+    // next int to write, only advanced by the producer
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param capacity number of ints, rounded up to a power of two
+     */
+    public ControlEventRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(ControlMessage.RECORD_INTS, capacity) - 1) << 1;
+        ring = new int[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Producer side: append one 5-int record (touch or key).
+     *
+     * @return false if the ring is full (the consumer has fallen behind)
+     */
+    public boolean offer(int i0, int i1, int i2, int i3, int i4) {
+        long t = tail.get();
+        if (!hasRoom(t, ControlMessage.RECORD_INTS)) {
+            return false;
+        }
+        put(t, i0, i1, i2, i3, i4);
+        // publish the message after its content
+        tail.lazySet(t + ControlMessage.RECORD_INTS);
+        return true;
+    }
+
+    /**
+     * Producer side: append a multi move of {@code pointerCount} pointers, {@code pointers} holding
+     * (x, y, pointerId) triples.
+     *
+     * @return false if the ring is full (the consumer has fallen behind)
+     */
+    public boolean offerMultiMove(int buttons, int pointerCount, int[] pointers) {
+        int length = ControlMessage.messageInts(ControlMessage.TYPE_MULTI_MOVE, pointerCount);
+        long t = tail.get();
+        if (!hasRoom(t, length)) {
+            return false;
+        }
+        put(t, ControlMessage.TYPE_MULTI_MOVE, buttons, pointerCount, 0, 0);
+        long p = t + ControlMessage.RECORD_INTS;
+        for (int i = 0; i < pointerCount * ControlMessage.POINTER_INTS; ++i) {
+            ring[(int) ((p + i) & mask)] = pointers[i];
+        }
+        tail.lazySet(t + length);
+        return true;
+    }
+
+    /**
+     * Consumer side: encode as many complete pending messages as fit into {@code dst} (big-endian).
+     *
+     * @return the number of messages written
+     */
+    public int drainTo(ByteBuffer dst) {
+        long h = head.get();
+        long t = tail.get();
+        int count = 0;
+        while (h < t) {
+            int length = ControlMessage.messageInts(ring[(int) (h & mask)], ring[(int) ((h + 2) & mask)]);
+            if (dst.remaining() < length * 4) {
+                break;
+            }
+            for (int i = 0; i < length; ++i) {
+                dst.putInt(ring[(int) ((h + i) & mask)]);
+            }
+            h += length;
+            ++count;
+        }
+        if (count > 0) {
+            // free the slots only once they have been read
+            head.lazySet(h);
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /**
+     * Consumer side: discard all pending messages.
+     */
+    public void clear() {
+        head.lazySet(tail.get());
+    }
+
+    private boolean hasRoom(long t, int length) {
+        return t + length - head.get() <= ring.length;
+    }
+
+    private void put(long t, int i0, int i1, int i2, int i3, int i4) {
+        ring[(int) (t & mask)] = i0;
+        ring[(int) ((t + 1) & mask)] = i1;
+        ring[(int) ((t + 2) & mask)] = i2;
+        ring[(int) ((t + 3) & mask)] = i3;
+        ring[(int) ((t + 4) & mask)] = i4;
+    }
+}
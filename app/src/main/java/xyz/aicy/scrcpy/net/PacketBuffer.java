@@ -0,0 +1,92 @@
+package xyz.aicy.scrcpy.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Payload of one media packet, borrowed from a {@link BufferPool}.
+ * <p>
+ * A buffer is handed out with a reference count of 1. Whoever receives it owns that reference and must
+ * either pass it on (e.g. to a decoder) or call {@link #release()}. Additional holders (a cached key frame)
+ * call {@link #retain()} first. When the count drops to 0 the buffer goes back to its pool.
+ */
+public final class PacketBuffer {
+
+    private final BufferPool pool;
+    private final int sizeClass;
+    private final ByteBuffer buffer;
+    private final AtomicInteger refCount = new AtomicInteger();
+
+    public long presentationTimeUs;
+    public int flags;
+
+    PacketBuffer(BufferPool pool, int sizeClass, int capacity) {
+        this.pool = pool;
+        this.sizeClass = sizeClass;
+        // direct, so that socket reads land in it without an intermediate copy
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    void reset(int size) {
+        refCount.set(1);
+        buffer.clear();
+        buffer.limit(size);
+        presentationTimeUs = 0;
+        flags = 0;
+    }
+
+    int getSizeClass() {
+        return sizeClass;
+    }
+
+    int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * The payload, from 0 to {@link #size()}.
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int size() {
+        return buffer.limit();
+    }
+
+    /**
+     * Copy the payload into {@code dst} (typically a {@code MediaCodec} input buffer).
+     */
+    public void copyTo(ByteBuffer dst) {
+        buffer.position(0);
+        dst.put(buffer);
+        buffer.position(0);
+    }
+
+    /**
+     * Copy the payload out of the pool, for data which must outlive the packet (codec config).
+     */
+    public byte[] copyBytes() {
+        byte[] data = new byte[size()];
+        buffer.position(0);
+        buffer.get(data);
+        buffer.position(0);
+        return data;
+    }
+
+    public PacketBuffer retain() {
+        if (refCount.getAndIncrement() <= 0) {
+            throw new IllegalStateException("retain() on a released buffer");
+        }
+        return this;
+    }
+
+    public void release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            pool.recycle(this);
+        } else if (count < 0) {
+            throw new IllegalStateException("release() called too many times");
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package xyz.aicy.scrcpy.net;
+
+/**
+ * Adaptive playout deadline of one media stream, which tells the network thread whether a packet arrived in time.
+ * <p>
+ * The transit time of a packet ({@code arrival - pts}) mixes the network delay and the offset between the two
+ * clocks. Its minimum over the last two windows of {@link #WINDOW_MS} is taken as the anchor, the delay of a
+ * packet being its transit above the anchor. The anchor moves down as soon as a faster packet
+ * arrives, and up once two whole windows stayed above it (clock drift, a longer route), so one early stall does
+ * not make every later packet look late; a jump of more than {@link #RESYNC_MS} (pts discontinuity) re-anchors
+ * immediately.
+ * <p>
+ * The target delay follows the inter-arrival jitter (RFC 3550), bounded by a floor and a ceiling: a packet is
+ * late when its delay is above the target. This is a late-drop policy, not a jitter buffer: no packet is held
+ * back to smooth the playout, a packet in time is played at once and a late one is dropped. Only used by the
+ * network thread.
+ */
+public final class PlayoutDeadline {
+
+    // floor of the target delay: about a frame at 60 fps in low-latency mode, a few frames otherwise
+    public static final int LOW_LATENCY_FLOOR_MS = 20;
+    public static final int FLOOR_MS = 50;
+    // default ceiling of the target delay, when the user did not choose one
+    public static final int DEFAULT_MAX_DELAY_MS = 250;
+
+    private static final long WINDOW_MS = 2000;
+    private static final long RESYNC_MS = 5000;
+    // the target covers this many times the mean deviation
+    private static final int JITTER_MULTIPLIER = 4;
+
+    private final int floorMs;
+    private final int maxMs;
+
+    private boolean anchored;
+    private long anchorMs;
+    private long windowStartMs;
+    private long windowMinMs;
+    private long previousWindowMinMs;
+    private long lastTransitMs;
+    // inter-arrival jitter, in 1/16 ms (fixed point, as in RFC 3550)
+    private long jitter16;
+    private int targetMs;
+
+    /**
+     * @param floorMs lowest target delay, the latency never goes below it even on a perfect link
+     * @param maxMs   highest target delay, packets later than this are always late
+     */
+    public PlayoutDeadline(int floorMs, int maxMs) {
+        this.floorMs = floorMs;
+        this.maxMs = Math.max(floorMs, maxMs);
+        reset();
+    }
+
+    public void reset() {
+        anchored = false;
+        jitter16 = 0;
+        targetMs = floorMs;
+    }
+
+    /**
+     * Account for a packet received at {@code nowMs}.
+     *
+     * @return whether the packet is in time, false if it is late and should not be played
+     */
+    public boolean onPacket(long nowMs, long presentationTimeUs) {
+        long transitMs = nowMs - presentationTimeUs / 1000;
+        if (!anchored || Math.abs(transitMs - anchorMs) > RESYNC_MS) {
+            anchor(nowMs, transitMs);
+            return true;
+        }
+        if (transitMs < anchorMs) {
+            anchorMs = transitMs;
+        }
+        windowMinMs = Math.min(windowMinMs, transitMs);
+        if (nowMs - windowStartMs >= WINDOW_MS) {
+            // the anchor follows the minimum of the last two windows, which may be above the current one
+            anchorMs = Math.min(previousWindowMinMs, windowMinMs);
+            previousWindowMinMs = windowMinMs;
+            windowMinMs = Long.MAX_VALUE;
+            windowStartMs = nowMs;
+        }
+
+        long deviation = Math.abs(transitMs - lastTransitMs);
+        lastTransitMs = transitMs;
+        // J += (|D| - J) / 16
+        jitter16 += deviation - ((jitter16 + 8) >> 4);
+        long target = JITTER_MULTIPLIER * jitter16 / 16;
+        targetMs = (int) Math.max(floorMs, Math.min(maxMs, target));
+
+        return transitMs - anchorMs <= targetMs;
+    }
+
+    /**
+     * Current target delay, in milliseconds.
+     */
+    public int getTargetDelayMs() {
+        return targetMs;
+    }
+
+    private void anchor(long nowMs, long transitMs) {
+        anchored = true;
+        anchorMs = transitMs;
+        windowStartMs = nowMs;
+        windowMinMs = transitMs;
+        previousWindowMinMs = transitMs;
+        lastTransitMs = transitMs;
+        jitter16 = 0;
+        targetMs = floorMs;
+    }
+}
@@ -0,0 +1,438 @@
+package xyz.aicy.scrcpy.net;
+
+import xyz.aicy.scrcpy.protocol.ControlMessage;
+import xyz.aicy.scrcpy.protocol.Handshake;
+import xyz.aicy.scrcpy.protocol.MediaPacket;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking media + control connection to the server, driven by a single {@link Selector}.
+ * <p>
+ * The network thread alternates between draining complete packets with {@link #nextPacket()} and
+ * sleeping in {@link #await(boolean)}, which returns as soon as media bytes arrive, the pending control
+ * bytes can be written, or another thread calls {@link #wakeup()} (e.g. because a control event was queued
+ * in the {@link ControlEventRing}).
+ * <p>
+ * Packets are parsed incrementally: headers are decoded from a reusable read buffer, small payloads are
+ * copied out of it and large payloads are read straight into their pooled {@link PacketBuffer}. The chunks of a
+ * split video frame (see {@link MediaPacket#FLAG_MORE}) are read one after the other into a single buffer of
+ * the size of the whole frame, so the frame is handed out as one packet without any extra copy.
+ * Everything but {@link #wakeup()} must be called from the network thread.
+ */
+public final class StreamConnection implements Closeable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // payloads at least this big bypass the read buffer
+    private static final int DIRECT_READ_THRESHOLD = READ_BUFFER_SIZE / 2;
+    private static final int CONTROL_BUFFER_SIZE = 16 * 1024;
+
+    private final SocketChannel mediaChannel;
+    private final SocketChannel controlChannel;
+    private final Selector selector;
+    private final SelectionKey mediaKey;
+    private final SelectionKey controlKey;
+    private final BufferPool pool;
+
+    // unread media bytes between position and limit
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    // control bytes not written yet, between 0 and position
+    private final ByteBuffer controlBuffer = ByteBuffer.allocateDirect(CONTROL_BUFFER_SIZE);
+
+    private final MediaPacket header = new MediaPacket();
+    // whether the negotiated framing carries sequence numbers
+    private boolean withSequence;
+    // whether the negotiated framing may split video frames
+    private boolean withChunks;
+    // packet whose payload is partially received
+    private PacketBuffer pending;
+    // split video frame whose last chunk is not received yet
+    private PacketBuffer assembling;
+    private int assemblingSize;
+    // sequence number shared by the chunks of the assembling frame
+    private int assemblingSequence;
+
+    private StreamConnection(SocketChannel mediaChannel, SocketChannel controlChannel, BufferPool pool) throws IOException {
+        this.mediaChannel = mediaChannel;
+        this.controlChannel = controlChannel;
+        this.pool = pool;
+        readBuffer.limit(0);
+        selector = Selector.open();
+        try {
+            mediaChannel.configureBlocking(false);
+            controlChannel.configureBlocking(false);
+            mediaKey = mediaChannel.register(selector, 0);
+            controlKey = controlChannel.register(selector, 0);
+        } catch (IOException e) {
+            selector.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Connect the media socket then the control socket, each with a connect timeout of {@code timeoutMs}.
+     */
+    public static StreamConnection open(String host, int mediaPort, int controlPort, int timeoutMs, BufferPool pool)
+            throws IOException {
+        SocketChannel media = SocketChannel.open();
+        SocketChannel control = null;
+        try {
+            media.socket().connect(new InetSocketAddress(host, mediaPort), timeoutMs);
+            control = SocketChannel.open();
+            control.socket().connect(new InetSocketAddress(host, controlPort), timeoutMs);
+            // 控制事件很小，不能被 Nagle 算法延迟
+            control.socket().setTcpNoDelay(true);
+            return new StreamConnection(media, control, pool);
+        } catch (IOException e) {
+            closeQuietly(media);
+            closeQuietly(control);
+            throw e;
+        }
+    }
+
+    /**
+     * Read exactly {@code dst.remaining()} raw bytes from the media stream, outside of the packet framing.
+     * Bytes received after them stay buffered for {@link #nextPacket()}.
+     *
+     * @throws SocketTimeoutException if the bytes are not received within {@code timeoutMs}
+     */
+    public void readFully(ByteBuffer dst, long timeoutMs) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (dst.hasRemaining()) {
+            if (!readBuffer.hasRemaining() && !fill()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Timed out waiting for " + dst.remaining() + " bytes");
+                }
+                mediaKey.interestOps(SelectionKey.OP_READ);
+                selector.select(remaining);
+                selector.selectedKeys().clear();
+                continue;
+            }
+            transfer(readBuffer, dst);
+        }
+    }
+
+    /**
+     * Read the server hello at the start of the media stream, or the device size sent by a legacy server.
+     */
+    public Handshake.ServerHello readServerHello(long timeoutMs) throws IOException {
+        ByteBuffer preamble = ByteBuffer.allocate(Handshake.PREAMBLE_SIZE);
+        preamble.limit(4);
+        readFully(preamble, timeoutMs);
+        if (preamble.getInt(0) != Handshake.MAGIC) {
+            // legacy server: device width and height
+            preamble.limit(8);
+            readFully(preamble, timeoutMs);
+            preamble.flip();
+            return Handshake.ServerHello.legacy(preamble.getInt(), preamble.getInt());
+        }
+        preamble.limit(Handshake.PREAMBLE_SIZE);
+        readFully(preamble, timeoutMs);
+        preamble.position(4);
+        int[] versionAndLength = Handshake.readPreamble(preamble);
+        ByteBuffer body = ByteBuffer.allocate(versionAndLength[1]);
+        readFully(body, timeoutMs);
+        body.flip();
+        return Handshake.ServerHello.readBody(body, versionAndLength[0], versionAndLength[1]);
+    }
+
+    /**
+     * Select the media framing negotiated by the handshake.
+     */
+    public void setProtocolVersion(int version) {
+        withSequence = Handshake.hasSequenceNumbers(version);
+        withChunks = Handshake.hasChunks(version);
+    }
+
+    /**
+     * Return the next complete packet, or {@code null} if more bytes are needed. The caller owns the
+     * returned buffer; its head is available from {@link #header()} until the next call.
+     *
+     * @throws ProtocolException if the stream is out of sync
+     * @throws EOFException      if the server closed the media stream
+     */
+    public PacketBuffer nextPacket() throws IOException {
+        while (true) {
+            if (pending == null && !readHeader()) {
+                return null;
+            }
+            ByteBuffer dst = pending.buffer();
+            while (dst.hasRemaining()) {
+                if (readBuffer.hasRemaining()) {
+                    transfer(readBuffer, dst);
+                } else if (dst.remaining() >= DIRECT_READ_THRESHOLD) {
+                    int r = mediaChannel.read(dst);
+                    if (r < 0) {
+                        throw new EOFException("Media stream closed");
+                    }
+                    if (r == 0) {
+                        return null;
+                    }
+                } else if (!fill()) {
+                    return null;
+                }
+            }
+            PacketBuffer packet = pending;
+            pending = null;
+            if (header.more) {
+                // the frame is completed by a later chunk, other packets may come first
+                continue;
+            }
+            if (packet == assembling) {
+                assembling = null;
+                if (dst.position() != assemblingSize) {
+                    packet.release();
+                    throw new ProtocolException("Incomplete frame: " + dst.position() + "/" + assemblingSize + " bytes");
+                }
+            }
+            dst.flip();
+            return packet;
+        }
+    }
+
+    /**
+     * Decode the next header and select the buffer receiving its payload into {@link #pending}.
+     *
+     * @return false if more bytes are needed
+     */
+    private boolean readHeader() throws IOException {
+        int headerSize = MediaPacket.headerSize(withSequence);
+        boolean video;
+        boolean continuation;
+        boolean first;
+        while (true) {
+            if (readBuffer.remaining() >= headerSize) {
+                int start = readBuffer.position();
+                int headStart = start + MediaPacket.LENGTH_FIELD_SIZE;
+                // absolute reads: the header is decoded only once complete
+                video = readBuffer.get(headStart) == MediaPacket.Type.VIDEO.getType();
+                // chunks are only negotiated along with sequence numbers
+                continuation = assembling != null && video
+                        && readBuffer.getInt(headStart + MediaPacket.HEAD_LEN) == assemblingSequence;
+                first = withChunks && !continuation && MediaPacket.hasMore(readBuffer.get(headStart + 1));
+                int needed = first ? headerSize + MediaPacket.FRAME_SIZE_FIELD_SIZE : headerSize;
+                if (readBuffer.remaining() >= needed) {
+                    break;
+                }
+            }
+            if (!fill()) {
+                return false;
+            }
+        }
+        if (assembling != null && !continuation && video) {
+            // the server gave up on the frame (its encoder failed), the sequence gap accounts for it
+            // audio and stream info are written between chunks, they leave the frame alone
+            assembling.release();
+            assembling = null;
+        }
+
+        int start = readBuffer.position();
+        int length = MediaPacket.readLength(readBuffer);
+        if (!MediaPacket.isValidLength(length, withSequence)) {
+            throw new ProtocolException("Invalid packet size=" + length + " header=" + toHex(readBuffer, start));
+        }
+        header.readHead(readBuffer, withSequence);
+        int payloadLength = length - MediaPacket.headLength(withSequence);
+        if (continuation) {
+            ByteBuffer frame = assembling.buffer();
+            if (payloadLength > assemblingSize - frame.limit()) {
+                throw new ProtocolException("Chunk overflows its frame: " + payloadLength + " bytes");
+            }
+            frame.limit(frame.limit() + payloadLength);
+            pending = assembling;
+            return true;
+        }
+        if (first) {
+            int frameSize = readBuffer.getInt();
+            payloadLength -= MediaPacket.FRAME_SIZE_FIELD_SIZE;
+            if (header.type != MediaPacket.Type.VIDEO || payloadLength < 0 || frameSize < payloadLength
+                    || frameSize > MediaPacket.MAX_PACKET_SIZE) {
+                throw new ProtocolException("Invalid first chunk: type=" + header.type + " frame size=" + frameSize);
+            }
+            assembling = pool.acquire(frameSize);
+            assemblingSize = frameSize;
+            assemblingSequence = header.sequence;
+            // the chunks are appended to the frame, its limit grows with each of them
+            assembling.buffer().limit(payloadLength);
+            pending = assembling;
+        } else {
+            pending = pool.acquire(payloadLength);
+        }
+        pending.presentationTimeUs = header.presentationTimeStamp;
+        pending.flags = header.flag != null ? header.flag.getFlag() : 0;
+        return true;
+    }
+
+    /**
+     * Head of the packet last returned by {@link #nextPacket()}.
+     */
+    public MediaPacket header() {
+        return header;
+    }
+
+    /**
+     * Encode all pending control events into the send buffer and write them in a single call.
+     * Whatever the socket does not accept is retried by the next {@link #await(boolean)}.
+     */
+    public void sendControl(ControlEventRing events) throws IOException {
+        events.drainTo(controlBuffer);
+        flushControl();
+    }
+
+    /**
+     * Queue a {@link ControlMessage#TYPE_FEEDBACK} report, written with the next {@link #sendControl}.
+     *
+     * @return false if the send buffer is full
+     */
+    public boolean sendFeedback(int intervalMs, int throughputKbps, int queueDepth, int lost) {
+        return queueRecord(ControlMessage.TYPE_FEEDBACK, intervalMs, throughputKbps, queueDepth, lost);
+    }
+
+    /**
+     * Queue a {@link ControlMessage#TYPE_REQUEST_KEY_FRAME}, written with the next {@link #sendControl}. The
+     * request comes from the network thread itself, the {@link ControlEventRing} only takes the UI thread events.
+     *
+     * @return false if the send buffer is full
+     */
+    public boolean sendKeyFrameRequest() {
+        return queueRecord(ControlMessage.TYPE_REQUEST_KEY_FRAME, 0, 0, 0, 0);
+    }
+
+    /**
+     * Append one record to the send buffer, whole or not at all: the server reads fixed-size records.
+     */
+    private boolean queueRecord(int i0, int i1, int i2, int i3, int i4) {
+        if (controlBuffer.remaining() < ControlMessage.RECORD_SIZE) {
+            return false;
+        }
+        controlBuffer.putInt(i0);
+        controlBuffer.putInt(i1);
+        controlBuffer.putInt(i2);
+        controlBuffer.putInt(i3);
+        controlBuffer.putInt(i4);
+        return true;
+    }
+
+    /**
+     * Send raw bytes on the control socket, outside of the control message framing (used for the handshake).
+     */
+    public void sendRaw(ByteBuffer data) throws IOException {
+        controlBuffer.put(data);
+        flushControl();
+    }
+
+    /**
+     * Write as many queued control bytes as the socket accepts without blocking.
+     */
+    private void flushControl() throws IOException {
+        if (controlBuffer.position() == 0) {
+            return;
+        }
+        controlBuffer.flip();
+        try {
+            controlChannel.write(controlBuffer);
+        } finally {
+            controlBuffer.compact();
+        }
+    }
+
+    /**
+     * Block until media bytes are readable (if {@code readMedia}), queued control bytes become writable,
+     * or {@link #wakeup()} is called.
+     */
+    public void await(boolean readMedia) throws IOException {
+        await(readMedia, 0);
+    }
+
+    /**
+     * Same as {@link #await(boolean)}, returning after at most {@code timeoutMs} (0 for no timeout).
+     */
+    public void await(boolean readMedia, long timeoutMs) throws IOException {
+        mediaKey.interestOps(readMedia ? SelectionKey.OP_READ : 0);
+        controlKey.interestOps(controlBuffer.position() > 0 ? SelectionKey.OP_WRITE : 0);
+        selector.select(timeoutMs);
+        selector.selectedKeys().clear();
+        flushControl();
+    }
+
+    /**
+     * Interrupt {@link #await(boolean)}, callable from any thread.
+     */
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+    @Override
+    public void close() {
+        if (pending != null && pending != assembling) {
+            pending.release();
+        }
+        pending = null;
+        if (assembling != null) {
+            assembling.release();
+            assembling = null;
+        }
+        closeQuietly(selector);
+        closeQuietly(mediaChannel);
+        closeQuietly(controlChannel);
+    }
+
+    /**
+     * Read whatever is available into the read buffer, return false if nothing was.
+     */
+    private boolean fill() throws IOException {
+        readBuffer.compact();
+        int r;
+        try {
+            r = mediaChannel.read(readBuffer);
+        } finally {
+            readBuffer.flip();
+        }
+        if (r < 0) {
+            throw new EOFException("Media stream closed");
+        }
+        return r > 0;
+    }
+
+    private static void transfer(ByteBuffer src, ByteBuffer dst) {
+        int n = Math.min(src.remaining(), dst.remaining());
+        int limit = src.limit();
+        src.limit(src.position() + n);
+        dst.put(src);
+        src.limit(limit);
+    }
+
+    private static String toHex(ByteBuffer buffer, int start) {
+        StringBuilder hex = new StringBuilder(11);
+        for (int i = 0; i < MediaPacket.LENGTH_FIELD_SIZE; i++) {
+            int v = buffer.get(start + i) & 0xFF;
+            if (i > 0) {
+                hex.append(' ');
+            }
+            if (v < 0x10) {
+                hex.append('0');
+            }
+            hex.append(Integer.toHexString(v));
+        }
+        return hex.toString();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package xyz.aicy.scrcpy.stats;
+
+import xyz.aicy.scrcpy.net.StreamConnection;
+import xyz.aicy.scrcpy.protocol.ControlMessage;
+
+/**
+ * Builds the periodic {@link ControlMessage#TYPE_FEEDBACK} reports from the session {@link StreamStats}.
+ * <p>
+ * Only used by the network thread.
+ */
+public final class FeedbackReporter {
+
+    public static final long INTERVAL_MS = 1000;
+
+    private final StreamStats stats;
+
+    private long lastReportMs;
+    private long lastBytes;
+    private long lastLost;
+
+    public FeedbackReporter(StreamStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Start a new session, the first report covers the interval starting now.
+     */
+    public void reset(long nowMs) {
+        lastReportMs = nowMs;
+        lastBytes = receivedBytes();
+        lastLost = stats.video.getLost();
+    }
+
+    /**
+     * @return how long the network thread may wait before the next report is due
+     */
+    public long timeUntilNextReport(long nowMs) {
+        return Math.max(1, lastReportMs + INTERVAL_MS - nowMs);
+    }
+
+    /**
+     * Queue a report on {@code connection} if one is due.
+     *
+     * @param queueDepth current depth of the video decoder queue
+     */
+    public void maybeReport(long nowMs, int queueDepth, StreamConnection connection) {
+        long intervalMs = nowMs - lastReportMs;
+        if (intervalMs < INTERVAL_MS) {
+            return;
+        }
+        long bytes = receivedBytes();
+        long lost = stats.video.getLost();
+        // bits per millisecond are kbit/s
+        int throughputKbps = (int) ((bytes - lastBytes) * 8 / intervalMs);
+        if (connection.sendFeedback((int) intervalMs, throughputKbps, queueDepth, (int) (lost - lastLost))) {
+            lastReportMs = nowMs;
+            lastBytes = bytes;
+            lastLost = lost;
+        }
+    }
+
+    private long receivedBytes() {
+        // audio shares the link, it counts in the available throughput
+        return stats.video.getReceivedBytes() + stats.audio.getReceivedBytes();
+    }
+}
@@ -0,0 +1,192 @@
+package xyz.aicy.scrcpy.stats;
+
+import xyz.aicy.scrcpy.protocol.MediaPacket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Packet accounting of one session, per stream.
+ * <p>
+ * It tells where packets are lost when the stream lags:
+ * <ul>
+ *   <li>{@code sent - received}: numbered by the server but never received (dropped before the socket);</li>
+ *   <li>{@code clientDropped}: received too late and discarded by the network loop (network stall);</li>
+ *   <li>{@code decoderDropped}: discarded because the decoder queue was full or not ready (decoder back-pressure).</li>
+ * </ul>
+ * {@code sent} is only known when the session negotiated sequence numbers, otherwise it is {@code -1}. Frames
+ * decoded but replaced before their vsync ({@code skipped}) are not lost, the display could not show them.
+ * <p>
+ * The decode latency (input queued to output available in the decoder) is also recorded, to compare sessions
+ * with and without the low-latency mode, and so is the current target delay of the stream's playout deadline.
+ */
+public final class StreamStats {
+
+    public final Counters video = new Counters("video");
+    public final Counters audio = new Counters("audio");
+
+    public Counters get(MediaPacket.Type type) {
+        return type == MediaPacket.Type.AUDIO ? audio : video;
+    }
+
+    public void reset() {
+        video.reset();
+        audio.reset();
+    }
+
+    @Override
+    public String toString() {
+        return video + " " + audio;
+    }
+
+    public static final class Counters {
+
+        private final String name;
+        // written by the network thread only
+        private volatile long sent = -1;
+        private int lastSequence;
+        private volatile long receivedBytes;
+        private final AtomicLong received = new AtomicLong();
+        private final AtomicLong clientDropped = new AtomicLong();
+        private final AtomicLong decoderDropped = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        // written by the decoder thread only
+        private volatile long decodeLatencySumUs;
+        private volatile long decodeLatencyMaxUs;
+        private volatile int decodeLatencyCount;
+        // written by the network thread only
+        private volatile int playoutDelayMs;
+
+        Counters(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Network thread: a packet of {@code size} payload bytes was received, {@code sequence} is -1 if the
+         * framing does not carry it.
+         */
+        public void onReceived(int sequence, int size) {
+            received.incrementAndGet();
+            receivedBytes += size;
+            if (sequence < 0) {
+                return;
+            }
+            long total = sent;
+            if (total < 0) {
+                total = sequence + 1L;
+            } else {
+                // sequence numbers wrap to 0 after Integer.MAX_VALUE
+                total += (sequence - lastSequence) & Integer.MAX_VALUE;
+            }
+            lastSequence = sequence;
+            sent = total;
+        }
+
+        public void onClientDropped() {
+            clientDropped.incrementAndGet();
+        }
+
+        public void onDecoderDropped() {
+            decoderDropped.incrementAndGet();
+        }
+
+        /**
+         * Decoder thread: a decoded frame was replaced by a newer one before the vsync it was waiting for.
+         */
+        public void onSkipped() {
+            skipped.incrementAndGet();
+        }
+
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+        /**
+         * Decoder thread: a frame was output {@code latencyUs} after its input was queued.
+         */
+        public void onDecoded(long latencyUs) {
+            decodeLatencySumUs += latencyUs;
+            decodeLatencyMaxUs = Math.max(decodeLatencyMaxUs, latencyUs);
+            ++decodeLatencyCount;
+        }
+
+        /**
+         * Network thread: the playout deadline now considers late the packets delayed by more than {@code delayMs}.
+         */
+        public void setPlayoutDelay(int delayMs) {
+            playoutDelayMs = delayMs;
+        }
+
+        public int getPlayoutDelayMs() {
+            return playoutDelayMs;
+        }
+
+        public long getSent() {
+            return sent;
+        }
+
+        public long getReceived() {
+            return received.get();
+        }
+
+        public long getReceivedBytes() {
+            return receivedBytes;
+        }
+
+        /**
+         * Packets lost so far: never received, or dropped by the client.
+         */
+        public long getLost() {
+            return Math.max(0, getMissing()) + clientDropped.get() + decoderDropped.get();
+        }
+
+        public long getClientDropped() {
+            return clientDropped.get();
+        }
+
+        public long getDecoderDropped() {
+            return decoderDropped.get();
+        }
+
+        /**
+         * Average decode latency in microseconds, or -1 if nothing was decoded.
+         */
+        public long getDecodeLatencyUs() {
+            int count = decodeLatencyCount;
+            return count == 0 ? -1 : decodeLatencySumUs / count;
+        }
+
+        public long getMaxDecodeLatencyUs() {
+            return decodeLatencyMaxUs;
+        }
+
+        /**
+         * Packets numbered by the server which never reached the client, or -1 if unknown.
+         */
+        public long getMissing() {
+            long total = sent;
+            return total < 0 ? -1 : total - received.get();
+        }
+
+        void reset() {
+            sent = -1;
+            lastSequence = 0;
+            receivedBytes = 0;
+            received.set(0);
+            clientDropped.set(0);
+            decoderDropped.set(0);
+            skipped.set(0);
+            decodeLatencySumUs = 0;
+            decodeLatencyMaxUs = 0;
+            decodeLatencyCount = 0;
+            playoutDelayMs = 0;
+        }
+
+        @Override
+        public String toString() {
+            return name + "{sent=" + sent + ", received=" + received + ", missing=" + getMissing()
+                    + ", clientDropped=" + clientDropped + ", decoderDropped=" + decoderDropped + ", skipped=" + skipped
+                    + ", decodeLatency=" + getDecodeLatencyUs() + "us, maxDecodeLatency=" + decodeLatencyMaxUs + "us"
+                    + ", playoutDelay=" + playoutDelayMs + "ms}";
+        }
+    }
+}
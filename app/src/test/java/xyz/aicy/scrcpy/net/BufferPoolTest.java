@@ -0,0 +1,122 @@
+package xyz.aicy.scrcpy.net;
+
+import org.junit.Test;
+
+import xyz.aicy.scrcpy.protocol.MediaPacket;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class BufferPoolTest {
+
+    @Test
+    public void roundsCapacityUpToSizeClass() {
+        BufferPool pool = new BufferPool();
+        int[][] cases = {{0, 1024}, {1, 1024}, {1024, 1024}, {1025, 2048}, {100_000, 128 * 1024},
+                {MediaPacket.MAX_PACKET_SIZE, MediaPacket.MAX_PACKET_SIZE}};
+        for (int[] c : cases) {
+            PacketBuffer packet = pool.acquire(c[0]);
+            assertEquals("size " + c[0], c[1], packet.capacity());
+            assertEquals(c[0], packet.size());
+            assertEquals(0, packet.buffer().position());
+            packet.release();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOversizedPacket() {
+        new BufferPool().acquire(MediaPacket.MAX_PACKET_SIZE + 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeSize() {
+        new BufferPool().acquire(-1);
+    }
+
+    @Test
+    public void reusesReleasedBufferOfSameClass() {
+        BufferPool pool = new BufferPool();
+        PacketBuffer packet = pool.acquire(3000);
+        packet.presentationTimeUs = 42;
+        packet.flags = 1;
+        packet.release();
+
+        PacketBuffer again = pool.acquire(4096);
+        assertSame(packet, again);
+        // handed out as new
+        assertEquals(4096, again.size());
+        assertEquals(0, again.presentationTimeUs);
+        assertEquals(0, again.flags);
+
+        // another size class does not get it
+        again.release();
+        assertNotSame(packet, pool.acquire(5000));
+    }
+
+    @Test
+    public void recyclesOnlyAfterLastRelease() {
+        BufferPool pool = new BufferPool();
+        PacketBuffer packet = pool.acquire(100);
+        assertSame(packet, packet.retain());
+        packet.release();
+        // still referenced, the pool must not hand it out
+        assertNotSame(packet, pool.acquire(100));
+        packet.release();
+        assertSame(packet, pool.acquire(100));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void releaseTooManyTimes() {
+        PacketBuffer packet = new BufferPool().acquire(100);
+        packet.release();
+        packet.release();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void retainAfterRelease() {
+        PacketBuffer packet = new BufferPool().acquire(100);
+        packet.release();
+        packet.retain();
+    }
+
+    @Test
+    public void boundsIdleBuffersPerClass() {
+        BufferPool pool = new BufferPool();
+        // the biggest class only retains a couple of buffers
+        PacketBuffer[] packets = new PacketBuffer[4];
+        for (int i = 0; i < packets.length; ++i) {
+            packets[i] = pool.acquire(MediaPacket.MAX_PACKET_SIZE);
+        }
+        for (PacketBuffer packet : packets) {
+            packet.release();
+        }
+        Map<PacketBuffer, Boolean> released = new IdentityHashMap<>();
+        for (PacketBuffer packet : packets) {
+            released.put(packet, true);
+        }
+        int reused = 0;
+        for (int i = 0; i < packets.length; ++i) {
+            if (released.containsKey(pool.acquire(MediaPacket.MAX_PACKET_SIZE))) {
+                ++reused;
+            }
+        }
+        assertEquals(2, reused);
+    }
+
+    @Test
+    public void clearDropsIdleBuffers() {
+        BufferPool pool = new BufferPool();
+        PacketBuffer idle = pool.acquire(100);
+        PacketBuffer held = pool.acquire(100);
+        idle.release();
+        pool.clear();
+        assertNotSame(idle, pool.acquire(100));
+        // a buffer still held by a decoder goes back to the pool as usual
+        held.release();
+        assertSame(held, pool.acquire(100));
+    }
+}
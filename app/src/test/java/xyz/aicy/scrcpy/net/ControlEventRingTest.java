@@ -0,0 +1,224 @@
+package xyz.aicy.scrcpy.net;
+
+import org.junit.Test;
+
+import xyz.aicy.scrcpy.protocol.ControlMessage;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ControlEventRingTest {
+
+    private static final int STRESS_MESSAGES = 200_000;
+
+    @Test
+    public void drainsRecordsInOrderBigEndian() {
+        ControlEventRing ring = new ControlEventRing(64);
+        assertTrue(ring.isEmpty());
+        assertTrue(ring.offer(1, 2, 3, 4, 5));
+        assertTrue(ring.offer(6, 0x01020304, 7, 8, 9));
+        assertFalse(ring.isEmpty());
+
+        ByteBuffer dst = ByteBuffer.allocate(64);
+        assertEquals(2, ring.drainTo(dst));
+        assertTrue(ring.isEmpty());
+        dst.flip();
+        assertEquals(2 * ControlMessage.RECORD_SIZE, dst.remaining());
+        for (int value : new int[]{1, 2, 3, 4, 5, 6}) {
+            assertEquals(value, dst.getInt());
+        }
+        assertEquals(0x01, dst.get());
+        assertEquals(0x02, dst.get());
+    }
+
+    @Test
+    public void encodesMultiMoveWithItsPointers() {
+        ControlEventRing ring = new ControlEventRing(64);
+        int[] pointers = {10, 20, 0, 30, 40, 1, 99, 99, 99};
+        assertTrue(ring.offer(1, 2, 3, 4, 5));
+        assertTrue(ring.offerMultiMove(7, 2, pointers));
+        assertTrue(ring.offer(6, 0, 0, 0, 0));
+
+        ByteBuffer dst = ByteBuffer.allocate(256);
+        assertEquals(3, ring.drainTo(dst));
+        dst.flip();
+        assertEquals(3 * ControlMessage.RECORD_SIZE + 2 * ControlMessage.POINTER_SIZE, dst.remaining());
+        dst.position(ControlMessage.RECORD_SIZE);
+        // the pointers beyond the count are not sent
+        int[] expected = {ControlMessage.TYPE_MULTI_MOVE, 7, 2, 0, 0, 10, 20, 0, 30, 40, 1, 6};
+        for (int value : expected) {
+            assertEquals(value, dst.getInt());
+        }
+    }
+
+    @Test
+    public void rejectsOfferWhenFull() {
+        // 64 ints: 12 records
+        ControlEventRing ring = new ControlEventRing(64);
+        for (int i = 0; i < 12; ++i) {
+            assertTrue(ring.offer(i, 0, 0, 0, 0));
+        }
+        assertFalse(ring.offer(12, 0, 0, 0, 0));
+
+        // one record drained makes room for exactly one more
+        ByteBuffer dst = ByteBuffer.allocate(ControlMessage.RECORD_SIZE);
+        assertEquals(1, ring.drainTo(dst));
+        assertTrue(ring.offer(12, 0, 0, 0, 0));
+        assertFalse(ring.offer(13, 0, 0, 0, 0));
+    }
+
+    @Test
+    public void rejectsMultiMoveWhichDoesNotFitWhole() {
+        ControlEventRing ring = new ControlEventRing(32);
+        int[] pointers = new int[ControlMessage.MAX_POINTERS * ControlMessage.POINTER_INTS];
+        // 5 + 3 * 3 = 14 ints
+        assertTrue(ring.offerMultiMove(0, 3, pointers));
+        assertTrue(ring.offerMultiMove(0, 3, pointers));
+        // 28 ints used, 4 free: neither a multi move nor a record
+        assertFalse(ring.offerMultiMove(0, 1, pointers));
+        assertFalse(ring.offer(0, 0, 0, 0, 0));
+        assertEquals(2, ring.drainTo(ByteBuffer.allocate(256)));
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(12, fill(new ControlEventRing(33)));
+        assertEquals(12, fill(new ControlEventRing(64)));
+        // always room for one record
+        assertEquals(1, fill(new ControlEventRing(1)));
+    }
+
+    @Test
+    public void drainsOnlyWholeMessagesThatFit() {
+        ControlEventRing ring = new ControlEventRing(64);
+        int[] pointers = {1, 2, 3, 4, 5, 6};
+        ring.offer(0, 0, 0, 0, 0);
+        ring.offerMultiMove(0, 2, pointers);
+        ring.offer(2, 0, 0, 0, 0);
+
+        // room for the record and part of the multi move
+        ByteBuffer dst = ByteBuffer.allocate(ControlMessage.RECORD_SIZE * 2 + ControlMessage.POINTER_SIZE);
+        assertEquals(1, ring.drainTo(dst));
+        assertEquals(ControlMessage.RECORD_SIZE, dst.position());
+        // the rest stays queued for the next drain
+        dst = ByteBuffer.allocate(256);
+        assertEquals(2, ring.drainTo(dst));
+        assertEquals(ControlMessage.TYPE_MULTI_MOVE, dst.getInt(0));
+        assertEquals(2, dst.getInt(ControlMessage.RECORD_SIZE + 2 * ControlMessage.POINTER_SIZE));
+    }
+
+    @Test
+    public void wrapsAround() {
+        // 5-int records and 8-int multi moves cross the end of a 32-int ring at every offset
+        ControlEventRing ring = new ControlEventRing(32);
+        ByteBuffer dst = ByteBuffer.allocate(256);
+        int[] pointers = new int[ControlMessage.POINTER_INTS];
+        int next = 0;
+        int expected = 0;
+        for (int round = 0; round < 1000; ++round) {
+            int n = round % 3 + 1;
+            for (int i = 0; i < n; ++i) {
+                if ((next & 1) == 0) {
+                    assertTrue(ring.offer(next, next + 1, next + 2, next + 3, next + 4));
+                } else {
+                    pointers[0] = next;
+                    pointers[1] = ~next;
+                    pointers[2] = next + 1;
+                    assertTrue(ring.offerMultiMove(next, 1, pointers));
+                }
+                ++next;
+            }
+            dst.clear();
+            assertEquals(n, ring.drainTo(dst));
+            dst.flip();
+            for (int i = 0; i < n; ++i) {
+                checkMessage(dst, expected++);
+            }
+            assertFalse(dst.hasRemaining());
+        }
+    }
+
+    @Test
+    public void clearDiscardsPendingMessages() {
+        ControlEventRing ring = new ControlEventRing(64);
+        ring.offer(1, 0, 0, 0, 0);
+        ring.offerMultiMove(0, 1, new int[]{1, 2, 3});
+        ring.clear();
+        assertTrue(ring.isEmpty());
+        assertEquals(0, ring.drainTo(ByteBuffer.allocate(256)));
+        ring.offer(3, 0, 0, 0, 0);
+        ByteBuffer dst = ByteBuffer.allocate(256);
+        assertEquals(1, ring.drainTo(dst));
+        assertEquals(3, dst.getInt(0));
+    }
+
+    @Test
+    public void concurrentProducerAndConsumer() throws InterruptedException {
+        final ControlEventRing ring = new ControlEventRing(64);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int[] pointers = new int[ControlMessage.POINTER_INTS];
+                for (int i = 0; i < STRESS_MESSAGES; ) {
+                    boolean offered;
+                    if ((i & 1) == 0) {
+                        offered = ring.offer(i, i + 1, i + 2, i + 3, i + 4);
+                    } else {
+                        pointers[0] = i;
+                        pointers[1] = ~i;
+                        pointers[2] = i + 1;
+                        offered = ring.offerMultiMove(i, 1, pointers);
+                    }
+                    if (offered) {
+                        ++i;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+
+        ByteBuffer dst = ByteBuffer.allocate(ControlMessage.RECORD_SIZE * 7);
+        int expected = 0;
+        while (expected < STRESS_MESSAGES) {
+            dst.clear();
+            int count = ring.drainTo(dst);
+            dst.flip();
+            for (int k = 0; k < count; ++k) {
+                // every message is complete and in order, none is lost or duplicated
+                checkMessage(dst, expected++);
+            }
+        }
+        producer.join();
+        assertTrue(ring.isEmpty());
+    }
+
+    private static int fill(ControlEventRing ring) {
+        int accepted = 0;
+        while (ring.offer(accepted, 0, 0, 0, 0)) {
+            ++accepted;
+        }
+        return accepted;
+    }
+
+    /**
+     * Even messages are records of consecutive ints, odd ones multi moves of one pointer.
+     */
+    private static void checkMessage(ByteBuffer src, int n) {
+        if ((n & 1) == 0) {
+            for (int j = 0; j < ControlMessage.RECORD_INTS; ++j) {
+                assertEquals(n + j, src.getInt());
+            }
+        } else {
+            int[] expected = {ControlMessage.TYPE_MULTI_MOVE, n, 1, 0, 0, n, ~n, n + 1};
+            for (int value : expected) {
+                assertEquals(value, src.getInt());
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package xyz.aicy.scrcpy.net;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PlayoutDeadlineTest {
+
+    private static final int FLOOR = 20;
+    private static final int MAX = 250;
+    // one packet every 10 ms
+    private static final long PERIOD_MS = 10;
+    // clock offset between the server and the client
+    private static final long TRANSIT_MS = 1000;
+
+    @Test
+    public void steadyStreamStaysAtFloor() {
+        PlayoutDeadline deadline = new PlayoutDeadline(FLOOR, MAX);
+        for (long now = 0; now < 10_000; now += PERIOD_MS) {
+            assertTrue(onPacket(deadline, now, TRANSIT_MS));
+        }
+        assertEquals(FLOOR, deadline.getTargetDelayMs());
+    }
+
+    @Test
+    public void delayIsMeasuredFromMinTransit() {
+        PlayoutDeadline deadline = new PlayoutDeadline(FLOOR, MAX);
+        long now = steady(deadline, 0, 1000, TRANSIT_MS);
+        // 100 ms late, far above what the jitter so far allows
+        assertFalse(onPacket(deadline, now, TRANSIT_MS + 100));
+        // the next one is on time again
+        assertTrue(onPacket(deadline, now + PERIOD_MS, TRANSIT_MS));
+    }
+
+    @Test
+    public void anchorMovesDownAtOnce() {
+        PlayoutDeadline deadline = new PlayoutDeadline(FLOOR, MAX);
+        long now = steady(deadline, 0, 1000, TRANSIT_MS);
+        // a faster packet: the earlier ones were in fact delayed
+        assertTrue(onPacket(deadline, now, TRANSIT_MS - 200));
+        // the usual transit now is 200 ms late
+        assertFalse(onPacket(deadline, now + PERIOD_MS, TRANSIT_MS));
+    }
+
+    @Test
+    public void anchorMovesUpAfterTwoWindows() {
+        PlayoutDeadline deadline = new PlayoutDeadline(FLOOR, MAX);
+        // windows start at 0, 2000, 4000...
+        long now = steady(deadline, 0, 3000, TRANSIT_MS);
+        // a longer route from 3000 on: late until the windows holding the old transit are gone
+        for (; now < 8000; now += PERIOD_MS) {
+            assertFalse("at " + now, onPacket(deadline, now, TRANSIT_MS + 200));
+        }
+        // the minimum of [4000, 6000) and [6000, 8000) is the new transit
+        assertTrue(onPacket(deadline, now, TRANSIT_MS + 200));
+        assertEquals(FLOOR, deadline.getTargetDelayMs());
+    }
+
+    @Test
+    public void resyncsOnPtsJump() {
+        PlayoutDeadline deadline = new PlayoutDeadline(FLOOR, MAX);
+        long now = steady(deadline, 0, 1000, TRANSIT_MS);
+        // below the resync threshold, just late
+        assertFalse(onPacket(deadline, now, TRANSIT_MS + 4000));
+        now += PERIOD_MS;
+        // the pts jumped 10 s back: re-anchored, not late
+        assertTrue(onPacket(deadline, now, TRANSIT_MS + 10_000));
+        assertEquals(FLOOR, deadline.getTargetDelayMs());
+        assertTrue(onPacket(deadline, now + PERIOD_MS, TRANSIT_MS + 10_000));
+    }
+
+    @Test
+    public void targetIsCappedAtMax() {
+        PlayoutDeadline deadline = new PlayoutDeadline(FLOOR, MAX);
+        jittery(deadline, 400);
+        assertEquals(MAX, deadline.getTargetDelayMs());
+    }
+
+    @Test
+    public void targetFollowsJitterBetweenBounds() {
+        PlayoutDeadline deadline = new PlayoutDeadline(FLOOR, MAX);
+        // a 10 ms deviation on every packet: 4 times the jitter, less the rounding of its fixed point estimate
+        jittery(deadline, 10);
+        int target = deadline.getTargetDelayMs();
+        assertTrue("target " + target, target >= 36 && target <= 40);
+    }
+
+    @Test
+    public void maxBelowFloorIsRaisedToFloor() {
+        PlayoutDeadline deadline = new PlayoutDeadline(50, 20);
+        assertEquals(50, deadline.getTargetDelayMs());
+        jittery(deadline, 400);
+        assertEquals(50, deadline.getTargetDelayMs());
+    }
+
+    @Test
+    public void resetDropsTheAnchor() {
+        PlayoutDeadline deadline = new PlayoutDeadline(FLOOR, MAX);
+        long now = steady(deadline, 0, 1000, TRANSIT_MS);
+        jittery(deadline, 400);
+        deadline.reset();
+        assertEquals(FLOOR, deadline.getTargetDelayMs());
+        // anchored again on the first packet, however slow
+        assertTrue(onPacket(deadline, now, TRANSIT_MS + 1000));
+    }
+
+    private static boolean onPacket(PlayoutDeadline deadline, long nowMs, long transitMs) {
+        return deadline.onPacket(nowMs, (nowMs - transitMs) * 1000);
+    }
+
+    /**
+     * Feed packets of constant transit from {@code fromMs} until {@code toMs}, all in time.
+     *
+     * @return {@code toMs}
+     */
+    private static long steady(PlayoutDeadline deadline, long fromMs, long toMs, long transitMs) {
+        for (long now = fromMs; now < toMs; now += PERIOD_MS) {
+            assertTrue(onPacket(deadline, now, transitMs));
+        }
+        return toMs;
+    }
+
+    /**
+     * Feed packets whose transit alternates by {@code deviationMs}, long enough for the jitter to converge.
+     */
+    private static void jittery(PlayoutDeadline deadline, long deviationMs) {
+        for (int i = 0; i < 1000; ++i) {
+            onPacket(deadline, 20_000 + i * PERIOD_MS, TRANSIT_MS + (i & 1) * deviationMs);
+        }
+    }
+}
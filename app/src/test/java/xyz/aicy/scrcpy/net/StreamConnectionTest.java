@@ -0,0 +1,134 @@
+package xyz.aicy.scrcpy.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import xyz.aicy.scrcpy.protocol.Handshake;
+import xyz.aicy.scrcpy.protocol.MediaPacket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class StreamConnectionTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    private ServerSocketChannel mediaServer;
+    private ServerSocketChannel controlServer;
+    private SocketChannel media;
+    private SocketChannel control;
+    private StreamConnection connection;
+
+    @Before
+    public void connect() throws IOException {
+        mediaServer = ServerSocketChannel.open();
+        mediaServer.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        controlServer = ServerSocketChannel.open();
+        controlServer.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        connection = StreamConnection.open("127.0.0.1", mediaServer.socket().getLocalPort(),
+                controlServer.socket().getLocalPort(), (int) TIMEOUT_MS, new BufferPool());
+        connection.setProtocolVersion(Handshake.VERSION);
+        media = mediaServer.accept();
+        control = controlServer.accept();
+    }
+
+    @After
+    public void close() throws IOException {
+        connection.close();
+        media.close();
+        control.close();
+        mediaServer.close();
+        controlServer.close();
+    }
+
+    @Test
+    public void reassemblesFrameAroundInterleavedAudio() throws IOException {
+        byte[] frame = randomBytes(MediaPacket.MAX_CHUNK_SIZE * 2 + 100);
+        byte[] audio = randomBytes(200);
+        ByteBuffer stream = ByteBuffer.allocate(frame.length + 2 * audio.length + 5 * MediaPacket.MAX_HEADER_SIZE);
+        writeChunk(stream, 5, frame, 0, MediaPacket.MAX_CHUNK_SIZE, true);
+        writePacket(stream, MediaPacket.Type.AUDIO, 9, audio);
+        writeChunk(stream, 5, frame, MediaPacket.MAX_CHUNK_SIZE, MediaPacket.MAX_CHUNK_SIZE, true);
+        writePacket(stream, MediaPacket.Type.AUDIO, 10, audio);
+        writeChunk(stream, 5, frame, 2 * MediaPacket.MAX_CHUNK_SIZE, 100, false);
+        send(stream);
+
+        // the audio is not held back by the frame around it
+        checkPacket(nextPacket(), MediaPacket.Type.AUDIO, 9, audio);
+        checkPacket(nextPacket(), MediaPacket.Type.AUDIO, 10, audio);
+        checkPacket(nextPacket(), MediaPacket.Type.VIDEO, 5, frame);
+    }
+
+    @Test
+    public void abandonsFrameOnOtherVideoPacket() throws IOException {
+        byte[] frame = randomBytes(MediaPacket.MAX_CHUNK_SIZE * 2);
+        byte[] next = randomBytes(300);
+        ByteBuffer stream = ByteBuffer.allocate(frame.length + next.length + 3 * MediaPacket.MAX_HEADER_SIZE);
+        writeChunk(stream, 5, frame, 0, MediaPacket.MAX_CHUNK_SIZE, true);
+        // the server gave up on frame 5, its last chunk never comes
+        writePacket(stream, MediaPacket.Type.VIDEO, 6, next);
+        send(stream);
+
+        checkPacket(nextPacket(), MediaPacket.Type.VIDEO, 6, next);
+    }
+
+    private static void writeChunk(ByteBuffer stream, int sequence, byte[] frame, int offset, int length, boolean more) {
+        int frameSize = offset == 0 ? frame.length : -1;
+        MediaPacket.writeChunkHeader(stream, MediaPacket.Type.VIDEO, MediaPacket.Flag.FRAME, sequence * 1000L,
+                sequence, frameSize, more, length);
+        stream.put(frame, offset, length);
+    }
+
+    private static void writePacket(ByteBuffer stream, MediaPacket.Type type, int sequence, byte[] payload) {
+        MediaPacket.writeHeader(stream, type, MediaPacket.Flag.FRAME, sequence * 1000L, sequence, payload.length);
+        stream.put(payload);
+    }
+
+    private void send(ByteBuffer stream) throws IOException {
+        stream.flip();
+        while (stream.hasRemaining()) {
+            media.write(stream);
+        }
+    }
+
+    private PacketBuffer nextPacket() throws IOException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            PacketBuffer packet = connection.nextPacket();
+            if (packet != null) {
+                return packet;
+            }
+            connection.await(true, 100);
+        }
+        fail("no packet received");
+        return null;
+    }
+
+    private void checkPacket(PacketBuffer packet, MediaPacket.Type type, int sequence, byte[] payload) {
+        MediaPacket header = connection.header();
+        assertEquals(type, header.type);
+        assertEquals(sequence, header.sequence);
+        assertFalse(header.more);
+        assertEquals(sequence * 1000L, packet.presentationTimeUs);
+        byte[] received = new byte[packet.buffer().remaining()];
+        packet.buffer().get(received);
+        assertArrayEquals(payload, received);
+        packet.release();
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
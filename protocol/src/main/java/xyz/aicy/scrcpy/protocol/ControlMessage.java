@@ -0,0 +1,63 @@
+package xyz.aicy.scrcpy.protocol;
+
+/**
+ * Control channel framing (client to server).
+ * <p>
+ * Every message starts with a record of 5 big-endian ints:
+ * <pre>
+ *   touch       action, buttons, x, y, pointerId
+ *   key         keycode, action | repeat << 8, 0, 0, 0
+ *   multi move  {@link #TYPE_MULTI_MOVE}, buttons, pointerCount, 0, 0
+ *   key frame   {@link #TYPE_REQUEST_KEY_FRAME}, 0, 0, 0, 0
+ *   feedback    {@link #TYPE_FEEDBACK}, intervalMs, throughputKbps, queueDepth, lost
+ * </pre>
+ * A multi move record is followed by {@code pointerCount} (x, y, pointerId) triples, so that one
+ * {@code ACTION_MOVE} of all active pointers travels, and is injected, as a single message.
+ */
+public final class ControlMessage {
+
+    public static final int RECORD_INTS = 5;
+    public static final int RECORD_SIZE = RECORD_INTS * 4;
+
+    /**
+     * First int of a multi move record. Actions and keycodes are never negative.
+     */
+    public static final int TYPE_MULTI_MOVE = -1;
+
+    /**
+     * Ask the server for a key frame, e.g. after a decoder error. Only sent when the session negotiated
+     * {@link Handshake#FLAG_KEY_FRAME_REQUEST}.
+     */
+    public static final int TYPE_REQUEST_KEY_FRAME = -2;
+
+    /**
+     * Periodic reception report driving the server bitrate: over the last {@code intervalMs}, the media
+     * throughput received by the client (kbit/s), the current depth of its video decoder queue, and the number
+     * of video packets lost (never received, or dropped by the client). Only sent when the session negotiated
+     * {@link Handshake#VERSION_FEEDBACK}.
+     */
+    public static final int TYPE_FEEDBACK = -3;
+
+    public static final int POINTER_INTS = 3;
+    public static final int POINTER_SIZE = POINTER_INTS * 4;
+
+    public static final int MAX_POINTERS = 10;
+
+    private ControlMessage() {
+        // not instantiable
+    }
+
+    /**
+     * Length in ints of the message starting with {@code type}, {@code arg2} being its third int.
+     */
+    public static int messageInts(int type, int arg2) {
+        if (type == TYPE_MULTI_MOVE) {
+            return RECORD_INTS + arg2 * POINTER_INTS;
+        }
+        return RECORD_INTS;
+    }
+
+    public static boolean isValidPointerCount(int pointerCount) {
+        return pointerCount > 0 && pointerCount <= MAX_POINTERS;
+    }
+}
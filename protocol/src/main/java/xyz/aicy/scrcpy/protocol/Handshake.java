@@ -0,0 +1,256 @@
+package xyz.aicy.scrcpy.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Session handshake.
+ * <p>
+ * Right after connecting, the client sends a {@link ClientHello} on the control socket describing what it
+ * can decode. The server answers on the media socket with a {@link ServerHello} holding the parameters it
+ * chose, before the first media packet. Both messages start with the same preamble (big-endian):
+ * <pre>
+ *   int32  magic    {@link #MAGIC}
+ *   int16  version  protocol version of the sender
+ *   int16  length   size of the body following the preamble
+ * </pre>
+ * A receiver reads the fields it knows and skips the rest of the body, so newer peers may append fields.
+ * <p>
+ * Legacy clients send nothing: after a short timeout, or if the first control bytes are not the magic,
+ * the server falls back to writing the raw device size (two int32) and treats those bytes as control
+ * messages. A legacy server is recognized by the client the same way, its first int32 (the device width)
+ * can never be the magic.
+ */
+public final class Handshake {
+
+    public static final int MAGIC = 0x53435250; // "SCRP"
+
+    /**
+     * Version of the protocol implemented by this module. The session uses the lowest version of both peers.
+     */
+    public static final int VERSION = 6;
+
+    /**
+     * First version whose server accepts {@link ControlMessage#TYPE_MULTI_MOVE}, a legacy server only takes one
+     * record per pointer.
+     */
+    public static final int VERSION_MULTI_MOVE = 1;
+
+    /**
+     * First version whose media packets carry a sequence number.
+     */
+    public static final int VERSION_SEQUENCE = 2;
+
+    /**
+     * First version whose server accepts {@link ControlMessage#TYPE_REQUEST_KEY_FRAME}.
+     */
+    public static final int VERSION_KEY_FRAME_REQUEST = 3;
+
+    /**
+     * First version whose server accepts {@link ControlMessage#TYPE_FEEDBACK}.
+     */
+    public static final int VERSION_FEEDBACK = 4;
+
+    /**
+     * First version whose server announces every new video encoder with a {@link StreamInfo} packet, and may
+     * change the video size mid-session.
+     */
+    public static final int VERSION_STREAM_INFO = 5;
+
+    /**
+     * First version whose server splits large video frames into chunks, see {@link MediaPacket#FLAG_MORE}.
+     */
+    public static final int VERSION_CHUNKS = 6;
+
+    /**
+     * Version of a peer which did not perform the handshake.
+     */
+    public static final int VERSION_LEGACY = 0;
+
+    public static final int PREAMBLE_SIZE = 4 + 2 + 2;
+
+    /**
+     * Upper bound of a body length, anything bigger means the peer is not speaking this protocol.
+     */
+    public static final int MAX_BODY_SIZE = 1024;
+
+    // client hello flags
+    // favor latency over compression: realtime codec priority, no B-frames, minimal codec buffering
+    public static final int FLAG_LOW_LATENCY = 1;
+    // the client sends ControlMessage.TYPE_REQUEST_KEY_FRAME when it needs one, so periodic key frames
+    // may be replaced by intra refresh
+    public static final int FLAG_KEY_FRAME_REQUEST = 1 << 1;
+
+    // video codecs bitmask, see VideoCodec
+    public static final int VIDEO_CODEC_H264 = 1;
+    public static final int VIDEO_CODEC_H265 = 1 << 1;
+    public static final int VIDEO_CODEC_AV1 = 1 << 2;
+
+    // audio codecs bitmask
+    public static final int AUDIO_CODEC_AAC = 1;
+
+    private Handshake() {
+        // not instantiable
+    }
+
+    public static int negotiateVersion(int peerVersion) {
+        return Math.min(VERSION, peerVersion);
+    }
+
+    public static boolean acceptsMultiMove(int version) {
+        return version >= VERSION_MULTI_MOVE;
+    }
+
+    public static boolean hasSequenceNumbers(int version) {
+        return version >= VERSION_SEQUENCE;
+    }
+
+    public static boolean acceptsKeyFrameRequests(int version) {
+        return version >= VERSION_KEY_FRAME_REQUEST;
+    }
+
+    public static boolean acceptsFeedback(int version) {
+        return version >= VERSION_FEEDBACK;
+    }
+
+    public static boolean hasStreamInfo(int version) {
+        return version >= VERSION_STREAM_INFO;
+    }
+
+    public static boolean hasChunks(int version) {
+        return version >= VERSION_CHUNKS;
+    }
+
+    private static void writePreamble(ByteBuffer dst, int bodySize) {
+        dst.putInt(MAGIC);
+        dst.putShort((short) VERSION);
+        dst.putShort((short) bodySize);
+    }
+
+    /**
+     * Read the version and body length following the magic (which must already have been consumed).
+     *
+     * @return {@code {version, length}}
+     */
+    public static int[] readPreamble(ByteBuffer src) throws ProtocolException {
+        int version = src.getShort() & 0xFFFF;
+        int length = src.getShort() & 0xFFFF;
+        if (length > MAX_BODY_SIZE) {
+            throw new ProtocolException("Invalid handshake body length: " + length);
+        }
+        return new int[]{version, length};
+    }
+
+    /**
+     * Client capabilities.
+     */
+    public static final class ClientHello {
+
+        public static final int BODY_SIZE = 6 * 4;
+
+        public int version = VERSION;
+        // FLAG_* bits
+        public int flags;
+        // bitmask of VIDEO_CODEC_*
+        public int videoCodecs;
+        // bitmask of AUDIO_CODEC_*, 0 if the client does not want audio
+        public int audioCodecs;
+        // biggest video dimension the client wants to decode, 0 for no limit
+        public int maxSize;
+        // 0 for no limit
+        public int maxFps;
+        // end-to-end latency the client aims for, 0 if unknown
+        public int latencyTargetMs;
+
+        public void write(ByteBuffer dst) {
+            writePreamble(dst, BODY_SIZE);
+            dst.putInt(flags);
+            dst.putInt(videoCodecs);
+            dst.putInt(audioCodecs);
+            dst.putInt(maxSize);
+            dst.putInt(maxFps);
+            dst.putInt(latencyTargetMs);
+        }
+
+        public static ClientHello readBody(ByteBuffer src, int version, int length) throws ProtocolException {
+            if (length < BODY_SIZE) {
+                throw new ProtocolException("Client hello too short: " + length);
+            }
+            int end = src.position() + length;
+            ClientHello hello = new ClientHello();
+            hello.version = version;
+            hello.flags = src.getInt();
+            hello.videoCodecs = src.getInt();
+            hello.audioCodecs = src.getInt();
+            hello.maxSize = src.getInt();
+            hello.maxFps = src.getInt();
+            hello.latencyTargetMs = src.getInt();
+            // skip the fields added by newer versions
+            src.position(end);
+            return hello;
+        }
+    }
+
+    /**
+     * Stream parameters chosen by the server.
+     */
+    public static final class ServerHello {
+
+        public static final int BODY_SIZE = 8 * 4;
+
+        public int version = VERSION;
+        public int deviceWidth;
+        public int deviceHeight;
+        public int videoWidth;
+        public int videoHeight;
+        // one of VIDEO_CODEC_*
+        public int videoCodec;
+        // one of AUDIO_CODEC_*, 0 if audio is disabled
+        public int audioCodec;
+        public int maxFps;
+        public int bitRate;
+
+        public void write(ByteBuffer dst) {
+            writePreamble(dst, BODY_SIZE);
+            dst.putInt(deviceWidth);
+            dst.putInt(deviceHeight);
+            dst.putInt(videoWidth);
+            dst.putInt(videoHeight);
+            dst.putInt(videoCodec);
+            dst.putInt(audioCodec);
+            dst.putInt(maxFps);
+            dst.putInt(bitRate);
+        }
+
+        public static ServerHello readBody(ByteBuffer src, int version, int length) throws ProtocolException {
+            if (length < BODY_SIZE) {
+                throw new ProtocolException("Server hello too short: " + length);
+            }
+            int end = src.position() + length;
+            ServerHello hello = new ServerHello();
+            hello.version = version;
+            hello.deviceWidth = src.getInt();
+            hello.deviceHeight = src.getInt();
+            hello.videoWidth = src.getInt();
+            hello.videoHeight = src.getInt();
+            hello.videoCodec = src.getInt();
+            hello.audioCodec = src.getInt();
+            hello.maxFps = src.getInt();
+            hello.bitRate = src.getInt();
+            src.position(end);
+            return hello;
+        }
+
+        /**
+         * The reply of a legacy server, which only sends the device size.
+         */
+        public static ServerHello legacy(int deviceWidth, int deviceHeight) {
+            ServerHello hello = new ServerHello();
+            hello.version = VERSION_LEGACY;
+            hello.deviceWidth = deviceWidth;
+            hello.deviceHeight = deviceHeight;
+            hello.videoCodec = VIDEO_CODEC_H264;
+            return hello;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package xyz.aicy.scrcpy.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Media stream framing shared by the server and the client.
+ * <p>
+ * Every packet on the media socket is laid out as (big-endian):
+ * <pre>
+ *   int32  length   bytes following this field (head + payload)
+ *   int8   type     {@link Type}
+ *   int8   flag     {@link Flag}
+ *   int64  pts      presentation time in µs
+ *   int32  sequence per stream packet number, only since {@link Handshake#VERSION_SEQUENCE}
+ *   int32  size     payload size of the whole frame, in the first chunk of a split frame only
+ *   ...    payload
+ * </pre>
+ * Since {@link Handshake#VERSION_CHUNKS}, a video frame bigger than {@link #MAX_CHUNK_SIZE} is split into chunks,
+ * so that the audio packets can be written between them. Every chunk but the last has {@link #FLAG_MORE} set in
+ * its flag byte; all of them carry the type, flag, pts and sequence number of the frame.
+ * <p>
+ * Headers are encoded into and decoded from caller supplied {@link ByteBuffer}s, so
+ * neither side has to allocate anything per packet.
+ */
+public class MediaPacket {
+
+    /**
+     * Size of the leading length field.
+     */
+    public static final int LENGTH_FIELD_SIZE = 4;
+
+    /**
+     * Size of the head following the length field: type + flag + pts.
+     */
+    public static final int HEAD_LEN = 1 + 1 + 8;
+
+    /**
+     * Total bytes written in front of the payload.
+     */
+    public static final int HEADER_SIZE = LENGTH_FIELD_SIZE + HEAD_LEN;
+
+    public static final int SEQUENCE_FIELD_SIZE = 4;
+
+    public static final int FRAME_SIZE_FIELD_SIZE = 4;
+
+    /**
+     * Upper bound of the bytes written in front of the payload (first chunk of a split frame).
+     */
+    public static final int MAX_HEADER_SIZE = HEADER_SIZE + SEQUENCE_FIELD_SIZE + FRAME_SIZE_FIELD_SIZE;
+
+    /**
+     * Bit of the flag byte set on every chunk of a split frame but the last.
+     */
+    public static final byte FLAG_MORE = (byte) 0x80;
+
+    /**
+     * Max payload of a chunk: at 2 Mbit/s, an audio packet never waits more than about 65 ms behind a video frame.
+     */
+    public static final int MAX_CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * Upper bound of the length field, anything bigger means the stream is out of sync.
+     */
+    public static final int MAX_PACKET_SIZE = 4 * 1024 * 1024;
+
+    public Type type;
+    public Flag flag;
+    public long presentationTimeStamp;
+    // -1 if the framing does not carry sequence numbers
+    public int sequence = -1;
+    // whether other chunks of the same frame follow
+    public boolean more;
+
+    public static int headLength(boolean withSequence) {
+        return withSequence ? HEAD_LEN + SEQUENCE_FIELD_SIZE : HEAD_LEN;
+    }
+
+    public static int headerSize(boolean withSequence) {
+        return LENGTH_FIELD_SIZE + headLength(withSequence);
+    }
+
+    /**
+     * Write the full header (length + head) for a payload of {@code dataLength} bytes at the
+     * current position of {@code dst}.
+     */
+    public static void writeHeader(ByteBuffer dst, Type type, Flag flag, long presentationTimeStamp, int dataLength) {
+        dst.putInt(HEAD_LEN + dataLength);
+        dst.put(type.getType());
+        dst.put(flag.getFlag());
+        dst.putLong(presentationTimeStamp);
+    }
+
+    /**
+     * Same as {@link #writeHeader(ByteBuffer, Type, Flag, long, int)}, with a sequence number.
+     */
+    public static void writeHeader(ByteBuffer dst, Type type, Flag flag, long presentationTimeStamp, int sequence,
+                                   int dataLength) {
+        dst.putInt(HEAD_LEN + SEQUENCE_FIELD_SIZE + dataLength);
+        dst.put(type.getType());
+        dst.put(flag.getFlag());
+        dst.putLong(presentationTimeStamp);
+        dst.putInt(sequence);
+    }
+
+    /**
+     * Write the header of a chunk of a split frame, see {@link Handshake#VERSION_CHUNKS}.
+     *
+     * @param frameSize payload size of the whole frame for the first chunk, -1 for the following ones
+     * @param more      whether other chunks of the frame follow
+     */
+    public static void writeChunkHeader(ByteBuffer dst, Type type, Flag flag, long presentationTimeStamp, int sequence,
+                                        int frameSize, boolean more, int dataLength) {
+        boolean first = frameSize >= 0;
+        dst.putInt(HEAD_LEN + SEQUENCE_FIELD_SIZE + (first ? FRAME_SIZE_FIELD_SIZE : 0) + dataLength);
+        dst.put(type.getType());
+        dst.put(more ? (byte) (flag.getFlag() | FLAG_MORE) : flag.getFlag());
+        dst.putLong(presentationTimeStamp);
+        dst.putInt(sequence);
+        if (first) {
+            dst.putInt(frameSize);
+        }
+    }
+
+    /**
+     * Whether the flag byte of a head has {@link #FLAG_MORE} set.
+     */
+    public static boolean hasMore(byte flag) {
+        return (flag & FLAG_MORE) != 0;
+    }
+
+    /**
+     * Read the length field at the current position of {@code src}.
+     */
+    public static int readLength(ByteBuffer src) {
+        return src.getInt();
+    }
+
+    public static boolean isValidLength(int length) {
+        return length >= HEAD_LEN && length <= MAX_PACKET_SIZE;
+    }
+
+    public static boolean isValidLength(int length, boolean withSequence) {
+        return length >= headLength(withSequence) && length <= MAX_PACKET_SIZE;
+    }
+
+    /**
+     * Decode the head (type, flag, pts) at the current position of {@code src} into this instance,
+     * so that a single object can be reused for every packet.
+     */
+    public MediaPacket readHead(ByteBuffer src) {
+        type = Type.getType(src.get());
+        byte flagByte = src.get();
+        more = hasMore(flagByte);
+        flag = Flag.getFlag((byte) (flagByte & ~FLAG_MORE));
+        presentationTimeStamp = src.getLong();
+        sequence = -1;
+        return this;
+    }
+
+    /**
+     * Same as {@link #readHead(ByteBuffer)}, for a head which may carry a sequence number.
+     */
+    public MediaPacket readHead(ByteBuffer src, boolean withSequence) {
+        readHead(src);
+        if (withSequence) {
+            sequence = src.getInt();
+        }
+        return this;
+    }
+
+    public enum Type {
+
+        VIDEO((byte) 1), AUDIO((byte) 0),
+        // StreamInfo of the next video encoder, only since Handshake.VERSION_STREAM_INFO
+        INFO((byte) 2);
+
+        private static final Type[] VALUES = values();
+
+        private byte type;
+
+        Type(byte type) {
+            this.type = type;
+        }
+
+        public static Type getType(byte value) {
+            for (Type type : VALUES) {
+                if (type.getType() == value) {
+                    return type;
+                }
+            }
+
+            return null;
+        }
+
+        public byte getType() {
+            return type;
+        }
+    }
+
+    public enum Flag {
+
+        FRAME((byte) 0), KEY_FRAME((byte) 1), CONFIG((byte) 2), END((byte) 4);
+
+        private static final Flag[] VALUES = values();
+
+        private byte type;
+
+        Flag(byte type) {
+            this.type = type;
+        }
+
+        public static Flag getFlag(byte value) {
+            for (Flag type : VALUES) {
+                if (type.getFlag() == value) {
+                    return type;
+                }
+            }
+
+            return null;
+        }
+
+        public byte getFlag() {
+            return type;
+        }
+    }
+}
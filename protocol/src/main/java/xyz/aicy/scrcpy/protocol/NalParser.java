@@ -0,0 +1,226 @@
+package xyz.aicy.scrcpy.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming parser of Annex-B byte streams (H.264 / H.265).
+ * <p>
+ * NAL units are delimited by 3-byte ({@code 00 00 01}) or 4-byte ({@code 00 00 00 01}) start codes. The
+ * parser only reads the buffer with absolute gets, it never copies nor modifies it, and a single instance
+ * can be reused for every buffer:
+ * <pre>
+ *   parser.reset(buffer);
+ *   while (parser.next()) {
+ *       if (parser.getType() == NalParser.Type.SPS) { ... parser.offset(), parser.length() ... }
+ *   }
+ * </pre>
+ * Malformed input never throws: bytes before the first start code are ignored, and empty units are skipped.
+ */
+public final class NalParser {
+
+    public enum Codec {
+        H264, HEVC
+    }
+
+    /**
+     * NAL unit classes the streaming code cares about.
+     */
+    public enum Type {
+        VPS, SPS, PPS, SEI,
+        // IDR (H.264) or any IRAP picture (H.265)
+        IDR,
+        // any other coded slice
+        SLICE,
+        OTHER
+    }
+
+    private final Codec codec;
+
+    private ByteBuffer buffer;
+    private int limit;
+    // index of the next "00 00 01", or -1
+    private int nextStartCode;
+    // lower bound of the leading zero of a 4-byte start code
+    private int floor;
+
+    // current unit
+    private int unitStart;
+    private int unitOffset;
+    private int unitEnd;
+
+    public NalParser(Codec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Parse the bytes of {@code buffer} between its position and its limit. Neither is modified.
+     */
+    public void reset(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.limit = buffer.limit();
+        this.floor = buffer.position();
+        this.nextStartCode = findStartCode(buffer, floor, limit);
+        unitStart = unitOffset = unitEnd = floor;
+    }
+
+    /**
+     * Advance to the next non-empty NAL unit.
+     *
+     * @return false at the end of the buffer
+     */
+    public boolean next() {
+        while (nextStartCode >= 0) {
+            int startCode = nextStartCode;
+            unitStart = startCode > floor && buffer.get(startCode - 1) == 0 ? startCode - 1 : startCode;
+            unitOffset = startCode + 3;
+            nextStartCode = findStartCode(buffer, unitOffset, limit);
+            int end = nextStartCode < 0 ? limit : nextStartCode;
+            // trailing zeros (including the first byte of a following 4-byte start code) are not part of the unit
+            while (end > unitOffset && buffer.get(end - 1) == 0) {
+                --end;
+            }
+            unitEnd = end;
+            floor = end;
+            if (unitEnd > unitOffset) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Index of the current unit's start code in the buffer.
+     */
+    public int startCodeOffset() {
+        return unitStart;
+    }
+
+    /**
+     * Index of the current unit's first byte (its header) in the buffer.
+     */
+    public int offset() {
+        return unitOffset;
+    }
+
+    /**
+     * Length of the current unit, start code excluded.
+     */
+    public int length() {
+        return unitEnd - unitOffset;
+    }
+
+    /**
+     * Index just after the current unit in the buffer.
+     */
+    public int end() {
+        return unitEnd;
+    }
+
+    /**
+     * Raw type field of the current unit header.
+     */
+    public int getNalType() {
+        int header = buffer.get(unitOffset) & 0xFF;
+        return codec == Codec.HEVC ? (header >> 1) & 0x3F : header & 0x1F;
+    }
+
+    public Type getType() {
+        return classify(codec, getNalType());
+    }
+
+    /**
+     * Whether other pictures may reference the current unit, meaningful for slices only.
+     * <p>
+     * H.264: {@code nal_ref_idc} is not 0. H.265: the picture is not a sub-layer non-reference picture (the even
+     * types below 16), which is exact for the single temporal layer the device encoders produce.
+     */
+    public boolean isReference() {
+        int header = buffer.get(unitOffset) & 0xFF;
+        if (codec == Codec.HEVC) {
+            int nalType = (header >> 1) & 0x3F;
+            return nalType > 14 || (nalType & 1) != 0;
+        }
+        return (header & 0x60) != 0;
+    }
+
+    /**
+     * A view (no copy) of the current unit, with or without its start code.
+     */
+    public ByteBuffer slice(boolean withStartCode) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(unitEnd);
+        view.position(withStartCode ? unitStart : unitOffset);
+        return view.slice();
+    }
+
+    public static Type classify(Codec codec, int nalType) {
+        if (codec == Codec.HEVC) {
+            switch (nalType) {
+                case 32:
+                    return Type.VPS;
+                case 33:
+                    return Type.SPS;
+                case 34:
+                    return Type.PPS;
+                case 39:
+                case 40:
+                    return Type.SEI;
+                default:
+                    if (nalType >= 16 && nalType <= 21) {
+                        return Type.IDR;
+                    }
+                    return nalType <= 9 ? Type.SLICE : Type.OTHER;
+            }
+        }
+        switch (nalType) {
+            case 7:
+                return Type.SPS;
+            case 8:
+                return Type.PPS;
+            case 6:
+                return Type.SEI;
+            case 5:
+                return Type.IDR;
+            case 1:
+                return Type.SLICE;
+            default:
+                return Type.OTHER;
+        }
+    }
+
+    /**
+     * Length of the start code at {@code index} (3 or 4), or 0 if there is none.
+     */
+    public static int startCodeLength(ByteBuffer buffer, int index) {
+        int limit = buffer.limit();
+        if (index + 3 <= limit && buffer.get(index) == 0 && buffer.get(index + 1) == 0) {
+            byte b = buffer.get(index + 2);
+            if (b == 1) {
+                return 3;
+            }
+            if (b == 0 && index + 4 <= limit && buffer.get(index + 3) == 1) {
+                return 4;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Index of the first {@code 00 00 01} in [from, limit), or -1.
+     */
+    private static int findStartCode(ByteBuffer buffer, int from, int limit) {
+        int i = from;
+        while (i + 2 < limit) {
+            byte b = buffer.get(i + 2);
+            if (b > 1 || b < 0) {
+                // neither 00 nor 01, no start code can contain this byte at position 0, 1 or 2
+                i += 3;
+            } else if (b == 1 && buffer.get(i + 1) == 0 && buffer.get(i) == 0) {
+                return i;
+            } else {
+                ++i;
+            }
+        }
+        return -1;
+    }
+}
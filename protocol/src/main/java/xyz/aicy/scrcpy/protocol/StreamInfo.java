@@ -0,0 +1,54 @@
+package xyz.aicy.scrcpy.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Payload of a {@link MediaPacket.Type#INFO} packet, sent by the server each time it starts a video encoder,
+ * just before the {@link MediaPacket.Flag#CONFIG} of that encoder (big-endian):
+ * <pre>
+ *   int32  videoWidth
+ *   int32  videoHeight
+ *   int32  frameRate
+ * </pre>
+ * The video size changes on rotation, and also when the server steps its quality down or up. Only the former
+ * requires the client to lay out its surface again, touch coordinates keep the space negotiated by the
+ * handshake ({@link Handshake.ServerHello#videoWidth} x {@link Handshake.ServerHello#videoHeight}).
+ */
+public final class StreamInfo {
+
+    public static final int SIZE = 3 * 4;
+
+    public int videoWidth;
+    public int videoHeight;
+    public int frameRate;
+
+    public void write(ByteBuffer dst) {
+        dst.putInt(videoWidth);
+        dst.putInt(videoHeight);
+        dst.putInt(frameRate);
+    }
+
+    /**
+     * Decode the payload between the position and the limit of {@code src}, newer servers may append fields.
+     */
+    public static StreamInfo read(ByteBuffer src) throws ProtocolException {
+        if (src.remaining() < SIZE) {
+            throw new ProtocolException("Stream info too short: " + src.remaining());
+        }
+        StreamInfo info = new StreamInfo();
+        info.videoWidth = src.getInt();
+        info.videoHeight = src.getInt();
+        info.frameRate = src.getInt();
+        return info;
+    }
+
+    public boolean isLandscape() {
+        return videoWidth > videoHeight;
+    }
+
+    @Override
+    public String toString() {
+        return videoWidth + "x" + videoHeight + "@" + frameRate;
+    }
+}
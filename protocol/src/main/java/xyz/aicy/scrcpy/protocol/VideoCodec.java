@@ -0,0 +1,70 @@
+package xyz.aicy.scrcpy.protocol;
+
+/**
+ * Video codecs which can be negotiated by the {@link Handshake}.
+ * <p>
+ * Each codec has one bit in {@link Handshake.ClientHello#videoCodecs}; the server picks the first codec of
+ * {@link #PREFERENCE} that both sides support, and H.264 is always possible.
+ */
+public enum VideoCodec {
+
+    H264(Handshake.VIDEO_CODEC_H264, "video/avc", NalParser.Codec.H264),
+    H265(Handshake.VIDEO_CODEC_H265, "video/hevc", NalParser.Codec.HEVC),
+    // not Annex-B: the config is an AV1CodecConfigurationRecord and frames are OBUs
+    AV1(Handshake.VIDEO_CODEC_AV1, "video/av01", null);
+
+    /**
+     * Selection order: best compression at the same quality first.
+     */
+    private static final VideoCodec[] PREFERENCE = {H265, AV1, H264};
+
+    private final int mask;
+    private final String mimeType;
+    private final NalParser.Codec nalCodec;
+
+    VideoCodec(int mask, String mimeType, NalParser.Codec nalCodec) {
+        this.mask = mask;
+        this.mimeType = mimeType;
+        this.nalCodec = nalCodec;
+    }
+
+    public int getMask() {
+        return mask;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * Syntax of the Annex-B stream, or {@code null} if the codec does not use start codes.
+     */
+    public NalParser.Codec getNalCodec() {
+        return nalCodec;
+    }
+
+    /**
+     * @return the codec of a single {@code VIDEO_CODEC_*} value, H.264 if unknown (legacy peers send 0)
+     */
+    public static VideoCodec fromMask(int mask) {
+        for (VideoCodec codec : values()) {
+            if (codec.mask == mask) {
+                return codec;
+            }
+        }
+        return H264;
+    }
+
+    /**
+     * @return the preferred codec supported by both masks, H.264 if there is none
+     */
+    public static VideoCodec select(int clientMask, int serverMask) {
+        int common = clientMask & serverMask;
+        for (VideoCodec codec : PREFERENCE) {
+            if ((common & codec.mask) != 0) {
+                return codec;
+            }
+        }
+        return H264;
+    }
+}
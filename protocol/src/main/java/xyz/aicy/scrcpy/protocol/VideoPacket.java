@@ -0,0 +1,77 @@
+package xyz.aicy.scrcpy.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Video specific helpers on top of {@link MediaPacket}.
+ */
+public class VideoPacket extends MediaPacket {
+
+    public static StreamSettings getStreamSettings(VideoCodec codec, byte[] buffer) {
+        if (buffer == null) {
+            return null;
+        }
+        return getStreamSettings(codec, ByteBuffer.wrap(buffer));
+    }
+
+    /**
+     * Extract the decoder codec-specific data from the CONFIG payload between the position and the limit of
+     * {@code buffer}:
+     * <ul>
+     *   <li>H.264: csd-0 is the SPS, csd-1 the PPS;</li>
+     *   <li>H.265: csd-0 is the whole payload, which must hold a VPS, an SPS and a PPS;</li>
+     *   <li>AV1: csd-0 is the whole payload (AV1CodecConfigurationRecord).</li>
+     * </ul>
+     * The returned buffers are views of {@code buffer} (start codes included), nothing is copied.
+     *
+     * @return the parsed settings, or {@code null} if the payload is malformed
+     */
+    public static StreamSettings getStreamSettings(VideoCodec codec, ByteBuffer buffer) {
+        if (buffer == null || !buffer.hasRemaining()) {
+            return null;
+        }
+        StreamSettings streamSettings = new StreamSettings();
+        streamSettings.codec = codec;
+        if (codec.getNalCodec() == null) {
+            streamSettings.csd0 = buffer.slice();
+            return streamSettings;
+        }
+
+        ByteBuffer vps = null;
+        ByteBuffer sps = null;
+        ByteBuffer pps = null;
+        NalParser parser = new NalParser(codec.getNalCodec());
+        parser.reset(buffer);
+        while (parser.next()) {
+            NalParser.Type type = parser.getType();
+            if (type == NalParser.Type.VPS && vps == null) {
+                vps = parser.slice(true);
+            } else if (type == NalParser.Type.SPS && sps == null) {
+                sps = parser.slice(true);
+            } else if (type == NalParser.Type.PPS && pps == null) {
+                pps = parser.slice(true);
+            }
+        }
+        if (sps == null || pps == null) {
+            return null;
+        }
+        if (codec == VideoCodec.H264) {
+            streamSettings.csd0 = sps;
+            streamSettings.csd1 = pps;
+        } else {
+            if (vps == null) {
+                return null;
+            }
+            streamSettings.csd0 = buffer.slice();
+        }
+        return streamSettings;
+    }
+
+    public static class StreamSettings {
+        public VideoCodec codec;
+        // "csd-0" of the decoder format
+        public ByteBuffer csd0;
+        // "csd-1" of the decoder format, only used by H.264 (null otherwise)
+        public ByteBuffer csd1;
+    }
+}
@@ -0,0 +1,63 @@
+package xyz.aicy.scrcpy.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Parse throughput of {@link NalParser}, on a realistic access unit and on worst-case input. Only run on demand:
+ * {@code ./gradlew :protocol:test -Dbenchmark=true}.
+ */
+public class NalParserBenchmark {
+
+    private static final int FRAME_SIZE = 256 * 1024;
+    private static final long TOTAL_BYTES = 1L << 30;
+
+    @Test
+    public void throughput() {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+
+        Random random = new Random(1);
+        // an IDR access unit: parameter sets, then a big slice of incompressible bytes
+        byte[] frame = new byte[FRAME_SIZE];
+        random.nextBytes(frame);
+        byte[] prefix = {0, 0, 0, 1, 0x67, 0x42, 0, 0x1F, 0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80, 0, 0, 0, 1,
+                0x65};
+        System.arraycopy(prefix, 0, frame, 0, prefix.length);
+        report("access unit", ByteBuffer.wrap(frame));
+
+        // mostly zeros and ones: the scan cannot skip ahead, and units are tiny
+        report("start code dense", ByteBuffer.wrap(NalParserTest.randomStream(random, FRAME_SIZE)));
+    }
+
+    private static void report(String name, ByteBuffer buffer) {
+        NalParser parser = new NalParser(NalParser.Codec.H264);
+        // warm up the JIT
+        long units = parseAll(parser, buffer, 64);
+        int rounds = (int) (TOTAL_BYTES / buffer.remaining());
+        long start = System.nanoTime();
+        units += parseAll(parser, buffer, rounds);
+        long elapsedNs = System.nanoTime() - start;
+        assertTrue(units > 0);
+        double mbPerSecond = (double) rounds * buffer.remaining() / (1 << 20) / (elapsedNs / 1e9);
+        System.out.printf("NalParser %s: %.0f MiB/s%n", name, mbPerSecond);
+    }
+
+    private static long parseAll(NalParser parser, ByteBuffer buffer, int rounds) {
+        long units = 0;
+        for (int i = 0; i < rounds; ++i) {
+            parser.reset(buffer);
+            while (parser.next()) {
+                // read the header, as the streaming code does
+                if (parser.getType() != NalParser.Type.OTHER) {
+                    ++units;
+                }
+            }
+        }
+        return units;
+    }
+}
@@ -0,0 +1,256 @@
+package xyz.aicy.scrcpy.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NalParserTest {
+
+    private static final int FUZZ_ITERATIONS = 20_000;
+
+    @Test
+    public void parsesThreeAndFourByteStartCodes() {
+        // 4-byte start code, then a 3-byte one
+        ByteBuffer buffer = bytes(0, 0, 0, 1, 0x67, 0xAA, 0, 0, 1, 0x68, 0xBB);
+        NalParser parser = new NalParser(NalParser.Codec.H264);
+        parser.reset(buffer);
+
+        assertTrue(parser.next());
+        assertEquals(NalParser.Type.SPS, parser.getType());
+        assertEquals(0, parser.startCodeOffset());
+        assertEquals(4, parser.offset());
+        assertEquals(2, parser.length());
+
+        assertTrue(parser.next());
+        assertEquals(NalParser.Type.PPS, parser.getType());
+        assertEquals(6, parser.startCodeOffset());
+        assertEquals(9, parser.offset());
+        assertEquals(2, parser.length());
+
+        assertFalse(parser.next());
+    }
+
+    @Test
+    public void trimsTrailingZeros() {
+        // the leading zero of the second (4-byte) start code and the trailing zeros do not belong to the units
+        ByteBuffer buffer = bytes(0, 0, 1, 0x67, 0xAA, 0, 0, 0, 0, 1, 0x68, 0xBB, 0, 0);
+        NalParser parser = new NalParser(NalParser.Codec.H264);
+        parser.reset(buffer);
+
+        assertTrue(parser.next());
+        assertEquals(3, parser.offset());
+        assertEquals(5, parser.end());
+        assertArrayEquals(new byte[]{0, 0, 1, 0x67, (byte) 0xAA}, toArray(parser.slice(true)));
+
+        assertTrue(parser.next());
+        // the 4-byte start code starts right after the trimmed unit
+        assertEquals(6, parser.startCodeOffset());
+        assertEquals(10, parser.offset());
+        assertEquals(12, parser.end());
+        assertArrayEquals(new byte[]{0x68, (byte) 0xBB}, toArray(parser.slice(false)));
+
+        assertFalse(parser.next());
+    }
+
+    @Test
+    public void skipsLeadingGarbageAndEmptyUnits() {
+        ByteBuffer buffer = bytes(0x12, 0x34, 0, 0, 1, 0, 0, 0, 1, 0x41, 0x9A);
+        NalParser parser = new NalParser(NalParser.Codec.H264);
+        parser.reset(buffer);
+
+        assertTrue(parser.next());
+        assertEquals(9, parser.offset());
+        assertEquals(NalParser.Type.SLICE, parser.getType());
+        assertFalse(parser.next());
+    }
+
+    @Test
+    public void honorsBufferPositionAndLimit() {
+        ByteBuffer buffer = bytes(0, 0, 1, 0x67, 0xAA, 0, 0, 1, 0x68, 0xBB, 0, 0, 1, 0x65);
+        buffer.position(5);
+        buffer.limit(10);
+        NalParser parser = new NalParser(NalParser.Codec.H264);
+        parser.reset(buffer);
+
+        assertTrue(parser.next());
+        assertEquals(NalParser.Type.PPS, parser.getType());
+        assertEquals(8, parser.offset());
+        assertEquals(10, parser.end());
+        assertFalse(parser.next());
+        // the buffer itself is left untouched
+        assertEquals(5, buffer.position());
+        assertEquals(10, buffer.limit());
+    }
+
+    @Test
+    public void startCodeLength() {
+        ByteBuffer buffer = bytes(0, 0, 1, 0, 0, 0, 1, 0, 0);
+        assertEquals(3, NalParser.startCodeLength(buffer, 0));
+        assertEquals(4, NalParser.startCodeLength(buffer, 3));
+        assertEquals(3, NalParser.startCodeLength(buffer, 4));
+        assertEquals(0, NalParser.startCodeLength(buffer, 1));
+        // truncated at the end of the buffer
+        assertEquals(0, NalParser.startCodeLength(buffer, 7));
+        assertEquals(0, NalParser.startCodeLength(buffer, 9));
+    }
+
+    @Test
+    public void h264Reference() {
+        // nal_ref_idc is 3, 2, 0
+        assertTrue(firstUnitIsReference(NalParser.Codec.H264, 0x65));
+        assertTrue(firstUnitIsReference(NalParser.Codec.H264, 0x41));
+        assertFalse(firstUnitIsReference(NalParser.Codec.H264, 0x01));
+    }
+
+    @Test
+    public void hevcReference() {
+        // TRAIL_N, TSA_N, RADL_N, RASL_N, RSV_VCL_N14
+        for (int nalType : new int[]{0, 2, 6, 8, 14}) {
+            assertFalse("type " + nalType, firstUnitIsReference(NalParser.Codec.HEVC, nalType << 1));
+        }
+        // TRAIL_R, TSA_R, RASL_R, IDR_W_RADL, IDR_N_LP, CRA
+        for (int nalType : new int[]{1, 3, 9, 19, 20, 21}) {
+            assertTrue("type " + nalType, firstUnitIsReference(NalParser.Codec.HEVC, nalType << 1));
+        }
+    }
+
+    @Test
+    public void hevcTypes() {
+        NalParser parser = new NalParser(NalParser.Codec.HEVC);
+        parser.reset(bytes(0, 0, 0, 1, 32 << 1, 1, 0, 0, 1, 33 << 1, 1, 0, 0, 1, 34 << 1, 1, 0, 0, 1, 19 << 1, 1));
+        NalParser.Type[] expected = {NalParser.Type.VPS, NalParser.Type.SPS, NalParser.Type.PPS, NalParser.Type.IDR};
+        for (NalParser.Type type : expected) {
+            assertTrue(parser.next());
+            assertEquals(type, parser.getType());
+            assertEquals(2, parser.length());
+        }
+        assertFalse(parser.next());
+    }
+
+    @Test
+    public void randomBuffersMatchReference() {
+        Random random = new Random(42);
+        NalParser parser = new NalParser(NalParser.Codec.H264);
+        for (int i = 0; i < FUZZ_ITERATIONS; ++i) {
+            byte[] data = randomStream(random, random.nextInt(64));
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            int position = data.length == 0 ? 0 : random.nextInt(data.length);
+            buffer.position(position);
+            buffer.limit(position + random.nextInt(data.length - position + 1));
+            checkAgainstReference(parser, buffer);
+        }
+    }
+
+    @Test
+    public void truncatedStreamsMatchReference() {
+        byte[] stream = bytes(0, 0, 0, 1, 0x67, 0x42, 0, 0x1F, 0, 0, 0, 1, 0x68, 0xCE, 0x3C, 0x80,
+                0, 0, 1, 0x65, 0x88, 0x84, 0, 0, 3, 0, 0, 0, 1, 0x41, 0x9A, 0, 0).array();
+        for (NalParser.Codec codec : NalParser.Codec.values()) {
+            NalParser parser = new NalParser(codec);
+            for (int from = 0; from <= stream.length; ++from) {
+                for (int to = from; to <= stream.length; ++to) {
+                    ByteBuffer buffer = ByteBuffer.wrap(stream);
+                    buffer.position(from);
+                    buffer.limit(to);
+                    checkAgainstReference(parser, buffer);
+                }
+            }
+        }
+    }
+
+    private static boolean firstUnitIsReference(NalParser.Codec codec, int header) {
+        NalParser parser = new NalParser(codec);
+        parser.reset(bytes(0, 0, 1, header, 0x80));
+        assertTrue(parser.next());
+        return parser.isReference();
+    }
+
+    /**
+     * Parse {@code buffer} with the parser and with a byte-by-byte scan, the units must be the same, inside the
+     * bounds, and every accessor must work on them.
+     */
+    private static void checkAgainstReference(NalParser parser, ByteBuffer buffer) {
+        List<int[]> expected = referenceUnits(buffer);
+        parser.reset(buffer);
+        int count = 0;
+        while (parser.next()) {
+            int[] unit = expected.get(count++);
+            assertEquals(unit[0], parser.startCodeOffset());
+            assertEquals(unit[1], parser.offset());
+            assertEquals(unit[2], parser.end());
+            assertTrue(parser.startCodeOffset() >= buffer.position());
+            assertTrue(parser.end() <= buffer.limit());
+            assertTrue(parser.length() > 0);
+            assertEquals(parser.end() - parser.startCodeOffset(), parser.slice(true).remaining());
+            assertEquals(parser.length(), parser.slice(false).remaining());
+            NalParser.classify(NalParser.Codec.HEVC, parser.getNalType());
+            parser.getType();
+            parser.isReference();
+        }
+        assertEquals(expected.size(), count);
+    }
+
+    /**
+     * (start code offset, offset, end) of the units of {@code buffer}, found the slow way.
+     */
+    private static List<int[]> referenceUnits(ByteBuffer buffer) {
+        int limit = buffer.limit();
+        List<Integer> startCodes = new ArrayList<>();
+        for (int i = buffer.position(); i + 3 <= limit; ++i) {
+            if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) {
+                startCodes.add(i);
+                i += 2;
+            }
+        }
+        List<int[]> units = new ArrayList<>();
+        int floor = buffer.position();
+        for (int k = 0; k < startCodes.size(); ++k) {
+            int startCode = startCodes.get(k);
+            int start = startCode > floor && buffer.get(startCode - 1) == 0 ? startCode - 1 : startCode;
+            int offset = startCode + 3;
+            int end = k + 1 < startCodes.size() ? startCodes.get(k + 1) : limit;
+            while (end > offset && buffer.get(end - 1) == 0) {
+                --end;
+            }
+            floor = end;
+            if (end > offset) {
+                units.add(new int[]{start, offset, end});
+            }
+        }
+        return units;
+    }
+
+    /**
+     * Random bytes, mostly zeros and ones so that start codes (valid, partial, overlapping) are frequent.
+     */
+    static byte[] randomStream(Random random, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            int r = random.nextInt(8);
+            data[i] = (byte) (r < 4 ? 0 : r < 6 ? 1 : random.nextInt(256));
+        }
+        return data;
+    }
+
+    private static ByteBuffer bytes(int... values) {
+        byte[] data = new byte[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            data[i] = (byte) values[i];
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+        return data;
+    }
+}
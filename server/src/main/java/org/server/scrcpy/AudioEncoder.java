@@ -14,11 +14,10 @@ import org.server.scrcpy.audio.AudioCapture;
 import org.server.scrcpy.audio.AudioCaptureException;
 import org.server.scrcpy.audio.AudioDirectCapture;
 import org.server.scrcpy.audio.AudioSource;
-import org.server.scrcpy.model.AudioPacket;
-import org.server.scrcpy.model.MediaPacket;
+
+import xyz.aicy.scrcpy.protocol.MediaPacket;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
 
 public class AudioEncoder {
@@ -59,7 +58,10 @@ public class AudioEncoder {
         codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
     }
 
-    public void streamScreen(OutputStream outputStream) throws IOException, AudioCaptureException {
+    /**
+     * @param output the output shared with the video, which writes the encoded audio first
+     */
+    public void streamScreen(MediaOutput output) throws IOException, AudioCaptureException {
         Log.d("ScreenCapture", "audio stream screen");
 
         MediaFormat format = createFormat(bitRate);
@@ -75,7 +77,7 @@ public class AudioEncoder {
             do {
                 MediaCodec codec = createCodec();
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                    codec.setCallback(new EncoderCallback(codec, outputStream), new Handler(mediaCodecThread.getLooper()));
+                    codec.setCallback(new EncoderCallback(codec, output), new Handler(mediaCodecThread.getLooper()));
                 }
                 configure(codec, format);
 
@@ -163,11 +165,11 @@ public class AudioEncoder {
 
         private MediaCodec mediaCodec;
 
-        private OutputStream outputStream;
+        private MediaOutput output;
 
-        private EncoderCallback(MediaCodec mediaCodec, OutputStream outputStream) {
+        private EncoderCallback(MediaCodec mediaCodec, MediaOutput output) {
             this.mediaCodec = mediaCodec;
-            this.outputStream = outputStream;
+            this.output = output;
         }
 
         final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
@@ -198,36 +200,22 @@ public class AudioEncoder {
 //                end();
 //            }
             try {
-                try {
-                    ByteBuffer outputBuffer = mediaCodec.getOutputBuffer(index);
-                    if (outputBuffer != null) {
-                        outputBuffer.position(bufferInfo.offset);
-                        outputBuffer.limit(bufferInfo.offset + bufferInfo.size);
-                        byte[] b = new byte[outputBuffer.remaining()];
-                        outputBuffer.get(b);
-
-                        AudioPacket.Flag flag = AudioPacket.Flag.CONFIG;
-
-                        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == MediaCodec.BUFFER_FLAG_END_OF_STREAM) {
-                            flag = AudioPacket.Flag.END;
-                        } else if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == MediaCodec.BUFFER_FLAG_KEY_FRAME) {
-                            flag = AudioPacket.Flag.KEY_FRAME;
-                        } else if (bufferInfo.flags == 0) {
-                            flag = AudioPacket.Flag.FRAME;
-                        }
-                        AudioPacket packet = new AudioPacket(MediaPacket.Type.AUDIO, flag, bufferInfo.presentationTimeUs, b);
-                        try {
-                            synchronized (outputStream) {
-                                outputStream.write(packet.toByteArray());
-                            }
-                        } catch (IOException e) {
-                            Ln.e("output stream write failed", e);
-                            end();
-                        }
-                    }
-
-                } finally {
+                MediaPacket.Flag flag = MediaPacket.Flag.CONFIG;
+
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == MediaCodec.BUFFER_FLAG_END_OF_STREAM) {
+                    flag = MediaPacket.Flag.END;
+                } else if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == MediaCodec.BUFFER_FLAG_KEY_FRAME) {
+                    flag = MediaPacket.Flag.KEY_FRAME;
+                } else if (bufferInfo.flags == 0) {
+                    flag = MediaPacket.Flag.FRAME;
+                }
+                // the output releases the buffer once written
+                if (!output.offerAudioFrame(mediaCodec, index, bufferInfo, flag)) {
                     mediaCodec.releaseOutputBuffer(index, false);
+                    if (output.isStopped()) {
+                        // the video stream is over (or the socket is closed)
+                        end();
+                    }
                 }
             } catch (IllegalStateException e) {
                 end(4);
@@ -247,18 +235,10 @@ public class AudioEncoder {
                 Log.w("ScreenCapture", "audio output format missing csd");
                 return;
             }
-            byte[] data = new byte[csd0.remaining()];
-            csd0.get(data);
-            AudioPacket packet = new AudioPacket(MediaPacket.Type.AUDIO, AudioPacket.Flag.CONFIG, 0, data);
-            try {
-                synchronized (outputStream) {
-                    outputStream.write(packet.toByteArray());
-                }
-                Log.d("ScreenCapture", "audio CONFIG sent: csd=" + data.length);
-            } catch (IOException e) {
-                Ln.e("audio config write failed", e);
-                end();
-            }
+            byte[] config = new byte[csd0.remaining()];
+            csd0.get(config);
+            output.offerConfig(MediaPacket.Type.AUDIO, config);
+            Log.d("ScreenCapture", "audio CONFIG queued: csd=" + config.length);
         }
     }
 }
@@ -15,17 +15,27 @@ public final class Device {
 
     // private final ServiceManager serviceManager = new ServiceManager();
     private ScreenInfo screenInfo;
+    // read on every touch event without locking, replaced only when the rotation changes
+    private volatile PointScale pointScale;
     private RotationListener rotationListener;
+    // max size negotiated for the session, the coordinate space of the client input events
+    private final int inputMaxSize;
 
     private static final boolean USE_ANDROID_15_DISPLAY_POWER = false;
 
     public Device(Options options) {
-        screenInfo = computeScreenInfo(options.getMaxSize());
+        inputMaxSize = options.getMaxSize();
+        screenInfo = computeScreenInfo(inputMaxSize);
+        pointScale = new PointScale(screenInfo);
         registerRotationWatcher(new IRotationWatcher.Stub() {
             @Override
             public void onRotationChanged(int rotation) throws RemoteException {
                 synchronized (Device.this) {
-                    screenInfo = screenInfo.withRotation(rotation);
+                    ScreenInfo rotated = screenInfo.withRotation(rotation);
+                    if (rotated != screenInfo) {
+                        screenInfo = rotated;
+                        pointScale = new PointScale(rotated);
+                    }
 
                     // notify
                     if (rotationListener != null) {
@@ -44,16 +54,31 @@ public final class Device {
         return screenInfo;
     }
 
+    /**
+     * Change the size of the video (not of the input coordinate space) for the next encoder, 0 for the device size.
+     */
+    public synchronized void setVideoMaxSize(int maxSize) {
+        screenInfo = computeScreenInfo(maxSize);
+        pointScale = new PointScale(screenInfo);
+    }
+
     @SuppressWarnings("checkstyle:MagicNumber")
     private ScreenInfo computeScreenInfo(int maxSize) {
+        DisplayInfo displayInfo = ServiceManager.getDisplayManager().getDisplayInfo();
+        boolean rotated = (displayInfo.getRotation() & 1) != 0;
+        Size deviceSize = displayInfo.getSize();
+        Size videoSize = computeVideoSize(deviceSize, maxSize);
+        Size inputSize = maxSize == inputMaxSize ? videoSize : computeVideoSize(deviceSize, inputMaxSize);
+        return new ScreenInfo(deviceSize, videoSize, inputSize, rotated);
+    }
+
+    @SuppressWarnings("checkstyle:MagicNumber")
+    private static Size computeVideoSize(Size deviceSize, int maxSize) {
         // Compute the video size and the padding of the content inside this video.
         // Principle:
         // - scale down the great side of the screen to maxSize (if necessary);
         // - scale down the other side so that the aspect ratio is preserved;
         // - round this value to the nearest multiple of 8 (H.264 only accepts multiples of 8)
-        DisplayInfo displayInfo = ServiceManager.getDisplayManager().getDisplayInfo();
-        boolean rotated = (displayInfo.getRotation() & 1) != 0;
-        Size deviceSize = displayInfo.getSize();
         int w = deviceSize.getWidth() & ~7; // in case it's not a multiple of 8
         int h = deviceSize.getHeight() & ~7;
         if (maxSize > 0) {
@@ -72,14 +97,13 @@ public final class Device {
             w = portrait ? minor : major;
             h = portrait ? major : minor;
         }
-        Size videoSize = new Size(w, h);
-        return new ScreenInfo(deviceSize, videoSize, rotated);
+        return new Size(w, h);
     }
 
     public Point getPhysicalPoint(Position position) {
         @SuppressWarnings("checkstyle:HiddenField") // it hides the field on purpose, to read it with a lock
                 ScreenInfo screenInfo = getScreenInfo(); // read with synchronization
-        Size videoSize = screenInfo.getVideoSize();
+        Size videoSize = screenInfo.getInputSize();
         Size clientVideoSize = position.getScreenSize();
         if (!videoSize.equals(clientVideoSize)) {
             // The client sends a click relative to a video with wrong dimensions,
@@ -155,16 +179,42 @@ public final class Device {
     }
 
     public Point NewgetPhysicalPoint(Point point) {
-        @SuppressWarnings("checkstyle:HiddenField") // it hides the field on purpose, to read it with a lock
-                ScreenInfo screenInfo = getScreenInfo(); // read with synchronization
-        Size videoSize = screenInfo.getVideoSize();
-//        Size clientVideoSize = position.getScreenSize();
+        PointScale scale = pointScale; // immutable snapshot, no lock needed
+        return new Point(scale.scaleX(point.getX()), scale.scaleY(point.getY()));
+    }
 
-        Size deviceSize = screenInfo.getDeviceSize();
-//        Point point = position.getPoint();
-        int scaledX = point.getX() * deviceSize.getWidth() / videoSize.getWidth();
-        int scaledY = point.getY() * deviceSize.getHeight() / videoSize.getHeight();
-        return new Point(scaledX, scaledY);
+    /**
+     * Video to device coordinates mapping for the current rotation, without locking nor allocating.
+     */
+    public PointScale getPointScale() {
+        return pointScale;
+    }
+
+    /**
+     * Immutable snapshot of the input and device sizes, used to map client coordinates to the device.
+     */
+    public static final class PointScale {
+        private final int deviceWidth;
+        private final int deviceHeight;
+        private final int videoWidth;
+        private final int videoHeight;
+
+        PointScale(ScreenInfo screenInfo) {
+            Size deviceSize = screenInfo.getDeviceSize();
+            Size videoSize = screenInfo.getInputSize();
+            deviceWidth = deviceSize.getWidth();
+            deviceHeight = deviceSize.getHeight();
+            videoWidth = videoSize.getWidth();
+            videoHeight = videoSize.getHeight();
+        }
+
+        public int scaleX(int x) {
+            return x * deviceWidth / videoWidth;
+        }
+
+        public int scaleY(int y) {
+            return y * deviceHeight / videoHeight;
+        }
     }
 
 
@@ -1,13 +1,16 @@
 package org.server.scrcpy;
 
 
+import org.server.scrcpy.control.ControlReader;
+
+import xyz.aicy.scrcpy.protocol.Handshake;
+
 import java.io.Closeable;
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 public final class DroidConnection implements Closeable {
 
@@ -16,36 +19,35 @@ public final class DroidConnection implements Closeable {
 
     private Socket mediaSocket;
     private Socket controlSocket;
-    private OutputStream mediaOutputStream;
-    private DataInputStream controlInputStream;
-
-    private DroidConnection(Socket mediaSocket, Socket controlSocket) throws IOException {
-        this.mediaSocket = mediaSocket;
-        this.controlSocket = controlSocket;
-        this.mediaOutputStream = mediaSocket.getOutputStream();
-        this.controlInputStream = new DataInputStream(controlSocket.getInputStream());
+    private MediaWriter mediaWriter;
+    private ControlReader controlReader;
+
+    private DroidConnection(SocketChannel mediaChannel, SocketChannel controlChannel) throws IOException {
+        this.mediaSocket = mediaChannel.socket();
+        this.controlSocket = controlChannel.socket();
+        // the media socket is a channel so that codec buffers can be written without copies
+        this.mediaWriter = new MediaWriter(mediaChannel);
+        // control messages are decoded in place from the channel, without per-message allocations
+        this.controlReader = new ControlReader(controlChannel);
     }
 
-    /**
-     * 创建一个可重用地址的 ServerSocket
-     */
-    private static ServerSocket createServerSocket(int port) throws IOException {
-        ServerSocket serverSocket = new ServerSocket();
-        serverSocket.setReuseAddress(true);
-        serverSocket.bind(new InetSocketAddress(port));
-        return serverSocket;
+    private static ServerSocketChannel createServerChannel(int port) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        return serverChannel;
     }
 
     public static DroidConnection open(String ip) throws IOException {
-        ServerSocket mediaServer = null;
-        ServerSocket controlServer = null;
+        ServerSocketChannel mediaServer = null;
+        ServerSocketChannel controlServer = null;
         int retryCount = 5;  // 增加重试次数
         IOException lastException = null;
         
         while (retryCount > 0) {
             try {
-                mediaServer = createServerSocket(MEDIA_PORT);
-                controlServer = createServerSocket(CONTROL_PORT);
+                mediaServer = createServerChannel(MEDIA_PORT);
+                controlServer = createServerChannel(CONTROL_PORT);
                 break;  // 成功创建，跳出循环
             } catch (IOException e) {
                 lastException = e;
@@ -88,12 +90,14 @@ public final class DroidConnection implements Closeable {
         
         try {
             writeReadyMarker();
-            Socket media = mediaServer.accept();
+            SocketChannel mediaChannel = mediaServer.accept();
+            Socket media = mediaChannel.socket();
             if (!media.getInetAddress().toString().equals(ip)) {
                 Ln.w("media socket connect address != " + ip);
             }
 
-            Socket control = controlServer.accept();
+            SocketChannel controlChannel = controlServer.accept();
+            Socket control = controlChannel.socket();
             if (!control.getInetAddress().toString().equals(ip)) {
                 Ln.w("control socket connect address != " + ip);
             }
@@ -101,7 +105,7 @@ public final class DroidConnection implements Closeable {
             if (media.getInetAddress().toString().isEmpty() || control.getInetAddress().toString().isEmpty()) {
                 throw new IOException("Invalid socket address");
             }
-            return new DroidConnection(media, control);
+            return new DroidConnection(mediaChannel, controlChannel);
         } finally {
             try {
                 mediaServer.close();
@@ -141,32 +145,42 @@ public final class DroidConnection implements Closeable {
         }
     }
 
-    public OutputStream getOutputStream() {
-        return mediaOutputStream;
+    public MediaWriter getMediaWriter() {
+        return mediaWriter;
     }
 
 
+    /**
+     * Wait for the client hello, see {@link ControlReader#readClientHello(long)}.
+     *
+     * @return the hello, or {@code null} for a legacy client
+     */
+    public Handshake.ClientHello receiveClientHello(long timeoutMs) throws IOException {
+        return controlReader.readClientHello(timeoutMs);
+    }
+
     /**
      * TODO 需要根据原版 scrcpy 进行改造消息传送，目前仅支持 触控消息
      *
-     * @return
+     * @return the record, reused (overwritten) by the next call
      * @throws IOException
      */
     public int[] NewreceiveControlEvent() throws IOException {
+        return controlReader.next();
+    }
 
-        byte[] buf = new byte[20];
-        // 使用 readFully 确保读取完整的 20 字节，避免 TCP 分片导致数据不完整
-        controlInputStream.readFully(buf, 0, 20);
-
-        final int[] array = new int[buf.length / 4];
-        for (int i = 0; i < array.length; i++)
-            array[i] = (((int) (buf[i * 4]) << 24) & 0xFF000000) |
-                    (((int) (buf[i * 4 + 1]) << 16) & 0xFF0000) |
-                    (((int) (buf[i * 4 + 2]) << 8) & 0xFF00) |
-                    ((int) (buf[i * 4 + 3]) & 0xFF);
-        return array;
-
+    /**
+     * Read the (x, y, pointerId) triples following a {@link xyz.aicy.scrcpy.protocol.ControlMessage#TYPE_MULTI_MOVE} record.
+     */
+    public void receivePointers(int pointerCount, int[] pointers) throws IOException {
+        controlReader.readPointers(pointerCount, pointers);
+    }
 
+    /**
+     * Whether the next control message has already been received, i.e. reading it will not block.
+     */
+    public boolean hasQueuedControlEvent() {
+        return controlReader.hasQueuedMessage();
     }
 
 }
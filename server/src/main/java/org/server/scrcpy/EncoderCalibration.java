@@ -0,0 +1,149 @@
+package org.server.scrcpy;
+
+import android.graphics.Canvas;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.view.Surface;
+
+import xyz.aicy.scrcpy.protocol.VideoCodec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Short encode latency benchmark of the hardware encoders of each codec.
+ * <p>
+ * Each encoder gets {@link #FRAMES} frames drawn on its input surface, one at a time, and the time from
+ * posting a frame to dequeuing its output is measured. The encoder with the lowest median latency is stored
+ * by {@link EncoderCatalog#saveCalibration} for the device model, so calibrating once is enough.
+ */
+public final class EncoderCalibration {
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int BIT_RATE = 8_000_000;
+    private static final int FRAME_RATE = 60;
+
+    private static final int WARMUP_FRAMES = 5;
+    private static final int FRAMES = 30;
+    // an encoder slower than this is useless for mirroring anyway
+    private static final long FRAME_TIMEOUT_US = 200_000;
+
+    private EncoderCalibration() {
+        // not instantiable
+    }
+
+    public static void calibrate(EncoderCatalog catalog) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            // lockHardwareCanvas() is required to draw into an encoder input surface
+            Ln.w("Encoder calibration requires Android 6.0");
+            return;
+        }
+        for (VideoCodec codec : VideoCodec.values()) {
+            List<EncoderCatalog.Entry> encoders = new ArrayList<>();
+            for (EncoderCatalog.Entry encoder : catalog.getEncoders(codec)) {
+                // software encoders are only a fallback, they are never worth the CPU load
+                if (encoder.isHardware()) {
+                    encoders.add(encoder);
+                }
+            }
+            if (encoders.size() < 2) {
+                // nothing to choose from
+                continue;
+            }
+            EncoderCatalog.Entry best = null;
+            long bestLatencyUs = Long.MAX_VALUE;
+            for (EncoderCatalog.Entry encoder : encoders) {
+                long latencyUs = measure(encoder);
+                Ln.i("Calibration: " + encoder.getName() + " median latency "
+                        + (latencyUs < 0 ? "n/a" : latencyUs + "us"));
+                if (latencyUs >= 0 && latencyUs < bestLatencyUs) {
+                    best = encoder;
+                    bestLatencyUs = latencyUs;
+                }
+            }
+            if (best != null) {
+                Ln.i("Calibration: selected " + best.getName() + " for " + codec);
+                EncoderCatalog.saveCalibration(codec, best.getName());
+            }
+        }
+        EncoderCatalog.markCalibrated();
+    }
+
+    /**
+     * @return the median latency of {@code encoder} in microseconds, or -1 if it failed
+     */
+    private static long measure(EncoderCatalog.Entry encoder) {
+        MediaFormat format = MediaFormat.createVideoFormat(encoder.getCodec().getMimeType(), WIDTH, HEIGHT);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+
+        MediaCodec codec = null;
+        Surface surface = null;
+        boolean started = false;
+        try {
+            codec = MediaCodec.createByCodecName(encoder.getName());
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            surface = codec.createInputSurface();
+            codec.start();
+            started = true;
+
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            long[] latencies = new long[FRAMES];
+            for (int i = 0; i < WARMUP_FRAMES + FRAMES; ++i) {
+                Canvas canvas = surface.lockHardwareCanvas();
+                // a different content each time, so that no frame can be skipped as a repeat
+                canvas.drawColor(0xFF000000 | (i * 0x0F1F2F));
+                long postUs = System.nanoTime() / 1000;
+                surface.unlockCanvasAndPost(canvas);
+                if (!awaitFrame(codec, info, postUs + FRAME_TIMEOUT_US)) {
+                    return -1;
+                }
+                if (i >= WARMUP_FRAMES) {
+                    latencies[i - WARMUP_FRAMES] = System.nanoTime() / 1000 - postUs;
+                }
+            }
+            Arrays.sort(latencies);
+            return latencies[FRAMES / 2];
+        } catch (IOException | RuntimeException e) {
+            Ln.w("Calibration of " + encoder.getName() + " failed: " + e.getMessage());
+            return -1;
+        } finally {
+            if (codec != null) {
+                if (started) {
+                    codec.stop();
+                }
+                codec.release();
+            }
+            if (surface != null) {
+                surface.release();
+            }
+        }
+    }
+
+    /**
+     * Drain the encoder until a (non-config) frame is output or {@code deadlineUs} is reached.
+     */
+    private static boolean awaitFrame(MediaCodec codec, MediaCodec.BufferInfo info, long deadlineUs) {
+        while (true) {
+            long timeoutUs = deadlineUs - System.nanoTime() / 1000;
+            if (timeoutUs <= 0) {
+                return false;
+            }
+            int index = codec.dequeueOutputBuffer(info, timeoutUs);
+            if (index >= 0) {
+                boolean config = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+                codec.releaseOutputBuffer(index, false);
+                if (!config && info.size > 0) {
+                    return true;
+                }
+            }
+        }
+    }
+}
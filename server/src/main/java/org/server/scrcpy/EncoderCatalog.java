@@ -0,0 +1,347 @@
+package org.server.scrcpy;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Range;
+
+import xyz.aicy.scrcpy.protocol.VideoCodec;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * The video encoders of the device, with the capabilities that matter for screen mirroring.
+ * <p>
+ * {@code MediaCodec.createEncoderByType()} returns whatever the platform lists first, which on some devices is
+ * a software encoder. Encoders are ordered here hardware first (in platform order), and the encoder to use is,
+ * in this order: the one requested on the command line, the calibration winner for this device model (see
+ * {@link EncoderCalibration}), the first hardware encoder.
+ */
+public final class EncoderCatalog {
+
+    private static final String CALIBRATION_FILE = "/data/local/tmp/scrcpy-encoders.properties";
+
+    public static final class Entry {
+        private final String name;
+        private final VideoCodec codec;
+        private final boolean hardware;
+        private final int maxWidth;
+        private final int maxHeight;
+        private final int maxFps;
+        private final int[] profiles;
+        // level of each profile, same indexes
+        private final int[] levels;
+        private final boolean intraRefresh;
+
+        Entry(String name, VideoCodec codec, boolean hardware, int maxWidth, int maxHeight, int maxFps, int[] profiles,
+              int[] levels, boolean intraRefresh) {
+            this.name = name;
+            this.codec = codec;
+            this.hardware = hardware;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.maxFps = maxFps;
+            this.profiles = profiles;
+            this.levels = levels;
+            this.intraRefresh = intraRefresh;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public VideoCodec getCodec() {
+            return codec;
+        }
+
+        public boolean isHardware() {
+            return hardware;
+        }
+
+        public int getMaxWidth() {
+            return maxWidth;
+        }
+
+        public int getMaxHeight() {
+            return maxHeight;
+        }
+
+        public int getMaxFps() {
+            return maxFps;
+        }
+
+        public int[] getProfiles() {
+            return profiles;
+        }
+
+        /**
+         * Whether the encoder supports {@code KEY_INTRA_REFRESH_PERIOD}.
+         */
+        public boolean isIntraRefreshSupported() {
+            return intraRefresh;
+        }
+
+        /**
+         * @return the highest level supported with {@code profile}, or -1 if the profile is not supported
+         */
+        public int getMaxLevel(int profile) {
+            int level = -1;
+            for (int i = 0; i < profiles.length; ++i) {
+                if (profiles[i] == profile) {
+                    level = Math.max(level, levels[i]);
+                }
+            }
+            return level;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(name).append(" (").append(codec)
+                    .append(hardware ? ", hw" : ", sw");
+            if (maxWidth > 0) {
+                builder.append(", max ").append(maxWidth).append("x").append(maxHeight);
+            }
+            if (maxFps > 0) {
+                builder.append(", ").append(maxFps).append("fps");
+            }
+            if (intraRefresh) {
+                builder.append(", intra-refresh");
+            }
+            builder.append(", profiles=[");
+            for (int i = 0; i < profiles.length; ++i) {
+                if (i > 0) {
+                    builder.append(",");
+                }
+                builder.append(profiles[i]);
+            }
+            return builder.append("])").toString();
+        }
+    }
+
+    private final List<Entry> encoders;
+
+    private EncoderCatalog(List<Entry> encoders) {
+        this.encoders = encoders;
+    }
+
+    public static EncoderCatalog load() {
+        List<Entry> hardware = new ArrayList<>();
+        List<Entry> software = new ArrayList<>();
+        MediaCodecInfo[] codecInfos;
+        try {
+            codecInfos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        } catch (RuntimeException e) {
+            Ln.w("Cannot list encoders: " + e.getMessage());
+            codecInfos = new MediaCodecInfo[0];
+        }
+        for (MediaCodecInfo info : codecInfos) {
+            if (!info.isEncoder()) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                VideoCodec codec = findCodec(type);
+                if (codec == null) {
+                    continue;
+                }
+                Entry entry = createEntry(info, codec);
+                (entry.isHardware() ? hardware : software).add(entry);
+            }
+        }
+        // the platform order is kept within each group
+        hardware.addAll(software);
+        return new EncoderCatalog(Collections.unmodifiableList(hardware));
+    }
+
+    private static VideoCodec findCodec(String mimeType) {
+        for (VideoCodec codec : VideoCodec.values()) {
+            if (codec.getMimeType().equalsIgnoreCase(mimeType)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    private static Entry createEntry(MediaCodecInfo info, VideoCodec codec) {
+        int maxWidth = 0;
+        int maxHeight = 0;
+        int maxFps = 0;
+        int[] profiles = new int[0];
+        int[] levels = new int[0];
+        boolean intraRefresh = false;
+        try {
+            MediaCodecInfo.CodecCapabilities capabilities = info.getCapabilitiesForType(codec.getMimeType());
+            MediaCodecInfo.VideoCapabilities video = capabilities.getVideoCapabilities();
+            if (video != null) {
+                maxWidth = upper(video.getSupportedWidths());
+                maxHeight = upper(video.getSupportedHeights());
+                maxFps = upper(video.getSupportedFrameRates());
+            }
+            intraRefresh = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                    && capabilities.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh);
+            MediaCodecInfo.CodecProfileLevel[] profileLevels = capabilities.profileLevels;
+            if (profileLevels != null) {
+                profiles = new int[profileLevels.length];
+                levels = new int[profileLevels.length];
+                for (int i = 0; i < profileLevels.length; ++i) {
+                    profiles[i] = profileLevels[i].profile;
+                    levels[i] = profileLevels[i].level;
+                }
+            }
+        } catch (RuntimeException e) {
+            // some vendor codecs throw while reporting their capabilities, keep the entry anyway
+            Ln.w("Cannot read capabilities of " + info.getName() + ": " + e.getMessage());
+        }
+        return new Entry(info.getName(), codec, isHardware(info), maxWidth, maxHeight, maxFps, profiles, levels,
+                intraRefresh);
+    }
+
+    private static int upper(Range<Integer> range) {
+        return range == null || range.getUpper() == null ? 0 : range.getUpper();
+    }
+
+    private static boolean isHardware(MediaCodecInfo info) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return info.isHardwareAccelerated();
+        }
+        String name = info.getName().toLowerCase(Locale.US);
+        return !name.startsWith("omx.google.") && !name.startsWith("c2.android.");
+    }
+
+    public List<Entry> getEncoders() {
+        return encoders;
+    }
+
+    /**
+     * @return the encoders of {@code codec}, hardware first
+     */
+    public List<Entry> getEncoders(VideoCodec codec) {
+        List<Entry> result = new ArrayList<>();
+        for (Entry entry : encoders) {
+            if (entry.getCodec() == codec) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Bitmask of the {@link VideoCodec}s having a hardware encoder, H.264 is always included.
+     */
+    public int getSupportedCodecs() {
+        int mask = VideoCodec.H264.getMask();
+        for (Entry entry : encoders) {
+            // a software HEVC/AV1 encoder is far too slow for screen mirroring
+            if (entry.isHardware()) {
+                mask |= entry.getCodec().getMask();
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Choose the encoder of {@code codec}.
+     *
+     * @param requestedName encoder name given on the command line, or {@code null}
+     * @return the encoder, or {@code null} if the device has none for this codec
+     */
+    public Entry select(VideoCodec codec, String requestedName) {
+        List<Entry> candidates = getEncoders(codec);
+        if (requestedName != null) {
+            Entry requested = find(candidates, requestedName);
+            if (requested != null) {
+                return requested;
+            }
+            Ln.w("Encoder " + requestedName + " not found for " + codec + ", selecting one automatically");
+        }
+        Entry calibrated = find(candidates, loadCalibration().getProperty(calibrationKey(codec)));
+        if (calibrated != null) {
+            return calibrated;
+        }
+        return candidates.isEmpty() ? null : candidates.get(0);
+    }
+
+    private static Entry find(List<Entry> entries, String name) {
+        if (name == null) {
+            return null;
+        }
+        for (Entry entry : entries) {
+            if (entry.getName().equalsIgnoreCase(name)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    public String buildListMessage() {
+        StringBuilder builder = new StringBuilder("List of video encoders:");
+        if (encoders.isEmpty()) {
+            builder.append("\n    (none)");
+        }
+        for (Entry entry : encoders) {
+            builder.append("\n    ").append(entry);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Remember {@code encoderName} as the fastest encoder of {@code codec} for this device model.
+     */
+    static void saveCalibration(VideoCodec codec, String encoderName) {
+        Properties properties = loadCalibration();
+        properties.setProperty(calibrationKey(codec), encoderName);
+        storeCalibration(properties);
+    }
+
+    /**
+     * Whether the encoders of this device model have been calibrated, even if no encoder was stored (a single
+     * hardware encoder per codec, or all of them failed).
+     */
+    static boolean isCalibrated() {
+        return loadCalibration().getProperty(calibratedKey()) != null;
+    }
+
+    static void markCalibrated() {
+        Properties properties = loadCalibration();
+        properties.setProperty(calibratedKey(), "true");
+        storeCalibration(properties);
+    }
+
+    private static void storeCalibration(Properties properties) {
+        try (OutputStream out = new FileOutputStream(CALIBRATION_FILE)) {
+            properties.store(out, "scrcpy encoder calibration");
+        } catch (IOException e) {
+            Ln.w("Cannot save encoder calibration: " + e.getMessage());
+        }
+    }
+
+    private static Properties loadCalibration() {
+        Properties properties = new Properties();
+        File file = new File(CALIBRATION_FILE);
+        if (file.isFile()) {
+            try (InputStream in = new FileInputStream(file)) {
+                properties.load(in);
+            } catch (IOException e) {
+                Ln.w("Cannot read encoder calibration: " + e.getMessage());
+            }
+        }
+        return properties;
+    }
+
+    private static String calibrationKey(VideoCodec codec) {
+        return Build.MODEL + "/" + codec.getMimeType();
+    }
+
+    private static String calibratedKey() {
+        return Build.MODEL + "/calibrated";
+    }
+}
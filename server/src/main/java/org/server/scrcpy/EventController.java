@@ -14,6 +14,8 @@ import org.server.scrcpy.control.PointersState;
 import org.server.scrcpy.control.Pointer;
 import org.server.scrcpy.device.Point;
 
+import xyz.aicy.scrcpy.protocol.ControlMessage;
+
 import java.io.IOException;
 
 
@@ -28,6 +30,11 @@ public class EventController {
 
     private final PointersState pointersState = new PointersState();
 
+    // 最近一次多点 MOVE：(x, y, pointerId)
+    private final int[] movePointers = new int[ControlMessage.MAX_POINTERS * ControlMessage.POINTER_INTS];
+    private int movePointerCount;
+    private int moveButtons;
+
     private float then;
     private boolean hit = false;
     private boolean proximity = false;
@@ -77,6 +84,33 @@ public class EventController {
         while (true) {
             //           handleEvent();
             int[] buffer = connection.NewreceiveControlEvent();
+            if (buffer != null && buffer[0] == ControlMessage.TYPE_MULTI_MOVE) {
+                receiveMultiMove(buffer);
+                buffer = null;
+                // 仍在队列中的连续 MOVE 只需注入最新的位置
+                while (connection.hasQueuedControlEvent()) {
+                    int[] next = connection.NewreceiveControlEvent();
+                    if (next[0] != ControlMessage.TYPE_MULTI_MOVE) {
+                        buffer = next;
+                        break;
+                    }
+                    receiveMultiMove(next);
+                }
+                injectMultiMove();
+            }
+            if (buffer != null && buffer[0] == ControlMessage.TYPE_FEEDBACK) {
+                if (screenEncoder != null) {
+                    screenEncoder.onClientFeedback(buffer[1], buffer[2], buffer[3], buffer[4]);
+                }
+                buffer = null;
+            }
+            if (buffer != null && buffer[0] == ControlMessage.TYPE_REQUEST_KEY_FRAME) {
+                Ln.i("Received key frame request");
+                if (screenEncoder != null) {
+                    screenEncoder.requestKeyFrame();
+                }
+                buffer = null;
+            }
             if (buffer != null) {
                 long now = SystemClock.uptimeMillis();
                 if (buffer[2] == 0 && buffer[3] == 0) {
@@ -169,9 +203,8 @@ public class EventController {
 //                        injectEvent(event);
 
                         // 为支持多点触控，新增 buffer[4] 这个字节
-                        Point point = new Point(buffer[2], buffer[3]);
-                        Point newpoint = device.NewgetPhysicalPoint(point);
-                        injectTouch(action, buffer[4], newpoint, buffer[1]);
+                        Device.PointScale scale = device.getPointScale();
+                        injectTouch(action, buffer[4], scale.scaleX(buffer[2]), scale.scaleY(buffer[3]), buffer[1]);
                     }
                 }
             }
@@ -184,7 +217,7 @@ public class EventController {
      * TODO： 后续需要参照原版 scrcpy 实现鼠标操作
      * 详情参考：scrcpy/server/src/main/java/com/genymobile/scrcpy/control/Controller.java
      */
-    private boolean injectTouch(int action, long pointerId, Point point, int button) {
+    private boolean injectTouch(int action, long pointerId, int x, int y, int button) {
         long now = SystemClock.uptimeMillis();
 
         int pointerIndex = pointersState.getPointerIndex(pointerId);
@@ -193,7 +226,7 @@ public class EventController {
             return false;
         }
         Pointer pointer = pointersState.get(pointerIndex);
-        pointer.setPoint(point);
+        pointer.setPoint(x, y);
 //        pointer.setPressure(pressure);
         pointer.setPressure(1.0f);
 
@@ -304,6 +337,38 @@ public class EventController {
         return injectEvent(event);
     }
 
+    private void receiveMultiMove(int[] record) throws IOException {
+        moveButtons = record[1];
+        movePointerCount = record[2];
+        connection.receivePointers(movePointerCount, movePointers);
+    }
+
+    /**
+     * Inject the last received multi move as a single ACTION_MOVE carrying every pointer.
+     */
+    private boolean injectMultiMove() {
+        long now = SystemClock.uptimeMillis();
+        Device.PointScale scale = device.getPointScale();
+        for (int i = 0; i < movePointerCount; ++i) {
+            int offset = i * ControlMessage.POINTER_INTS;
+            int pointerIndex = pointersState.getPointerIndex(movePointers[offset + 2]);
+            if (pointerIndex == -1) {
+                Ln.w("Too many pointers for touch event");
+                return false;
+            }
+            Pointer pointer = pointersState.get(pointerIndex);
+            pointer.setPoint(scale.scaleX(movePointers[offset]), scale.scaleY(movePointers[offset + 1]));
+            pointer.setPressure(1.0f);
+            pointer.setUp(false);
+            pointerProperties[pointerIndex].toolType = MotionEvent.TOOL_TYPE_FINGER;
+        }
+
+        int pointerCount = pointersState.update(pointerProperties, pointerCoords);
+        MotionEvent event = MotionEvent.obtain(lastMouseDown, now, MotionEvent.ACTION_MOVE, pointerCount, pointerProperties, pointerCoords, 0,
+                moveButtons, 1f, 1f, 0, 0, InputDevice.SOURCE_TOUCHSCREEN, 0);
+        return injectEvent(event);
+    }
+
     private boolean injectKeyEvent(int action, int keyCode, int repeat, int metaState) {
         long now = SystemClock.uptimeMillis();
         KeyEvent event = new KeyEvent(now, now, action, keyCode, repeat, metaState, KeyCharacterMap.VIRTUAL_KEYBOARD, 0, 0,
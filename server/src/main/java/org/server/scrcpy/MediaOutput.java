@@ -0,0 +1,486 @@
+package org.server.scrcpy;
+
+import android.media.MediaCodec;
+
+import xyz.aicy.scrcpy.protocol.MediaPacket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The only writer of the media socket.
+ * <p>
+ * The codec callback threads queue their encoded buffers here and never block: a dedicated thread writes
+ * them to the socket, then releases them to their codec. Buffers are queued as is (no copy), so the number of
+ * queued frames of a stream is kept below the number of output buffers of an encoder. Configuration packets
+ * (CONFIG, INFO) are small copies and are never dropped.
+ * <p>
+ * Audio is written first: it is small, and late audio is audible. Under back-pressure the video is degraded,
+ * stalest first:
+ * <ul>
+ *     <li>a key frame makes the queued video frames useless, they are dropped;</li>
+ *     <li>when the video queue is full, the queued frames which no other frame references are dropped;</li>
+ *     <li>if there is none, the new frame is dropped, and so is every following frame until the next key frame
+ *     (a frame without its reference cannot be decoded), which is requested from the encoder.</li>
+ * </ul>
+ * When the audio queue is full, the oldest audio frame is dropped.
+ * <p>
+ * A packet takes its sequence number when it is offered, so a dropped one leaves a gap which the client counts
+ * as a loss.
+ * <p>
+ * If the client reassembles chunks ({@link MediaWriter#isChunked()}), a video frame bigger than
+ * {@link MediaPacket#MAX_CHUNK_SIZE} is written one chunk at a time, and the queued audio is written between
+ * its chunks. A frame whose first chunk is written is never dropped, it is always completed.
+ */
+public final class MediaOutput {
+
+    public interface Listener {
+        void onKeyFrameNeeded();
+
+        void onWriteError(IOException e);
+    }
+
+    private static final int MAX_QUEUED_VIDEO_FRAMES = 3;
+    private static final int MAX_QUEUED_AUDIO_FRAMES = 4;
+    private static final int MAX_QUEUED_CONFIGS = 4;
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    private final MediaWriter writer;
+    private final Listener listener;
+
+    private final PacketQueue video = new PacketQueue(MediaPacket.Type.VIDEO, MAX_QUEUED_VIDEO_FRAMES + MAX_QUEUED_CONFIGS);
+    private final PacketQueue audio = new PacketQueue(MediaPacket.Type.AUDIO, MAX_QUEUED_AUDIO_FRAMES + MAX_QUEUED_CONFIGS);
+
+    // codec of the packet being written, its buffers must not be released meanwhile
+    private MediaCodec writing;
+    // queue whose head frame has a chunk being written, the head stays queued meanwhile
+    private PacketQueue chunking;
+    // video encoder being torn down, its late outputs are dropped
+    private MediaCodec retired;
+    private boolean dropUntilKeyFrame;
+    private boolean stopped;
+    private int droppedVideoFrames;
+    private int droppedAudioFrames;
+
+    private final Thread thread;
+
+    public MediaOutput(MediaWriter writer, Listener listener) {
+        this.writer = writer;
+        this.listener = listener;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeLoop();
+                } catch (IOException e) {
+                    // nothing can be written any more, give the buffers back to their codecs
+                    close();
+                    listener.onWriteError(e);
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }
+        }, "media-output");
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public synchronized boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Video codec thread: queue the output buffer {@code index} of {@code codec}.
+     *
+     * @param reference whether other frames may reference this one
+     * @return false if the frame is dropped, the caller must then release the buffer
+     */
+    public synchronized boolean offerVideoFrame(MediaCodec codec, int index, MediaCodec.BufferInfo info,
+                                                MediaPacket.Flag flag, boolean reference) {
+        if (stopped || codec == retired) {
+            return false;
+        }
+        // numbered even if dropped, the client counts the gap as a loss
+        int sequence = writer.nextSequence(MediaPacket.Type.VIDEO);
+        boolean keyFrame = flag == MediaPacket.Flag.KEY_FRAME;
+        if (keyFrame) {
+            // nothing after a key frame references the frames before it
+            droppedVideoFrames += video.drop(null, false);
+            dropUntilKeyFrame = false;
+        } else if (dropUntilKeyFrame) {
+            ++droppedVideoFrames;
+            return false;
+        }
+        if (video.frames == MAX_QUEUED_VIDEO_FRAMES || video.isFull()) {
+            int dropped = video.drop(null, true);
+            if (dropped == 0) {
+                ++droppedVideoFrames;
+                dropUntilKeyFrame = true;
+                listener.onKeyFrameNeeded();
+                return false;
+            }
+            droppedVideoFrames += dropped;
+        }
+        video.pushFrame(codec, index, info, flag, reference, sequence);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Audio codec thread: queue the output buffer {@code index} of {@code codec}.
+     *
+     * @return false if the frame is dropped, the caller must then release the buffer
+     */
+    public synchronized boolean offerAudioFrame(MediaCodec codec, int index, MediaCodec.BufferInfo info,
+                                                MediaPacket.Flag flag) {
+        if (stopped) {
+            return false;
+        }
+        int sequence = writer.nextSequence(MediaPacket.Type.AUDIO);
+        if (audio.frames == MAX_QUEUED_AUDIO_FRAMES || audio.isFull()) {
+            if (!audio.dropOldestFrame()) {
+                return false;
+            }
+            ++droppedAudioFrames;
+        }
+        audio.pushFrame(codec, index, info, flag, true, sequence);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Queue a configuration packet, written after the packets of the same stream already queued.
+     */
+    public synchronized void offerConfig(MediaPacket.Type type, byte[] config) {
+        if (stopped) {
+            return;
+        }
+        int sequence = writer.nextSequence(type);
+        PacketQueue queue = type == MediaPacket.Type.AUDIO ? audio : video;
+        if (queue.isFull()) {
+            int dropped = queue.drop(null, false);
+            if (dropped == 0) {
+                Ln.w("Output queue full of configuration packets, " + type + " config dropped");
+                return;
+            }
+            if (queue == video) {
+                droppedVideoFrames += dropped;
+                dropUntilKeyFrame = true;
+                listener.onKeyFrameNeeded();
+            } else {
+                droppedAudioFrames += dropped;
+            }
+        }
+        queue.pushConfig(type, config, sequence);
+        notifyAll();
+    }
+
+    /**
+     * Encoding thread: drop the pending outputs of the video encoder {@code codec}, which is about to be
+     * released, and wait until none of its buffers is being written.
+     */
+    public synchronized void retire(MediaCodec codec) throws InterruptedException {
+        retired = codec;
+        video.drop(codec, false);
+        while (writing == codec || video.isSplitting(codec)) {
+            wait();
+        }
+    }
+
+    /**
+     * Stop the writing thread and release every queued buffer.
+     */
+    public void stop() {
+        close();
+        try {
+            // not interrupted, that would close the socket channel
+            thread.join(STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (droppedVideoFrames > 0 || droppedAudioFrames > 0) {
+            Ln.i("Output dropped " + droppedVideoFrames + " video frames, " + droppedAudioFrames + " audio frames");
+        }
+    }
+
+    private synchronized void close() {
+        stopped = true;
+        // the socket may still be reading the buffer of the frame being chunked, the writer releases it
+        video.dropAll(chunking == video);
+        audio.dropAll(chunking == audio);
+        notifyAll();
+    }
+
+    private void writeLoop() throws IOException, InterruptedException {
+        int chunkSize = writer.isChunked() ? MediaPacket.MAX_CHUNK_SIZE : Integer.MAX_VALUE;
+        while (true) {
+            MediaCodec codec;
+            int index;
+            MediaPacket.Type type;
+            MediaPacket.Flag flag;
+            long presentationTimeUs;
+            int sequence;
+            ByteBuffer payload;
+            // payload size of the whole frame for the first chunk of a split frame, -1 otherwise
+            int frameSize = -1;
+            boolean split = false;
+            boolean more = false;
+            PacketQueue queue;
+            synchronized (this) {
+                while (audio.count == 0 && video.count == 0 && !stopped) {
+                    wait();
+                }
+                if (stopped) {
+                    return;
+                }
+                queue = audio.count > 0 ? audio : video;
+                int i = queue.head;
+                codec = queue.codecs[i];
+                index = queue.indexes[i];
+                type = queue.types[i];
+                flag = queue.flags[i];
+                presentationTimeUs = queue.presentationTimesUs[i];
+                sequence = queue.sequences[i];
+                if (codec != null) {
+                    payload = getOutputBuffer(codec, index);
+                    int sent = queue.headSent;
+                    int size = queue.sizes[i];
+                    int length = Math.min(size - sent, chunkSize);
+                    if (payload != null) {
+                        payload.position(queue.offsets[i] + sent);
+                        payload.limit(queue.offsets[i] + sent + length);
+                        split = sent > 0 || length < size;
+                        more = sent + length < size;
+                        if (split && sent == 0) {
+                            frameSize = size;
+                        }
+                    }
+                    if (more) {
+                        // the frame stays at the head, audio may be written before its next chunk
+                        queue.headSent = sent + length;
+                        chunking = queue;
+                    } else {
+                        queue.pop();
+                    }
+                } else {
+                    payload = ByteBuffer.wrap(queue.data[i]);
+                    queue.pop();
+                }
+                writing = codec;
+            }
+            try {
+                if (split) {
+                    writer.writeChunk(type, flag, presentationTimeUs, sequence, payload, frameSize, more);
+                } else if (payload != null) {
+                    writer.write(type, flag, presentationTimeUs, sequence, payload);
+                }
+            } finally {
+                synchronized (this) {
+                    if (codec != null && !more) {
+                        releaseQuietly(codec, index);
+                    }
+                    if (more && stopped) {
+                        // left by close() while its chunk was being written
+                        queue.dropAll(false);
+                    }
+                    chunking = null;
+                    writing = null;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer getOutputBuffer(MediaCodec codec, int index) {
+        try {
+            return codec.getOutputBuffer(index);
+        } catch (IllegalStateException e) {
+            // the codec failed, its owner is notified by its callback
+            return null;
+        }
+    }
+
+    private static void releaseQuietly(MediaCodec codec, int index) {
+        try {
+            codec.releaseOutputBuffer(index, false);
+        } catch (IllegalStateException e) {
+            // the codec has been stopped meanwhile, its buffers are gone anyway
+        }
+    }
+
+    /**
+     * Ring buffer of the pending packets of one stream, a null codec means a configuration packet.
+     */
+    private static final class PacketQueue {
+        private final MediaPacket.Type type;
+        private final int capacity;
+        private final MediaCodec[] codecs;
+        private final int[] indexes;
+        private final int[] offsets;
+        private final int[] sizes;
+        private final long[] presentationTimesUs;
+        private final int[] sequences;
+        private final MediaPacket.Type[] types;
+        private final MediaPacket.Flag[] flags;
+        private final boolean[] references;
+        private final byte[][] data;
+        private int head;
+        private int count;
+        // packets holding a codec buffer
+        private int frames;
+        // payload bytes of the head already written, if it is a split frame
+        private int headSent;
+
+        PacketQueue(MediaPacket.Type type, int capacity) {
+            this.type = type;
+            this.capacity = capacity;
+            codecs = new MediaCodec[capacity];
+            indexes = new int[capacity];
+            offsets = new int[capacity];
+            sizes = new int[capacity];
+            presentationTimesUs = new long[capacity];
+            sequences = new int[capacity];
+            types = new MediaPacket.Type[capacity];
+            flags = new MediaPacket.Flag[capacity];
+            references = new boolean[capacity];
+            data = new byte[capacity][];
+        }
+
+        boolean isFull() {
+            return count == capacity;
+        }
+
+        void pushFrame(MediaCodec codec, int index, MediaCodec.BufferInfo info, MediaPacket.Flag flag,
+                       boolean reference, int sequence) {
+            int i = (head + count++) % capacity;
+            codecs[i] = codec;
+            indexes[i] = index;
+            offsets[i] = info.offset;
+            sizes[i] = info.size;
+            presentationTimesUs[i] = info.presentationTimeUs;
+            sequences[i] = sequence;
+            types[i] = type;
+            flags[i] = flag;
+            references[i] = reference;
+            ++frames;
+        }
+
+        /**
+         * @param configType the stream type, or {@link MediaPacket.Type#INFO} in the video queue
+         */
+        void pushConfig(MediaPacket.Type configType, byte[] config, int sequence) {
+            int i = (head + count++) % capacity;
+            types[i] = configType;
+            flags[i] = MediaPacket.Flag.CONFIG;
+            presentationTimesUs[i] = 0;
+            sequences[i] = sequence;
+            data[i] = config;
+        }
+
+        /**
+         * Remove the head, without releasing its buffer.
+         */
+        void pop() {
+            if (codecs[head] != null) {
+                --frames;
+            }
+            clear(head);
+            head = (head + 1) % capacity;
+            --count;
+            headSent = 0;
+        }
+
+        /**
+         * Whether a frame of {@code codec} is partially written.
+         */
+        boolean isSplitting(MediaCodec codec) {
+            return headSent > 0 && codecs[head] == codec;
+        }
+
+        /**
+         * Release and remove queued frames, configuration packets and a partially written frame are kept.
+         *
+         * @param codec            only the frames of this codec, or {@code null} for any
+         * @param nonReferenceOnly only the frames no other frame references
+         * @return the number of frames dropped
+         */
+        int drop(MediaCodec codec, boolean nonReferenceOnly) {
+            int dropped = 0;
+            int kept = 0;
+            for (int k = 0; k < count; ++k) {
+                int i = (head + k) % capacity;
+                boolean started = k == 0 && headSent > 0;
+                if (codecs[i] != null && !started && (codec == null || codecs[i] == codec)
+                        && (!nonReferenceOnly || !references[i])) {
+                    releaseQuietly(codecs[i], indexes[i]);
+                    clear(i);
+                    ++dropped;
+                } else {
+                    move(i, (head + kept++) % capacity);
+                }
+            }
+            count = kept;
+            frames -= dropped;
+            return dropped;
+        }
+
+        boolean dropOldestFrame() {
+            for (int k = 0; k < count; ++k) {
+                int i = (head + k) % capacity;
+                if (codecs[i] != null) {
+                    // audio frames are independent, let drop() remove exactly this one
+                    references[i] = false;
+                    return drop(codecs[i], true) > 0;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Release and remove every packet.
+         *
+         * @param keepHead keep the head, a frame being written
+         */
+        void dropAll(boolean keepHead) {
+            int kept = keepHead && count > 0 ? 1 : 0;
+            for (int k = kept; k < count; ++k) {
+                int i = (head + k) % capacity;
+                if (codecs[i] != null) {
+                    releaseQuietly(codecs[i], indexes[i]);
+                    --frames;
+                }
+                clear(i);
+            }
+            count = kept;
+            if (kept == 0) {
+                headSent = 0;
+            }
+        }
+
+        private void move(int from, int to) {
+            if (from == to) {
+                return;
+            }
+            codecs[to] = codecs[from];
+            indexes[to] = indexes[from];
+            offsets[to] = offsets[from];
+            sizes[to] = sizes[from];
+            presentationTimesUs[to] = presentationTimesUs[from];
+            sequences[to] = sequences[from];
+            types[to] = types[from];
+            flags[to] = flags[from];
+            references[to] = references[from];
+            data[to] = data[from];
+            clear(from);
+        }
+
+        private void clear(int i) {
+            codecs[i] = null;
+            types[i] = null;
+            flags[i] = null;
+            data[i] = null;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.server.scrcpy;
+
+import xyz.aicy.scrcpy.protocol.Handshake;
+import xyz.aicy.scrcpy.protocol.MediaPacket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Writes media packets to the media socket.
+ * <p>
+ * The header is encoded into a reusable direct buffer and sent together with the codec output
+ * buffer in a single gathering write, so encoded data is never copied to the Java heap.
+ * Video and audio are produced on different threads, writes are serialized on this instance.
+ * <p>
+ * Once the session negotiated {@link Handshake#VERSION_SEQUENCE}, every packet carries a per-stream sequence
+ * number, so that the client can account for packets which never reached it. Since
+ * {@link Handshake#VERSION_CHUNKS}, the {@link MediaOutput} may write a large video frame as several chunks.
+ */
+public final class MediaWriter {
+
+    private final SocketChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocateDirect(MediaPacket.MAX_HEADER_SIZE);
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private boolean withSequence;
+    private boolean chunked;
+    // next sequence number, indexed by MediaPacket.Type ordinal
+    private final int[] sequences = new int[MediaPacket.Type.values().length];
+
+    public MediaWriter(SocketChannel channel) {
+        this.channel = channel;
+        gather[0] = header;
+    }
+
+    /**
+     * Must be called once the handshake is done, before the first packet.
+     */
+    public synchronized void setProtocolVersion(int version) {
+        withSequence = Handshake.hasSequenceNumbers(version);
+        chunked = Handshake.hasChunks(version);
+    }
+
+    /**
+     * Whether the client reassembles frames written with {@link #writeChunk}.
+     */
+    public synchronized boolean isChunked() {
+        return chunked;
+    }
+
+    /**
+     * Number of packets numbered so far for the stream {@code type} (modulo 2^31), including the ones dropped
+     * before being written.
+     */
+    public synchronized int getSentCount(MediaPacket.Type type) {
+        return sequences[type.ordinal()];
+    }
+
+    /**
+     * Take the next sequence number of the stream {@code type}.
+     * <p>
+     * A packet which may be dropped before being written takes its number when it is queued, so that the client
+     * sees the gap and counts it as lost.
+     */
+    public synchronized int nextSequence(MediaPacket.Type type) {
+        int sequence = sequences[type.ordinal()];
+        // never negative, -1 means "no sequence number" on the client
+        sequences[type.ordinal()] = (sequence + 1) & Integer.MAX_VALUE;
+        return sequence;
+    }
+
+    /**
+     * Write one packet whose payload is the content of {@code payload} between its position and its limit.
+     * The position of {@code payload} is advanced to its limit.
+     */
+    public synchronized void write(MediaPacket.Type type, MediaPacket.Flag flag, long presentationTimeUs, ByteBuffer payload)
+            throws IOException {
+        write(type, flag, presentationTimeUs, nextSequence(type), payload);
+    }
+
+    /**
+     * Write one packet numbered {@code sequence}, taken from {@link #nextSequence(MediaPacket.Type)}.
+     */
+    public synchronized void write(MediaPacket.Type type, MediaPacket.Flag flag, long presentationTimeUs, int sequence,
+                                   ByteBuffer payload) throws IOException {
+        header.clear();
+        if (withSequence) {
+            MediaPacket.writeHeader(header, type, flag, presentationTimeUs, sequence, payload.remaining());
+        } else {
+            MediaPacket.writeHeader(header, type, flag, presentationTimeUs, payload.remaining());
+        }
+        header.flip();
+        writeGather(payload);
+    }
+
+    /**
+     * Write one chunk of a video frame bigger than {@link MediaPacket#MAX_CHUNK_SIZE}, only if {@link #isChunked()}.
+     * All the chunks of a frame share its sequence number.
+     *
+     * @param sequence  the sequence number of the frame, taken from {@link #nextSequence(MediaPacket.Type)}
+     * @param frameSize payload size of the whole frame for the first chunk, -1 for the following ones
+     * @param more      whether other chunks of the frame follow
+     */
+    public synchronized void writeChunk(MediaPacket.Type type, MediaPacket.Flag flag, long presentationTimeUs,
+                                        int sequence, ByteBuffer payload, int frameSize, boolean more)
+            throws IOException {
+        header.clear();
+        MediaPacket.writeChunkHeader(header, type, flag, presentationTimeUs, sequence, frameSize, more,
+                payload.remaining());
+        header.flip();
+        writeGather(payload);
+    }
+
+    private void writeGather(ByteBuffer payload) throws IOException {
+        gather[1] = payload;
+        try {
+            while (header.hasRemaining() || payload.hasRemaining()) {
+                channel.write(gather);
+            }
+        } finally {
+            // do not keep a reference to a codec buffer which may be released
+            gather[1] = null;
+        }
+    }
+
+    /**
+     * Write raw bytes, outside of the packet framing (used for the session header).
+     */
+    public synchronized void writeRaw(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+}
@@ -1,10 +1,21 @@
 package org.server.scrcpy;
 
+import xyz.aicy.scrcpy.protocol.Handshake;
+import xyz.aicy.scrcpy.protocol.VideoCodec;
+
 public class Options {
     private int maxSize;
     private int bitRate;
     private boolean tunnelForward;
     private boolean audioEnabled = true;
+    private int maxFps;
+    private int latencyTargetMs;
+    private int protocolVersion = Handshake.VERSION_LEGACY;
+    private VideoCodec videoCodec = VideoCodec.H264;
+    private String encoderName;
+    private boolean calibrateEncoders;
+    private boolean lowLatency;
+    private boolean keyFrameRequests;
 
     public int getMaxSize() {
         return maxSize;
@@ -37,4 +48,71 @@ public class Options {
     public void setAudioEnabled(boolean audioEnabled) {
         this.audioEnabled = audioEnabled;
     }
+
+    public int getMaxFps() {
+        return maxFps;
+    }
+
+    public void setMaxFps(int maxFps) {
+        this.maxFps = maxFps;
+    }
+
+    public int getLatencyTargetMs() {
+        return latencyTargetMs;
+    }
+
+    public void setLatencyTargetMs(int latencyTargetMs) {
+        this.latencyTargetMs = latencyTargetMs;
+    }
+
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    public VideoCodec getVideoCodec() {
+        return videoCodec;
+    }
+
+    public void setVideoCodec(VideoCodec videoCodec) {
+        this.videoCodec = videoCodec;
+    }
+
+    public String getEncoderName() {
+        return encoderName;
+    }
+
+    public void setEncoderName(String encoderName) {
+        this.encoderName = encoderName;
+    }
+
+    public boolean isCalibrateEncoders() {
+        return calibrateEncoders;
+    }
+
+    public void setCalibrateEncoders(boolean calibrateEncoders) {
+        this.calibrateEncoders = calibrateEncoders;
+    }
+
+    public boolean isLowLatency() {
+        return lowLatency;
+    }
+
+    public void setLowLatency(boolean lowLatency) {
+        this.lowLatency = lowLatency;
+    }
+
+    /**
+     * Whether the client asks for key frames when it needs them.
+     */
+    public boolean hasKeyFrameRequests() {
+        return keyFrameRequests;
+    }
+
+    public void setKeyFrameRequests(boolean keyFrameRequests) {
+        this.keyFrameRequests = keyFrameRequests;
+    }
 }
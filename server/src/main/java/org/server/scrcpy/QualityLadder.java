@@ -0,0 +1,108 @@
+package org.server.scrcpy;
+
+/**
+ * Resolution and frame rate steps, for when the {@link RateController} alone cannot keep up with the link.
+ * <p>
+ * The quality only steps down after {@link #CONGESTED_REPORTS_BEFORE_DOWN} consecutive congested reports with the
+ * bitrate already at its minimum, and only steps up after {@link #CLEAN_REPORTS_BEFORE_UP} consecutive clean
+ * reports with the bitrate back at its maximum. A step up followed by a step down within {@link #UNSTABLE_MS}
+ * doubles the wait before the next step up, so that the stream does not keep switching between two steps; a step
+ * up which held longer halves it.
+ * <p>
+ * Each step restarts the encoder (and costs a key frame), the client is told about the new size by a
+ * {@link xyz.aicy.scrcpy.protocol.StreamInfo} packet. Not thread-safe, it is only used by the control thread.
+ */
+public final class QualityLadder {
+
+    // per step: max size in percent of the session max size, and frame rate cap (0 for the session frame rate)
+    private static final int[] SIZE_PERCENT = {100, 75, 75, 50};
+    private static final int[] FRAME_RATE_CAP = {0, 0, 30, 30};
+
+    // never scale the major side of the video below this
+    private static final int MIN_MAX_SIZE = 480;
+
+    private static final int CONGESTED_REPORTS_BEFORE_DOWN = 3;
+    private static final int CLEAN_REPORTS_BEFORE_UP = 10;
+    private static final int MAX_UP_BACKOFF = 8;
+    private static final long UNSTABLE_MS = 30_000;
+
+    private int step;
+    private int congestedReports;
+    private int cleanReports;
+    private int upBackoff = 1;
+    private long lastUpMs = -UNSTABLE_MS;
+
+    public static int getStepCount() {
+        return SIZE_PERCENT.length;
+    }
+
+    /**
+     * @param sessionMaxSize major side of the video negotiated for the session
+     * @return the max size of the video at {@code step}, a multiple of 8
+     */
+    public static int getMaxSize(int step, int sessionMaxSize) {
+        if (step == 0) {
+            return sessionMaxSize;
+        }
+        int maxSize = Math.max(MIN_MAX_SIZE, sessionMaxSize * SIZE_PERCENT[step] / 100);
+        return Math.min(sessionMaxSize, maxSize) & ~7;
+    }
+
+    public static int getFrameRate(int step, int sessionFrameRate) {
+        int cap = FRAME_RATE_CAP[step];
+        return cap == 0 ? sessionFrameRate : Math.min(cap, sessionFrameRate);
+    }
+
+    public int getStep() {
+        return step;
+    }
+
+    /**
+     * Account for one client report, after the {@link RateController} handled it.
+     *
+     * @param congested      whether the report shows losses or a growing decoder queue
+     * @param bitRateAtMin   whether the bitrate cannot be lowered any more
+     * @param bitRateAtMax   whether the bitrate is back to the one requested for the session
+     * @return the new step, or -1 if it does not change
+     */
+    public int onFeedback(long nowMs, boolean congested, boolean bitRateAtMin, boolean bitRateAtMax) {
+        if (congested) {
+            cleanReports = 0;
+            if (!bitRateAtMin || step == getStepCount() - 1) {
+                // the rate controller still has some room
+                congestedReports = 0;
+                return -1;
+            }
+            if (++congestedReports < CONGESTED_REPORTS_BEFORE_DOWN) {
+                return -1;
+            }
+            congestedReports = 0;
+            if (nowMs - lastUpMs < UNSTABLE_MS) {
+                // the previous step up did not hold
+                upBackoff = Math.min(MAX_UP_BACKOFF, upBackoff * 2);
+            } else {
+                // the link has been stable for a while, forget the previous failures
+                upBackoff = Math.max(1, upBackoff / 2);
+            }
+            return setStep(step + 1);
+        }
+        congestedReports = 0;
+        if (!bitRateAtMax || step == 0) {
+            cleanReports = 0;
+            return -1;
+        }
+        if (++cleanReports < CLEAN_REPORTS_BEFORE_UP * upBackoff) {
+            return -1;
+        }
+        cleanReports = 0;
+        lastUpMs = nowMs;
+        return setStep(step - 1);
+    }
+
+    private int setStep(int newStep) {
+        Ln.i("Quality step " + step + " -> " + newStep + " (size " + SIZE_PERCENT[newStep] + "%, fps cap "
+                + FRAME_RATE_CAP[newStep] + ")");
+        step = newStep;
+        return newStep;
+    }
+}
@@ -0,0 +1,96 @@
+package org.server.scrcpy;
+
+import xyz.aicy.scrcpy.protocol.ControlMessage;
+
+/**
+ * Closed-loop video bitrate control from the client {@link ControlMessage#TYPE_FEEDBACK} reports.
+ * <p>
+ * The bitrate never exceeds the one requested for the session. It is cut as soon as the client reports losses
+ * or a growing decoder queue (at most once per {@link #DECREASE_HOLDOFF_MS}), and only raised again, by small
+ * steps, after {@link #CLEAN_REPORTS_BEFORE_INCREASE} consecutive clean reports, so that it does not oscillate
+ * around the capacity of the link.
+ * <p>
+ * Not thread-safe, it is only used by the control thread.
+ */
+public final class RateController {
+
+    private static final int MIN_BIT_RATE = 500_000;
+
+    // decoder queue depth from which the client is considered behind
+    private static final int CONGESTED_QUEUE_DEPTH = 4;
+
+    private static final long DECREASE_HOLDOFF_MS = 1000;
+    private static final int CLEAN_REPORTS_BEFORE_INCREASE = 5;
+
+    // changes smaller than this are not worth a codec parameter update
+    private static final int MIN_CHANGE_PERCENT = 5;
+
+    private final int maxBitRate;
+    private final int minBitRate;
+    private int bitRate;
+
+    private long lastDecreaseMs;
+    private int cleanReports;
+
+    public RateController(int maxBitRate) {
+        this.maxBitRate = maxBitRate;
+        this.minBitRate = Math.min(maxBitRate, Math.max(MIN_BIT_RATE, maxBitRate / 10));
+        this.bitRate = maxBitRate;
+    }
+
+    public int getBitRate() {
+        return bitRate;
+    }
+
+    public boolean isAtMin() {
+        return bitRate <= minBitRate;
+    }
+
+    public boolean isAtMax() {
+        return bitRate >= maxBitRate;
+    }
+
+    public static boolean isCongested(int queueDepth, int lost) {
+        return lost > 0 || queueDepth >= CONGESTED_QUEUE_DEPTH;
+    }
+
+    /**
+     * Account for one client report.
+     *
+     * @return the new bitrate, or -1 if it does not change
+     */
+    public int onFeedback(long nowMs, int intervalMs, int throughputKbps, int queueDepth, int lost) {
+        boolean congested = isCongested(queueDepth, lost);
+        int target = bitRate;
+        if (congested) {
+            cleanReports = 0;
+            if (nowMs - lastDecreaseMs < DECREASE_HOLDOFF_MS) {
+                // the previous cut has not had any visible effect yet
+                return -1;
+            }
+            target = bitRate / 4 * 3;
+            long throughput = throughputKbps * 1000L;
+            if (throughput > 0 && throughput < target) {
+                // what actually got through is the best estimate of the link capacity
+                target = (int) (throughput / 10 * 9);
+            }
+            // never more than halve in one step
+            target = Math.max(target, bitRate / 2);
+            lastDecreaseMs = nowMs;
+        } else if (++cleanReports >= CLEAN_REPORTS_BEFORE_INCREASE) {
+            cleanReports = 0;
+            target = bitRate + maxBitRate / 10;
+        }
+        target = Math.max(minBitRate, Math.min(maxBitRate, target));
+        // a bound is always reached exactly, even by a small step
+        boolean bound = target == minBitRate || target == maxBitRate;
+        if (target == bitRate
+                || !bound && Math.abs((long) target - bitRate) * 100 < (long) bitRate * MIN_CHANGE_PERCENT) {
+            return -1;
+        }
+        Ln.i("Bitrate " + bitRate + " -> " + target + " (interval=" + intervalMs + "ms throughput=" + throughputKbps
+                + "kbps queue=" + queueDepth + " lost=" + lost + ")");
+        bitRate = target;
+        return target;
+    }
+}
@@ -11,8 +11,17 @@ import org.server.scrcpy.wrappers.ServiceManager;
 import org.server.scrcpy.wrappers.SurfaceControl;
 
 
+/**
+ * Mirrors the device screen into an encoder input surface.
+ * <p>
+ * The display is created once per session. When the encoder is replaced (rotation, quality step), the existing
+ * display is resized and redirected to the new surface, which is much faster than destroying and recreating it.
+ */
 public class ScreenCapture {
 
+    // the density of a mirroring display is meaningless, the hidden factory method creates it with 1
+    private static final int MIRROR_DENSITY_DPI = 1;
+
     private final Device device;
     private IBinder display;
     private VirtualDisplay virtualDisplay;
@@ -24,17 +33,30 @@ public class ScreenCapture {
     public void start(Surface surface) {
         ScreenInfo screenInfo = device.getScreenInfo();
 
-        Rect deviceRect = device.getScreenInfo().getDeviceSize().toRect();
-        Rect videoRect = device.getScreenInfo().getVideoSize().toRect();
-
+        Rect deviceRect = screenInfo.getDeviceSize().toRect();
+        Rect videoRect = screenInfo.getVideoSize().toRect();
 
-        if (display != null) {
-            SurfaceControl.destroyDisplay(display);
-            display = null;
-        }
         if (virtualDisplay != null) {
-            virtualDisplay.release();
-            virtualDisplay = null;
+            try {
+                virtualDisplay.resize(videoRect.width(), videoRect.height(), MIRROR_DENSITY_DPI);
+                virtualDisplay.setSurface(surface);
+                return;
+            } catch (RuntimeException e) {
+                Ln.w("Cannot reuse the virtual display, recreating it: " + e.getMessage());
+                virtualDisplay.release();
+                virtualDisplay = null;
+            }
+        }
+        if (display != null) {
+            try {
+                // surface and projection change in a single transaction
+                setDisplaySurface(display, surface, deviceRect, videoRect);
+                return;
+            } catch (RuntimeException e) {
+                Ln.w("Cannot reuse the display, recreating it: " + e.getMessage());
+                SurfaceControl.destroyDisplay(display);
+                display = null;
+            }
         }
 
         try {
@@ -1,51 +1,115 @@
 package org.server.scrcpy;
 
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.graphics.Rect;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 
 import org.server.scrcpy.audio.AudioCaptureException;
-import org.server.scrcpy.model.MediaPacket;
-import org.server.scrcpy.model.VideoPacket;
 import org.server.scrcpy.wrappers.DisplayManager;
 import org.server.scrcpy.wrappers.ServiceManager;
 import org.server.scrcpy.wrappers.SurfaceControl;
 
+import xyz.aicy.scrcpy.protocol.MediaPacket;
+import xyz.aicy.scrcpy.protocol.NalParser;
+import xyz.aicy.scrcpy.protocol.StreamInfo;
+import xyz.aicy.scrcpy.protocol.VideoCodec;
+import xyz.aicy.scrcpy.protocol.VideoPacket;
+
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicBoolean;
-
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encodes the device screen.
+ * <p>
+ * Since Android 6.0, the encoder runs in asynchronous mode: the codec callbacks run on a dedicated
+ * {@link HandlerThread} and hand the encoded buffers to a {@link MediaOutput}, which writes them to the socket.
+ * Parameter changes (bitrate, key frame requests, pause) are posted to the codec thread and take effect
+ * immediately, and the streaming thread only waits for the events which require a new encoder (rotation,
+ * quality step, error). Older versions keep the synchronous {@link #encode(MediaCodec, MediaWriter)} loop.
+ */
 public class ScreenEncoder implements Device.RotationListener {
 
     private static final int DEFAULT_FRAME_RATE = 60; // fps
     private static final int DEFAULT_I_FRAME_INTERVAL = 2; // seconds
+    // with intra refresh, before Android 7.1 (which accepts -1 for "never")
+    private static final int INTRA_REFRESH_I_FRAME_INTERVAL = 3600; // seconds
 
     private static final int REPEAT_FRAME_DELAY = 6; // repeat after 6 frames
 
     private static final int MICROSECONDS_IN_ONE_SECOND = 1_000_000;
 
+    // hidden MediaFormat key (Android 10+): frames above this rate are dropped before the encoder
+    private static final String KEY_MAX_FPS_TO_ENCODER = "max-fps-to-encoder";
+
     private final AtomicBoolean rotationChanged = new AtomicBoolean();
     private final AtomicBoolean paused = new AtomicBoolean(false);
     private final Object pauseLock = new Object();
     private final AtomicBoolean requestSync = new AtomicBoolean(false);
-
-    private int bitRate;
+    // bitrate chosen by the rate controller, applied by the encoding thread (0 if none)
+    private final AtomicInteger pendingBitRate = new AtomicInteger();
+    private final RateController rateController;
+    private final QualityLadder qualityLadder = new QualityLadder();
+    // quality step chosen by the ladder, applied by the encoding thread on the next encoder restart (-1 if none)
+    private final AtomicInteger pendingStep = new AtomicInteger(-1);
+
+    // asynchronous mode only
+    private HandlerThread codecThread;
+    private volatile Handler codecHandler;
+    private MediaOutput output;
+    // encoder fed by the display, the target of the parameter changes
+    private volatile MediaCodec activeCodec;
+    // codec thread only: the encoder whose input is currently suspended
+    private MediaCodec suspendedCodec;
+    private final Runnable applyParametersTask = new Runnable() {
+        @Override
+        public void run() {
+            MediaCodec codec = activeCodec;
+            if (codec != null) {
+                applyParameters(codec);
+            }
+        }
+    };
+    // events for the streaming thread, set by the codec and output threads
+    private final Object eventLock = new Object();
+    private IOException writeError;
+    private IllegalStateException codecError;
+    private boolean endOfStream;
+
+    // written by the encoding thread, or by the codec thread in asynchronous mode
+    private volatile int bitRate;
     private int frameRate;
     private int iFrameInterval;
     private boolean audioEnabled = true;
+    private VideoCodec videoCodec = VideoCodec.H264;
+    private EncoderCatalog.Entry encoder;
+    private boolean lowLatency;
+    private boolean intraRefresh;
+    private boolean streamInfo;
+
+    // capture-to-output latency of the encoder, written by the encoding thread (or codec thread) only
+    private long encodeLatencySumUs;
+    private long encodeLatencyMaxUs;
+    private int encodeLatencyCount;
 
     public ScreenEncoder(int bitRate, int frameRate, int iFrameInterval) {
         this.bitRate = bitRate;
         this.frameRate = frameRate;
         this.iFrameInterval = iFrameInterval;
+        this.rateController = new RateController(bitRate);
     }
 
     public ScreenEncoder(int bitRate, boolean audioEnabled) {
@@ -53,17 +117,135 @@ public class ScreenEncoder implements Device.RotationListener {
         this.audioEnabled = audioEnabled;
     }
 
+    public ScreenEncoder(int bitRate, int maxFps, VideoCodec videoCodec, boolean audioEnabled) {
+        this(bitRate, maxFps > 0 ? maxFps : DEFAULT_FRAME_RATE, DEFAULT_I_FRAME_INTERVAL);
+        this.videoCodec = videoCodec;
+        this.audioEnabled = audioEnabled;
+    }
+
+    public int getFrameRate() {
+        return frameRate;
+    }
+
     public ScreenEncoder(int bitRate) {
         this(bitRate, DEFAULT_FRAME_RATE, DEFAULT_I_FRAME_INTERVAL);
     }
 
-    private static MediaCodec createCodec() throws IOException {
-        return MediaCodec.createEncoderByType("video/avc");
+    public VideoCodec getVideoCodec() {
+        return videoCodec;
+    }
+
+    /**
+     * Use the given encoder instead of the platform default of the codec, {@code null} for the default.
+     */
+    public void setEncoder(EncoderCatalog.Entry encoder) {
+        this.encoder = encoder;
+    }
+
+    /**
+     * Favor latency over compression efficiency, see {@link #applyLowLatency(MediaFormat)}.
+     */
+    public void setLowLatency(boolean lowLatency) {
+        this.lowLatency = lowLatency;
     }
 
-    private static MediaFormat createFormat(int bitRate, int frameRate, int iFrameInterval) throws IOException {
+    /**
+     * Replace the periodic key frames by intra refresh when the encoder supports it. Only for clients which
+     * request a key frame when they need one (see {@link #requestKeyFrame()}).
+     */
+    public void setIntraRefresh(boolean intraRefresh) {
+        this.intraRefresh = intraRefresh;
+    }
+
+    /**
+     * Announce every encoder with a {@link StreamInfo} packet. Only for clients which understand it, the video
+     * size then follows the {@link QualityLadder} without the client reconnecting.
+     */
+    public void setStreamInfo(boolean streamInfo) {
+        this.streamInfo = streamInfo;
+    }
+
+    /**
+     * Make the next frame a key frame.
+     */
+    public void requestKeyFrame() {
+        requestSync.set(true);
+        postParameters();
+    }
+
+    /**
+     * Control thread: a client reception report, see {@link RateController}.
+     */
+    public void onClientFeedback(int intervalMs, int throughputKbps, int queueDepth, int lost) {
+        int newBitRate = rateController.onFeedback(SystemClock.uptimeMillis(), intervalMs, throughputKbps, queueDepth, lost);
+        if (newBitRate > 0) {
+            pendingBitRate.set(newBitRate);
+            postParameters();
+        }
+        if (streamInfo) {
+            int step = qualityLadder.onFeedback(SystemClock.uptimeMillis(), RateController.isCongested(queueDepth, lost),
+                    rateController.isAtMin(), rateController.isAtMax());
+            if (step >= 0) {
+                pendingStep.set(step);
+                signalEvent();
+            }
+        }
+    }
+
+    private void postParameters() {
+        Handler handler = codecHandler;
+        if (handler != null) {
+            handler.post(applyParametersTask);
+        }
+    }
+
+    /**
+     * Codec thread: apply the pending parameter changes to the active encoder.
+     */
+    private void applyParameters(MediaCodec codec) {
+        Bundle params = new Bundle();
+        boolean changed = false;
+        boolean pause = paused.get();
+        if (pause != (suspendedCodec == codec)) {
+            // frames from the display are dropped before the encoder, nothing is encoded while paused
+            params.putInt(MediaCodec.PARAMETER_KEY_SUSPEND, pause ? 1 : 0);
+            suspendedCodec = pause ? codec : null;
+            changed = true;
+        }
+        if (!pause && requestSync.getAndSet(false)) {
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            changed = true;
+        }
+        int newBitRate = pendingBitRate.getAndSet(0);
+        if (newBitRate > 0) {
+            bitRate = newBitRate;
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, newBitRate);
+            changed = true;
+        }
+        if (changed) {
+            try {
+                codec.setParameters(params);
+            } catch (IllegalStateException e) {
+                // the encoder is being replaced, the next one is created with the current parameters
+                Log.w("ScreenCapture", "Failed to update encoder parameters", e);
+            }
+        }
+    }
+
+    private static MediaCodec createCodec(VideoCodec videoCodec, EncoderCatalog.Entry encoder) throws IOException {
+        if (encoder != null) {
+            try {
+                return MediaCodec.createByCodecName(encoder.getName());
+            } catch (IOException | IllegalArgumentException e) {
+                Ln.w("Cannot create encoder " + encoder.getName() + ", using the default " + videoCodec + " encoder");
+            }
+        }
+        return MediaCodec.createEncoderByType(videoCodec.getMimeType());
+    }
+
+    private static MediaFormat createFormat(VideoCodec videoCodec, int bitRate, int frameRate, int iFrameInterval) {
         MediaFormat format = new MediaFormat();
-        format.setString(MediaFormat.KEY_MIME, "video/avc");
+        format.setString(MediaFormat.KEY_MIME, videoCodec.getMimeType());
         format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
         format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
@@ -74,6 +256,105 @@ public class ScreenEncoder implements Device.RotationListener {
         return format;
     }
 
+    private MediaFormat createSessionFormat() {
+        MediaFormat format = createFormat(videoCodec, bitRate, frameRate, iFrameInterval);
+        if (lowLatency) {
+            applyLowLatency(format);
+        }
+        if (intraRefresh) {
+            applyIntraRefresh(format);
+        }
+        return format;
+    }
+
+    /**
+     * Low-latency hints: realtime priority, run at the capture rate, hold at most one frame, and a profile
+     * without B-frames. Encoders ignore the keys they do not know.
+     */
+    private void applyLowLatency(MediaFormat format) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            format.setInteger(MediaFormat.KEY_PRIORITY, 0); // 0 = realtime
+            format.setInteger(MediaFormat.KEY_OPERATING_RATE, frameRate);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            // frames queued in the encoder before an output is required
+            format.setInteger(MediaFormat.KEY_LATENCY, 1);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            format.setInteger(MediaFormat.KEY_MAX_B_FRAMES, 0);
+        }
+        if (encoder == null) {
+            // the supported profile/level pairs are unknown, setting a profile could make configure() fail
+            return;
+        }
+        int[] profiles;
+        switch (videoCodec) {
+            case H264:
+                profiles = new int[]{MediaCodecInfo.CodecProfileLevel.AVCProfileConstrainedBaseline,
+                        MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline};
+                break;
+            case H265:
+                profiles = new int[]{MediaCodecInfo.CodecProfileLevel.HEVCProfileMain};
+                break;
+            default:
+                profiles = new int[]{MediaCodecInfo.CodecProfileLevel.AV1ProfileMain8};
+                break;
+        }
+        for (int profile : profiles) {
+            int level = encoder.getMaxLevel(profile);
+            if (level > 0) {
+                // some encoders ignore the profile unless the level is also set
+                format.setInteger(MediaFormat.KEY_PROFILE, profile);
+                format.setInteger(MediaFormat.KEY_LEVEL, level);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Refresh a band of macroblocks in every frame, so that the whole picture is refreshed once per second,
+     * instead of sending a full key frame every {@link #DEFAULT_I_FRAME_INTERVAL} seconds. The bitrate stays
+     * flat, and a key frame is only produced at start and on request.
+     *
+     * @return false if the encoder does not support intra refresh
+     */
+    private boolean applyIntraRefresh(MediaFormat format) {
+        if (encoder == null || !encoder.isIntraRefreshSupported()) {
+            return false;
+        }
+        format.setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD, frameRate); // frames
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N_MR1) {
+            // no key frame after the first one
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, -1);
+        } else {
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, INTRA_REFRESH_I_FRAME_INTERVAL);
+        }
+        return true;
+    }
+
+    /**
+     * Average and max time between the capture of a frame and its encoded output.
+     */
+    public String getEncodeLatencyStats() {
+        if (encodeLatencyCount == 0) {
+            return "n/a";
+        }
+        return "avg=" + (encodeLatencySumUs / encodeLatencyCount) + "us max=" + encodeLatencyMaxUs + "us ("
+                + encodeLatencyCount + " frames, lowLatency=" + lowLatency + ")";
+    }
+
+    private void onFrameEncoded(long presentationTimeUs) {
+        // the display frames are timestamped with the monotonic clock, like System.nanoTime()
+        long latencyUs = System.nanoTime() / 1000 - presentationTimeUs;
+        if (latencyUs < 0 || latencyUs > MICROSECONDS_IN_ONE_SECOND) {
+            // repeated frame or foreign time base
+            return;
+        }
+        encodeLatencySumUs += latencyUs;
+        encodeLatencyMaxUs = Math.max(encodeLatencyMaxUs, latencyUs);
+        ++encodeLatencyCount;
+    }
+
     private static IBinder createDisplay() {
         // Since Android 12 (preview), secure displays could not be created with shell permissions anymore.
         // On Android 12 preview, SDK_INT is still R (not S), but CODENAME is "S".
@@ -109,12 +390,81 @@ public class ScreenEncoder implements Device.RotationListener {
     @Override
     public void onRotationChanged(int rotation) {
         rotationChanged.set(true);
+        signalEvent();
+    }
+
+    private void signalEvent() {
+        synchronized (eventLock) {
+            eventLock.notifyAll();
+        }
+    }
+
+    /**
+     * Asynchronous mode: wait until the encoder must be replaced or stopped.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean awaitEvent() throws IOException {
+        synchronized (eventLock) {
+            while (true) {
+                if (writeError != null) {
+                    throw writeError;
+                }
+                if (codecError != null) {
+                    IllegalStateException e = codecError;
+                    codecError = null;
+                    throw e;
+                }
+                if (endOfStream) {
+                    return false;
+                }
+                if (mustRestart()) {
+                    return true;
+                }
+                try {
+                    eventLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
     }
 
     public boolean consumeRotationChange() {
         return rotationChanged.getAndSet(false);
     }
 
+    private boolean mustRestart() {
+        // the pending step is consumed by streamScreen(), before creating the next encoder
+        return consumeRotationChange() || pendingStep.get() >= 0;
+    }
+
+    /**
+     * Resize the video and cap the frame rate for the next encoder.
+     */
+    private void applyQualityStep(Device device, int step, int sessionMaxSize, int sessionFrameRate) {
+        device.setVideoMaxSize(QualityLadder.getMaxSize(step, sessionMaxSize));
+        frameRate = QualityLadder.getFrameRate(step, sessionFrameRate);
+    }
+
+    private void writeStreamInfo(MediaWriter writer, Rect videoRect) throws IOException {
+        StreamInfo info = new StreamInfo();
+        info.videoWidth = videoRect.width();
+        info.videoHeight = videoRect.height();
+        info.frameRate = frameRate;
+        ByteBuffer buffer = ByteBuffer.allocate(StreamInfo.SIZE);
+        info.write(buffer);
+        if (output != null) {
+            // queued behind the pending frames
+            output.offerConfig(MediaPacket.Type.INFO, buffer.array());
+        } else {
+            buffer.flip();
+            writer.write(MediaPacket.Type.INFO, MediaPacket.Flag.CONFIG, 0, buffer);
+        }
+        Ln.i("Video stream " + info);
+    }
+
     public void setPaused(boolean pause) {
         paused.set(pause);
         if (!pause) {
@@ -123,20 +473,21 @@ public class ScreenEncoder implements Device.RotationListener {
                 pauseLock.notifyAll();
             }
         }
+        postParameters();
     }
 
     /**
      * 开启音频流转发
      *
-     * @param outputStream
+     * @param output
      */
-    private void startAudioCapture(OutputStream outputStream) {
+    private void startAudioCapture(MediaOutput output) {
         new Thread(new Runnable() {
             @Override
             public void run() {
                 AudioEncoder audioEncoder = new AudioEncoder(128000);
                 try {
-                    audioEncoder.streamScreen(outputStream);
+                    audioEncoder.streamScreen(output);
                 } catch (IOException e) {
                     Ln.e("audio capture IOException", e);
                 } catch (AudioCaptureException e) {
@@ -148,48 +499,84 @@ public class ScreenEncoder implements Device.RotationListener {
         }).start();
     }
 
-    public void streamScreen(Device device, OutputStream outputStream) throws IOException {
+    public void streamScreen(Device device, MediaWriter writer) throws IOException {
         // Log.d("ScreenCapture", buildDisplayListMessage());
-        int[] buf = new int[]{device.getScreenInfo().getDeviceSize().getWidth(), device.getScreenInfo().getDeviceSize().getHeight()};
-        final byte[] array = new byte[buf.length * 4];   // https://stackoverflow.com/questions/2183240/java-integer-to-byte-array
-        for (int j = 0; j < buf.length; j++) {
-            final int c = buf[j];
-            array[j * 4] = (byte) ((c & 0xFF000000) >> 24);
-            array[j * 4 + 1] = (byte) ((c & 0xFF0000) >> 16);
-            array[j * 4 + 2] = (byte) ((c & 0xFF00) >> 8);
-            array[j * 4 + 3] = (byte) (c & 0xFF);
-        }
-        synchronized (outputStream) {
-            outputStream.write(array, 0, array.length);   // Sending device resolution
-        }
-
-        if (audioEnabled) {
-            startAudioCapture(outputStream);  // start audio capture
+        // the session header (handshake reply or device resolution) has been sent by Server
+        MediaFormat format = createSessionFormat();
+        if (intraRefresh) {
+            if (encoder != null && encoder.isIntraRefreshSupported()) {
+                Ln.i("Intra refresh enabled, key frames on request only");
+            } else {
+                Ln.i("Intra refresh not supported by the encoder, key frame every " + iFrameInterval + "s");
+            }
         }
-
-        MediaFormat format = createFormat(bitRate, frameRate, iFrameInterval);
+        Size sessionVideoSize = device.getScreenInfo().getVideoSize();
+        int sessionMaxSize = Math.max(sessionVideoSize.getWidth(), sessionVideoSize.getHeight());
+        int sessionFrameRate = frameRate;
         device.setRotationListener(this);
         boolean alive;
         int errorCount = 0;
         ScreenCapture capture = new ScreenCapture(device);
+        EncoderInstance current = null;
+        boolean async = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+        if (async) {
+            startCodecThread(writer);
+            if (audioEnabled) {
+                // the audio shares the output, so that it is never stuck behind a video frame
+                startAudioCapture(output);  // start audio capture
+            }
+        } else if (audioEnabled) {
+            Ln.w("Audio requires Android 6.0, disabled");
+        }
         try {
             do {
-                MediaCodec codec = createCodec();
-//                IBinder display = createDisplay();
-//                Rect deviceRect = device.getScreenInfo().getDeviceSize().toRect();
+                int step = pendingStep.getAndSet(-1);
+                if (step >= 0) {
+                    applyQualityStep(device, step, sessionMaxSize, sessionFrameRate);
+                    format = createSessionFormat();
+                    if (frameRate < sessionFrameRate && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                        format.setFloat(KEY_MAX_FPS_TO_ENCODER, frameRate);
+                    }
+                }
                 Rect videoRect = device.getScreenInfo().getVideoSize().toRect();
                 setSize(format, videoRect.width(), videoRect.height());
-                configure(codec, format);
-                Surface surface = null;
-
-                // setDisplaySurface(display, surface, deviceRect, videoRect);
+                // a new encoder (e.g. after a rotation) keeps the bitrate chosen by the rate controller
+                format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
 
                 try {
-                    surface = codec.createInputSurface();
-                    capture.start(surface);
-                    codec.start();
+                    if (streamInfo) {
+                        // before the CONFIG of the new encoder, so that the client knows whether it is a rotation
+                        writeStreamInfo(writer, videoRect);
+                    }
+                    // the next encoder is ready before the current one is torn down, so that the capture never
+                    // stops and the client only misses the frames of the switch
+                    EncoderInstance next;
+                    try {
+                        next = startEncoder(format);
+                    } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+                        if (current == null) {
+                            throw e;
+                        }
+                        // some devices cannot run two encoder instances at once
+                        Ln.w("Cannot start the next encoder alongside the current one: " + e.getMessage());
+                        releaseEncoder(current);
+                        current = null;
+                        next = startEncoder(format);
+                    }
+                    capture.start(next.surface);
+                    activeCodec = next.codec;
+                    if (current != null) {
+                        releaseEncoder(current);
+                    }
+                    current = next;
 
-                    alive = encode(codec, outputStream);
+                    if (async) {
+                        // a new encoder is not suspended, and may have missed parameter changes
+                        postParameters();
+                        alive = awaitEvent();
+                    } else {
+                        alive = encode(current.codec, writer);
+                    }
                     errorCount = 0;
                 } catch (IllegalStateException | IllegalArgumentException e) {
                     Ln.e("Encoding error: " + e.getClass().getName(), e);
@@ -200,23 +587,127 @@ public class ScreenEncoder implements Device.RotationListener {
                     }
                     Ln.i("Retrying...");
                     alive = true;
-                } finally {
-                    Log.d("ScreenCapture", "帧处理 finally 退出了");
-                    codec.stop();
-                    // destroyDisplay(display);
-                    codec.release();
-                    if (surface != null) {
-                        surface.release();
+                    if (current != null) {
+                        releaseEncoder(current);
+                        current = null;
                     }
                 }
             } while (alive);
         } finally {
             Log.d("ScreenCapture", "streamScreen 退出了");
+            activeCodec = null;
+            if (current != null) {
+                releaseEncoder(current);
+            }
             capture.release();
+            if (async) {
+                stopCodecThread();
+            }
             // device.setRotationListener(null);
         }
     }
 
+    /**
+     * Create, configure and start an encoder, with its input surface.
+     */
+    @SuppressLint("NewApi")
+    private EncoderInstance startEncoder(MediaFormat format) throws IOException {
+        MediaCodec codec = createCodec(videoCodec, encoder);
+        Surface surface = null;
+        EncoderCallback callback = null;
+        try {
+            Handler handler = codecHandler;
+            if (handler != null) {
+                // must be set before configure()
+                callback = new EncoderCallback();
+                codec.setCallback(callback, handler);
+            }
+            configure(codec, format);
+            surface = codec.createInputSurface();
+            codec.start();
+            return new EncoderInstance(codec, surface, callback);
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            codec.release();
+            if (surface != null) {
+                surface.release();
+            }
+            throw e;
+        }
+    }
+
+    private void releaseEncoder(EncoderInstance instance) {
+        if (instance.callback != null) {
+            // late callbacks of this encoder must not affect the next one
+            instance.callback.retired = true;
+            try {
+                output.retire(instance.codec);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        instance.release();
+    }
+
+    private void startCodecThread(MediaWriter writer) {
+        codecThread = new HandlerThread("video-codec");
+        codecThread.start();
+        output = new MediaOutput(writer, new MediaOutput.Listener() {
+            @Override
+            public void onKeyFrameNeeded() {
+                requestKeyFrame();
+            }
+
+            @Override
+            public void onWriteError(IOException e) {
+                synchronized (eventLock) {
+                    writeError = e;
+                    eventLock.notifyAll();
+                }
+            }
+        });
+        output.start();
+        codecHandler = new Handler(codecThread.getLooper());
+    }
+
+    private void stopCodecThread() {
+        codecHandler = null;
+        output.stop();
+        Looper looper = codecThread.getLooper();
+        if (looper != null) {
+            looper.quitSafely();
+        }
+        try {
+            codecThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class EncoderInstance {
+        private final MediaCodec codec;
+        private final Surface surface;
+        // null in synchronous mode
+        private final EncoderCallback callback;
+
+        EncoderInstance(MediaCodec codec, Surface surface, EncoderCallback callback) {
+            this.codec = codec;
+            this.surface = surface;
+            this.callback = callback;
+        }
+
+        void release() {
+            Log.d("ScreenCapture", "帧处理 finally 退出了");
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                // the codec is in the error state, release() is still valid
+                Ln.w("Cannot stop the encoder: " + e.getMessage());
+            }
+            codec.release();
+            surface.release();
+        }
+    }
+
     public static String buildDisplayListMessage() {
         StringBuilder builder = new StringBuilder("List of displays:");
         DisplayManager displayManager = ServiceManager.getDisplayManager();
@@ -240,13 +731,13 @@ public class ScreenEncoder implements Device.RotationListener {
     }
 
     @SuppressLint("NewApi")
-    private boolean encode(MediaCodec codec, OutputStream outputStream) throws IOException {
+    private boolean encode(MediaCodec codec, MediaWriter writer) throws IOException {
         @SuppressWarnings("checkstyle:MagicNumber")
 //        byte[] buf = new byte[bitRate / 8]; // may contain up to 1 second of video
         boolean eof = false;
         boolean configSent = false;
         MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-        while (!consumeRotationChange() && !eof) {
+        while (!mustRestart() && !eof) {
             if (paused.get()) {
                 synchronized (pauseLock) {
                     try {
@@ -266,31 +757,30 @@ public class ScreenEncoder implements Device.RotationListener {
                     Log.w("ScreenCapture", "Failed to request sync frame", e);
                 }
             }
+            int newBitRate = pendingBitRate.getAndSet(0);
+            if (newBitRate > 0) {
+                bitRate = newBitRate;
+                try {
+                    Bundle params = new Bundle();
+                    params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, newBitRate);
+                    codec.setParameters(params);
+                } catch (IllegalStateException e) {
+                    Log.w("ScreenCapture", "Failed to update bitrate", e);
+                }
+            }
             int outputBufferId = codec.dequeueOutputBuffer(bufferInfo, -1);
             if (outputBufferId == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                MediaFormat outFormat = codec.getOutputFormat();
-                ByteBuffer csd0 = outFormat.getByteBuffer("csd-0");
-                ByteBuffer csd1 = outFormat.getByteBuffer("csd-1");
-                if (csd0 != null && csd1 != null) {
-                    byte[] sps = withStartCode(csd0);
-                    byte[] pps = withStartCode(csd1);
-                    byte[] config = new byte[sps.length + pps.length];
-                    System.arraycopy(sps, 0, config, 0, sps.length);
-                    System.arraycopy(pps, 0, config, sps.length, pps.length);
-                    VideoPacket packet = new VideoPacket(MediaPacket.Type.VIDEO, VideoPacket.Flag.CONFIG, 0, config);
-                    synchronized (outputStream) {
-                        outputStream.write(packet.toByteArray());
-                    }
-                    Log.d("ScreenCapture", "video CONFIG sent: sps=" + sps.length + " pps=" + pps.length);
+                byte[] config = getConfig(codec.getOutputFormat());
+                if (config != null) {
+                    writer.write(MediaPacket.Type.VIDEO, MediaPacket.Flag.CONFIG, 0, ByteBuffer.wrap(config));
+                    Log.d("ScreenCapture", videoCodec + " CONFIG sent: " + config.length + " bytes");
                     configSent = true;
-                } else {
-                    Log.w("ScreenCapture", "video output format missing csd");
                 }
                 continue;
             }
             eof = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
             try {
-                if (consumeRotationChange()) {
+                if (mustRestart()) {
                     // must restart encoding with new size
                     break;
                 }
@@ -300,31 +790,26 @@ public class ScreenEncoder implements Device.RotationListener {
                     outputBuffer = codec.getOutputBuffer(outputBufferId);
 
                     if (bufferInfo.size > 0 && outputBuffer != null) {
+                        // the codec output buffer is sent as is, it never becomes a heap array
+                        outputBuffer.position(bufferInfo.offset);
+                        outputBuffer.limit(bufferInfo.offset + bufferInfo.size);
                         if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
                             if (!configSent) {
-                                Log.w("ScreenCapture", "video codec config in buffer but format config missing");
+                                // the output format had no usable csd, fall back to the in-band config
+                                if (VideoPacket.getStreamSettings(videoCodec, outputBuffer) != null) {
+                                    writer.write(MediaPacket.Type.VIDEO, MediaPacket.Flag.CONFIG, 0, outputBuffer);
+                                    Log.d("ScreenCapture", "video CONFIG sent from codec config buffer");
+                                    configSent = true;
+                                } else {
+                                    Log.w("ScreenCapture", "video codec config buffer is not a valid " + videoCodec + " config");
+                                }
                             }
                             continue;
                         }
-                        outputBuffer.position(bufferInfo.offset);
-                        outputBuffer.limit(bufferInfo.offset + bufferInfo.size);
-                        byte[] b = new byte[outputBuffer.remaining()];
-                        outputBuffer.get(b);
-
-                        MediaPacket.Type type = MediaPacket.Type.VIDEO;
-                        VideoPacket.Flag flag = VideoPacket.Flag.CONFIG;
-
-                        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == MediaCodec.BUFFER_FLAG_END_OF_STREAM) {
-                            flag = VideoPacket.Flag.END;
-                        } else if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == MediaCodec.BUFFER_FLAG_KEY_FRAME) {
-                            flag = VideoPacket.Flag.KEY_FRAME;
-                        } else if (bufferInfo.flags == 0) {
-                            flag = VideoPacket.Flag.FRAME;
-                        }
-                        VideoPacket packet = new VideoPacket(type, flag, bufferInfo.presentationTimeUs, b);
-                        synchronized (outputStream) {
-                            outputStream.write(packet.toByteArray());
-                        }
+
+                        MediaPacket.Flag flag = toPacketFlag(bufferInfo.flags);
+                        writer.write(MediaPacket.Type.VIDEO, flag, bufferInfo.presentationTimeUs, outputBuffer);
+                        onFrameEncoded(bufferInfo.presentationTimeUs);
                     }
 
                 }
@@ -338,20 +823,175 @@ public class ScreenEncoder implements Device.RotationListener {
         return !eof;
     }
 
+    private static MediaPacket.Flag toPacketFlag(int bufferFlags) {
+        if ((bufferFlags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == MediaCodec.BUFFER_FLAG_END_OF_STREAM) {
+            return MediaPacket.Flag.END;
+        }
+        if ((bufferFlags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == MediaCodec.BUFFER_FLAG_KEY_FRAME) {
+            return MediaPacket.Flag.KEY_FRAME;
+        }
+        return bufferFlags == 0 ? MediaPacket.Flag.FRAME : MediaPacket.Flag.CONFIG;
+    }
+
+    /**
+     * @return the stream configuration from the csd of an encoder output format, or {@code null} if it has none
+     * or if it is not valid
+     */
+    private byte[] getConfig(MediaFormat outFormat) {
+        ByteBuffer csd0 = outFormat.getByteBuffer("csd-0");
+        ByteBuffer csd1 = outFormat.getByteBuffer("csd-1");
+        if (csd0 == null) {
+            Log.w("ScreenCapture", "video output format missing csd");
+            return null;
+        }
+        // H.264: csd-0 SPS, csd-1 PPS; H.265: csd-0 VPS+SPS+PPS; AV1: csd-0 configuration record
+        byte[] config = buildConfig(csd0, csd1);
+        if (VideoPacket.getStreamSettings(videoCodec, config) == null) {
+            Log.w("ScreenCapture", "video output format csd is not a valid " + videoCodec + " config");
+            return null;
+        }
+        return config;
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private final class EncoderCallback extends MediaCodec.Callback {
+
+        // set when the encoder is replaced
+        private volatile boolean retired;
+        private boolean configSent;
+        // null for AV1, whose frames are not split into NAL units
+        private final NalParser nalParser = videoCodec.getNalCodec() == null ? null : new NalParser(videoCodec.getNalCodec());
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            // the input is a surface
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo bufferInfo) {
+            boolean queued = false;
+            try {
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    if (!configSent && bufferInfo.size > 0) {
+                        // the output format had no usable csd, fall back to the in-band config
+                        ByteBuffer buffer = codec.getOutputBuffer(index);
+                        if (buffer != null) {
+                            buffer.position(bufferInfo.offset);
+                            buffer.limit(bufferInfo.offset + bufferInfo.size);
+                            byte[] config = new byte[bufferInfo.size];
+                            buffer.get(config);
+                            if (VideoPacket.getStreamSettings(videoCodec, config) != null) {
+                                output.offerConfig(MediaPacket.Type.VIDEO, config);
+                                configSent = true;
+                            } else {
+                                Log.w("ScreenCapture", "video codec config buffer is not a valid " + videoCodec + " config");
+                            }
+                        }
+                    }
+                } else if (bufferInfo.size > 0 && !retired && !paused.get()) {
+                    onFrameEncoded(bufferInfo.presentationTimeUs);
+                    MediaPacket.Flag flag = toPacketFlag(bufferInfo.flags);
+                    boolean reference = flag == MediaPacket.Flag.KEY_FRAME || isReference(codec, index, bufferInfo);
+                    queued = output.offerVideoFrame(codec, index, bufferInfo, flag, reference);
+                }
+                if (!queued) {
+                    codec.releaseOutputBuffer(index, false);
+                }
+            } catch (IllegalStateException e) {
+                fail(e);
+                return;
+            }
+            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 && !retired) {
+                synchronized (eventLock) {
+                    endOfStream = true;
+                    eventLock.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * @return whether the first slice of the frame may be referenced, true if it cannot be told
+         */
+        private boolean isReference(MediaCodec codec, int index, MediaCodec.BufferInfo bufferInfo) {
+            if (nalParser == null) {
+                return true;
+            }
+            ByteBuffer buffer = codec.getOutputBuffer(index);
+            if (buffer == null) {
+                return true;
+            }
+            buffer.limit(bufferInfo.offset + bufferInfo.size);
+            buffer.position(bufferInfo.offset);
+            nalParser.reset(buffer);
+            while (nalParser.next()) {
+                NalParser.Type type = nalParser.getType();
+                if (type == NalParser.Type.SLICE || type == NalParser.Type.IDR) {
+                    return nalParser.isReference();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            byte[] config = getConfig(format);
+            if (config != null) {
+                output.offerConfig(MediaPacket.Type.VIDEO, config);
+                Log.d("ScreenCapture", videoCodec + " CONFIG queued: " + config.length + " bytes");
+                configSent = true;
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            fail(e);
+        }
+
+        private void fail(IllegalStateException e) {
+            if (retired) {
+                return;
+            }
+            Ln.e("Video encoder error", e);
+            synchronized (eventLock) {
+                codecError = e;
+                eventLock.notifyAll();
+            }
+        }
+    }
+
+    private byte[] buildConfig(ByteBuffer csd0, ByteBuffer csd1) {
+        byte[] first = toConfigBytes(csd0);
+        if (csd1 == null) {
+            return first;
+        }
+        byte[] second = toConfigBytes(csd1);
+        byte[] config = new byte[first.length + second.length];
+        System.arraycopy(first, 0, config, 0, first.length);
+        System.arraycopy(second, 0, config, first.length, second.length);
+        return config;
+    }
+
+    private byte[] toConfigBytes(ByteBuffer csd) {
+        if (videoCodec.getNalCodec() != null) {
+            return withStartCode(csd);
+        }
+        ByteBuffer dup = csd.duplicate();
+        dup.clear();
+        byte[] out = new byte[dup.remaining()];
+        dup.get(out);
+        return out;
+    }
+
     private static byte[] withStartCode(ByteBuffer buffer) {
         ByteBuffer dup = buffer.duplicate();
         dup.clear();
-        byte[] data = new byte[dup.remaining()];
-        dup.get(data);
-        if (data.length >= 4 && data[0] == 0x00 && data[1] == 0x00 && data[2] == 0x00 && data[3] == 0x01) {
-            return data;
-        }
-        byte[] out = new byte[data.length + 4];
-        out[0] = 0x00;
-        out[1] = 0x00;
-        out[2] = 0x00;
-        out[3] = 0x01;
-        System.arraycopy(data, 0, out, 4, data.length);
+        // csd buffers usually already start with a (3 or 4-byte) start code
+        int prefix = NalParser.startCodeLength(dup, 0) == 0 ? 4 : 0;
+        byte[] out = new byte[prefix + dup.remaining()];
+        if (prefix != 0) {
+            out[3] = 0x01;
+        }
+        dup.get(out, prefix, out.length - prefix);
         return out;
     }
 }
@@ -3,11 +3,19 @@ package org.server.scrcpy;
 public final class ScreenInfo {
     private final Size deviceSize;
     private final Size videoSize;
+    // coordinate space of the client input events, the video size negotiated for the session: it does not
+    // follow the quality ladder, only the rotation
+    private final Size inputSize;
     private final boolean rotated;
 
     public ScreenInfo(Size deviceSize, Size videoSize, boolean rotated) {
+        this(deviceSize, videoSize, videoSize, rotated);
+    }
+
+    public ScreenInfo(Size deviceSize, Size videoSize, Size inputSize, boolean rotated) {
         this.deviceSize = deviceSize;
         this.videoSize = videoSize;
+        this.inputSize = inputSize;
         this.rotated = rotated;
     }
 
@@ -19,11 +27,15 @@ public final class ScreenInfo {
         return videoSize;
     }
 
+    public Size getInputSize() {
+        return inputSize;
+    }
+
     public ScreenInfo withRotation(int rotation) {
         boolean newRotated = (rotation & 1) != 0;
         if (rotated == newRotated) {
             return this;
         }
-        return new ScreenInfo(deviceSize.rotate(), videoSize.rotate(), newRotated);
+        return new ScreenInfo(deviceSize.rotate(), videoSize.rotate(), inputSize.rotate(), newRotated);
     }
 }
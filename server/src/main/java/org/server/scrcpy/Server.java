@@ -2,12 +2,20 @@ package org.server.scrcpy;
 
 import org.server.scrcpy.util.Workarounds;
 
+import xyz.aicy.scrcpy.protocol.Handshake;
+import xyz.aicy.scrcpy.protocol.MediaPacket;
+import xyz.aicy.scrcpy.protocol.VideoCodec;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public final class Server {
 
     private static String ip = null;
 
+    // how long to wait for the client hello before assuming a legacy client
+    private static final int CLIENT_HELLO_TIMEOUT_MS = 500;
+
     private Server() {
         // not instantiable
     }
@@ -15,25 +23,121 @@ public final class Server {
     private static void scrcpy(Options options) throws IOException {
         Workarounds.apply();  // init content
 
-        final Device device = new Device(options);
+        EncoderCatalog encoderCatalog = EncoderCatalog.load();
+        Ln.i(encoderCatalog.buildListMessage());
+        if (options.isCalibrateEncoders()) {
+            // before listening, the client keeps retrying to connect meanwhile
+            EncoderCalibration.calibrate(encoderCatalog);
+        }
+
         try (DroidConnection connection = DroidConnection.open(ip)) {
-            ScreenEncoder screenEncoder = new ScreenEncoder(options.getBitRate(), options.isAudioEnabled());
+            Handshake.ClientHello hello = connection.receiveClientHello(CLIENT_HELLO_TIMEOUT_MS);
+            if (hello != null) {
+                negotiate(options, hello, encoderCatalog);
+            } else {
+                Ln.i("No client hello, legacy session");
+            }
+            EncoderCatalog.Entry encoder = encoderCatalog.select(options.getVideoCodec(), options.getEncoderName());
+            if (encoder == null && options.getVideoCodec() != VideoCodec.H264) {
+                // should not happen, the negotiated codec has an encoder
+                options.setVideoCodec(VideoCodec.H264);
+                encoder = encoderCatalog.select(VideoCodec.H264, options.getEncoderName());
+            }
+            Ln.i("Video encoder: " + (encoder != null ? encoder : "platform default"));
+
+            // created after the handshake, the negotiated max size defines the video size
+            final Device device = new Device(options);
+            ScreenEncoder screenEncoder = new ScreenEncoder(options.getBitRate(), options.getMaxFps(), options.getVideoCodec(),
+                    options.isAudioEnabled());
+            screenEncoder.setEncoder(encoder);
+            screenEncoder.setLowLatency(options.isLowLatency());
+            // a legacy client cannot ask for a key frame, it needs the periodic ones
+            screenEncoder.setIntraRefresh(options.hasKeyFrameRequests());
+            // an older client would take any new video size for a rotation
+            screenEncoder.setStreamInfo(Handshake.hasStreamInfo(options.getProtocolVersion()));
+            connection.getMediaWriter().setProtocolVersion(options.getProtocolVersion());
+            sendSessionHeader(connection.getMediaWriter(), device, screenEncoder, options, hello != null);
 
             // asynchronous
             startEventController(device, connection, screenEncoder);
 
             try {
                 // synchronous
-                screenEncoder.streamScreen(device, connection.getOutputStream());
+                screenEncoder.streamScreen(device, connection.getMediaWriter());
             } catch (IOException e) {
                 e.printStackTrace();
                 // this is expected on close
                 Ln.d("Screen streaming stopped");
 
             }
+            MediaWriter writer = connection.getMediaWriter();
+            Ln.i("Packets numbered: video=" + writer.getSentCount(MediaPacket.Type.VIDEO)
+                    + " audio=" + writer.getSentCount(MediaPacket.Type.AUDIO));
+            Ln.i("Encode latency: " + screenEncoder.getEncodeLatencyStats());
         }
     }
 
+    /**
+     * Restrict the options given on the command line to what the client can handle.
+     */
+    private static void negotiate(Options options, Handshake.ClientHello hello, EncoderCatalog encoderCatalog) {
+        options.setProtocolVersion(Handshake.negotiateVersion(hello.version));
+        if ((hello.videoCodecs & Handshake.VIDEO_CODEC_H264) == 0) {
+            Ln.w("Client does not declare H.264 support, H.264 remains the fallback anyway");
+        }
+        // legacy sessions never get here and stay on H.264
+        options.setVideoCodec(VideoCodec.select(hello.videoCodecs, encoderCatalog.getSupportedCodecs()));
+        if (hello.maxSize > 0) {
+            int maxSize = hello.maxSize & ~7; // multiple of 8
+            if (options.getMaxSize() == 0 || maxSize < options.getMaxSize()) {
+                options.setMaxSize(maxSize);
+            }
+        }
+        if (hello.maxFps > 0 && (options.getMaxFps() == 0 || hello.maxFps < options.getMaxFps())) {
+            options.setMaxFps(hello.maxFps);
+        }
+        if ((hello.audioCodecs & Handshake.AUDIO_CODEC_AAC) == 0) {
+            options.setAudioEnabled(false);
+        }
+        options.setLatencyTargetMs(hello.latencyTargetMs);
+        options.setLowLatency((hello.flags & Handshake.FLAG_LOW_LATENCY) != 0);
+        options.setKeyFrameRequests(Handshake.acceptsKeyFrameRequests(options.getProtocolVersion())
+                && (hello.flags & Handshake.FLAG_KEY_FRAME_REQUEST) != 0);
+        Ln.i("Client hello: version=" + hello.version + " videoCodecs=" + hello.videoCodecs + " -> " + options.getVideoCodec()
+                + " maxSize=" + hello.maxSize + " maxFps=" + hello.maxFps
+                + " audioCodecs=" + hello.audioCodecs + " latencyTarget=" + hello.latencyTargetMs + "ms"
+                + " lowLatency=" + options.isLowLatency() + " keyFrameRequests=" + options.hasKeyFrameRequests());
+    }
+
+    /**
+     * Write the first bytes of the media stream: the server hello, or the device size for a legacy client.
+     */
+    private static void sendSessionHeader(MediaWriter writer, Device device, ScreenEncoder screenEncoder, Options options,
+                                          boolean handshake) throws IOException {
+        ScreenInfo screenInfo = device.getScreenInfo();
+        Size deviceSize = screenInfo.getDeviceSize();
+        ByteBuffer header;
+        if (handshake) {
+            Handshake.ServerHello reply = new Handshake.ServerHello();
+            reply.deviceWidth = deviceSize.getWidth();
+            reply.deviceHeight = deviceSize.getHeight();
+            reply.videoWidth = screenInfo.getVideoSize().getWidth();
+            reply.videoHeight = screenInfo.getVideoSize().getHeight();
+            reply.videoCodec = screenEncoder.getVideoCodec().getMask();
+            reply.audioCodec = options.isAudioEnabled() ? Handshake.AUDIO_CODEC_AAC : 0;
+            reply.maxFps = screenEncoder.getFrameRate();
+            reply.bitRate = options.getBitRate();
+            header = ByteBuffer.allocate(Handshake.PREAMBLE_SIZE + Handshake.ServerHello.BODY_SIZE);
+            reply.write(header);
+        } else {
+            header = ByteBuffer.allocate(8);
+            header.putInt(deviceSize.getWidth());
+            header.putInt(deviceSize.getHeight());
+        }
+        header.flip();
+        writer.writeRaw(header);
+    }
+
     private static void startEventController(final Device device, final DroidConnection connection, final ScreenEncoder screenEncoder) {
         new Thread(new Runnable() {
             @Override
@@ -82,6 +186,25 @@ public final class Server {
         }
         boolean audioEnabled = Boolean.parseBoolean(args[4]);
         options.setAudioEnabled(audioEnabled);
+
+        if (args.length < 6) {
+            return options;
+        }
+        // "-" selects the encoder automatically
+        String encoderName = args[5];
+        options.setEncoderName("-".equals(encoderName) || encoderName.isEmpty() ? null : encoderName);
+
+        if (args.length < 7) {
+            return options;
+        }
+        // measure the encode latency of the encoders and remember the fastest for this device model: "auto" only
+        // if this model was never calibrated (what the app passes), "true" again
+        String calibrate = args[6];
+        if ("auto".equals(calibrate)) {
+            options.setCalibrateEncoders(!EncoderCatalog.isCalibrated());
+        } else {
+            options.setCalibrateEncoders(Boolean.parseBoolean(calibrate));
+        }
         return options;
     }
 
@@ -0,0 +1,137 @@
+package org.server.scrcpy.control;
+
+import xyz.aicy.scrcpy.protocol.ControlMessage;
+import xyz.aicy.scrcpy.protocol.Handshake;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Decodes {@link ControlMessage}s from the control socket without allocating.
+ * <p>
+ * Bytes are read in batches into a reusable buffer and decoded in place, the current record is exposed
+ * through a preallocated array which is overwritten by the next call to {@link #next()}.
+ */
+public final class ControlReader {
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private final SocketChannel channel;
+    // received bytes not decoded yet, between position and limit
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final int[] record = new int[ControlMessage.RECORD_INTS];
+
+    public ControlReader(SocketChannel channel) {
+        this.channel = channel;
+        buffer.limit(0);
+    }
+
+    /**
+     * Wait up to {@code timeoutMs} for the client hello.
+     *
+     * @return the hello, or {@code null} for a legacy client (nothing received in time, or not a hello); in
+     * that case the bytes already received are kept and decoded as control messages
+     */
+    public Handshake.ClientHello readClientHello(long timeoutMs) throws IOException {
+        if (!prefetch(4, timeoutMs) || buffer.getInt(buffer.position()) != Handshake.MAGIC) {
+            return null;
+        }
+        require(Handshake.PREAMBLE_SIZE);
+        buffer.getInt(); // magic
+        int[] preamble = Handshake.readPreamble(buffer);
+        require(preamble[1]);
+        return Handshake.ClientHello.readBody(buffer, preamble[0], preamble[1]);
+    }
+
+    /**
+     * Block until the next record is received and decode it.
+     *
+     * @return the record, valid until the next call
+     */
+    public int[] next() throws IOException {
+        require(ControlMessage.RECORD_SIZE);
+        for (int i = 0; i < ControlMessage.RECORD_INTS; ++i) {
+            record[i] = buffer.getInt();
+        }
+        return record;
+    }
+
+    /**
+     * Read the (x, y, pointerId) triples following a {@link ControlMessage#TYPE_MULTI_MOVE} record.
+     */
+    public void readPointers(int pointerCount, int[] pointers) throws IOException {
+        if (!ControlMessage.isValidPointerCount(pointerCount)) {
+            throw new IOException("Invalid pointer count: " + pointerCount);
+        }
+        int count = pointerCount * ControlMessage.POINTER_INTS;
+        require(count * 4);
+        for (int i = 0; i < count; ++i) {
+            pointers[i] = buffer.getInt();
+        }
+    }
+
+    /**
+     * Whether a complete message has already been received, i.e. decoding it will not block.
+     */
+    public boolean hasQueuedMessage() {
+        int remaining = buffer.remaining();
+        if (remaining < ControlMessage.RECORD_SIZE) {
+            return false;
+        }
+        int position = buffer.position();
+        int length = ControlMessage.messageInts(buffer.getInt(position), buffer.getInt(position + 8));
+        return remaining >= length * 4;
+    }
+
+    /**
+     * Wait up to {@code timeoutMs} until {@code size} bytes are buffered.
+     */
+    private boolean prefetch(int size, long timeoutMs) throws IOException {
+        if (buffer.remaining() >= size) {
+            return true;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        channel.configureBlocking(false);
+        try (Selector selector = Selector.open()) {
+            channel.register(selector, SelectionKey.OP_READ);
+            while (buffer.remaining() < size) {
+                if (fill() == 0) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    selector.select(remaining);
+                    selector.selectedKeys().clear();
+                }
+            }
+            return true;
+        } finally {
+            // closing the selector has deregistered the channel
+            channel.configureBlocking(true);
+        }
+    }
+
+    private void require(int size) throws IOException {
+        while (buffer.remaining() < size) {
+            fill();
+        }
+    }
+
+    private int fill() throws IOException {
+        buffer.compact();
+        int r;
+        try {
+            r = channel.read(buffer);
+        } finally {
+            buffer.flip();
+        }
+        if (r == -1) {
+            throw new EOFException("Control channel closed");
+        }
+        return r;
+    }
+}
@@ -1,8 +1,5 @@
 package org.server.scrcpy.control;
 
-
-import org.server.scrcpy.device.Point;
-
 public class Pointer {
 
     /**
@@ -15,7 +12,9 @@ public class Pointer {
      */
     private final int localId;
 
-    private Point point;
+    // mutable, updated in place on every event
+    private int x;
+    private int y;
     private float pressure;
     private boolean up;
 
@@ -32,12 +31,17 @@ public class Pointer {
         return localId;
     }
 
-    public Point getPoint() {
-        return point;
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
     }
 
-    public void setPoint(Point point) {
-        this.point = point;
+    public void setPoint(int x, int y) {
+        this.x = x;
+        this.y = y;
     }
 
     public float getPressure() {
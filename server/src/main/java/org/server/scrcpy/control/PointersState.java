@@ -2,9 +2,6 @@ package org.server.scrcpy.control;
 
 import android.view.MotionEvent;
 
-
-import org.server.scrcpy.device.Point;
-
 import java.util.ArrayList;
 import java.util.List;
 
@@ -83,9 +80,8 @@ public class PointersState {
             // id 0 is reserved for mouse events
             props[i].id = pointer.getLocalId();
 
-            Point point = pointer.getPoint();
-            coords[i].x = point.getX();
-            coords[i].y = point.getY();
+            coords[i].x = pointer.getX();
+            coords[i].y = pointer.getY();
             coords[i].pressure = pointer.getPressure();
         }
         cleanUp();
@@ -1,32 +0,0 @@
-package org.server.scrcpy.model;
-
-import java.math.BigInteger;
-import java.nio.ByteBuffer;
-
-/**
- * Created by Alexandr Golovach on 27.06.16.
- */
-
-public class ByteUtils {
-
-    public static byte[] longToBytes(long x) {
-        ByteBuffer buffer = ByteBuffer.allocate(Long.SIZE / 8);
-        buffer.putLong(0, x);
-        return buffer.array();
-    }
-
-    public static long bytesToLong(byte[] bytes) {
-        return new BigInteger(bytes).longValue();
-    }
-
-    public static byte[] intToBytes(int x) {
-        ByteBuffer buffer = ByteBuffer.allocate(Integer.SIZE / 8);
-        buffer.putInt(0, x);
-        return buffer.array();
-    }
-
-    public static int bytesToInt(byte[] bytes) {
-        return new BigInteger(bytes).intValue();
-    }
-}
-
@@ -0,0 +1,184 @@
+package org.server.scrcpy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class QualityLadderTest {
+
+    private static final long T0 = 100_000;
+    // one report per second
+    private static final long REPORT_MS = 1000;
+
+    @Test
+    public void stepSizes() {
+        assertEquals(1920, QualityLadder.getMaxSize(0, 1920));
+        assertEquals(1440, QualityLadder.getMaxSize(1, 1920));
+        assertEquals(960, QualityLadder.getMaxSize(3, 1920));
+        // always a multiple of 8
+        assertEquals(0, QualityLadder.getMaxSize(1, 1000) % 8);
+        assertEquals(744, QualityLadder.getMaxSize(1, 1000));
+        // never below the floor, nor above the session size
+        assertEquals(480, QualityLadder.getMaxSize(3, 800));
+        assertEquals(400, QualityLadder.getMaxSize(3, 400));
+    }
+
+    @Test
+    public void stepFrameRates() {
+        assertEquals(60, QualityLadder.getFrameRate(0, 60));
+        assertEquals(60, QualityLadder.getFrameRate(1, 60));
+        assertEquals(30, QualityLadder.getFrameRate(2, 60));
+        assertEquals(24, QualityLadder.getFrameRate(3, 24));
+    }
+
+    @Test
+    public void stepsDownOnlyWithBitRateAtMin() {
+        QualityLadder ladder = new QualityLadder();
+        long now = T0;
+        // the rate controller still has some room
+        for (int i = 0; i < 10; ++i) {
+            assertEquals(-1, ladder.onFeedback(now += REPORT_MS, true, false, false));
+        }
+        assertEquals(-1, congestedAtMin(ladder, now += REPORT_MS));
+        assertEquals(-1, congestedAtMin(ladder, now += REPORT_MS));
+        assertEquals(1, congestedAtMin(ladder, now += REPORT_MS));
+        assertEquals(1, ladder.getStep());
+    }
+
+    @Test
+    public void congestedReportsMustBeConsecutive() {
+        QualityLadder ladder = new QualityLadder();
+        long now = T0;
+        congestedAtMin(ladder, now += REPORT_MS);
+        congestedAtMin(ladder, now += REPORT_MS);
+        // a clean report restarts the count
+        assertEquals(-1, ladder.onFeedback(now += REPORT_MS, false, true, false));
+        congestedAtMin(ladder, now += REPORT_MS);
+        congestedAtMin(ladder, now += REPORT_MS);
+        // and so does a bitrate back above its minimum
+        assertEquals(-1, ladder.onFeedback(now += REPORT_MS, true, false, false));
+        congestedAtMin(ladder, now += REPORT_MS);
+        congestedAtMin(ladder, now += REPORT_MS);
+        assertEquals(0, ladder.getStep());
+        assertEquals(1, congestedAtMin(ladder, now += REPORT_MS));
+    }
+
+    @Test
+    public void staysOnLastStep() {
+        QualityLadder ladder = new QualityLadder();
+        long now = T0;
+        int last = QualityLadder.getStepCount() - 1;
+        for (int i = 0; i < 100; ++i) {
+            congestedAtMin(ladder, now += REPORT_MS);
+        }
+        assertEquals(last, ladder.getStep());
+    }
+
+    @Test
+    public void stepsUpOnlyWithBitRateAtMax() {
+        QualityLadder ladder = new QualityLadder();
+        long now = stepDown(ladder, T0, 2);
+        // clean, but the bitrate is still recovering
+        for (int i = 0; i < 20; ++i) {
+            assertEquals(-1, ladder.onFeedback(now += REPORT_MS, false, false, false));
+        }
+        for (int i = 0; i < 9; ++i) {
+            assertEquals(-1, cleanAtMax(ladder, now += REPORT_MS));
+        }
+        assertEquals(1, cleanAtMax(ladder, now += REPORT_MS));
+        assertEquals(1, ladder.getStep());
+        // never above the first step
+        now = stepUp(ladder, now);
+        assertEquals(0, ladder.getStep());
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(-1, cleanAtMax(ladder, now += REPORT_MS));
+        }
+    }
+
+    @Test
+    public void backsOffAfterUnstableStepUp() {
+        QualityLadder ladder = new QualityLadder();
+        long now = stepDown(ladder, T0, 1);
+        assertEquals(10, cleanReportsBeforeUp(ladder, now));
+        now += 10 * REPORT_MS;
+
+        // down again right after the step up: the next step up waits twice as long
+        now = stepDown(ladder, now, 1);
+        assertEquals(20, cleanReportsBeforeUp(ladder, now));
+        now += 20 * REPORT_MS;
+        now = stepDown(ladder, now, 1);
+        assertEquals(40, cleanReportsBeforeUp(ladder, now));
+        now += 40 * REPORT_MS;
+        now = stepDown(ladder, now, 1);
+        assertEquals(80, cleanReportsBeforeUp(ladder, now));
+        now += 80 * REPORT_MS;
+        // capped
+        now = stepDown(ladder, now, 1);
+        assertEquals(80, cleanReportsBeforeUp(ladder, now));
+    }
+
+    @Test
+    public void stableStepUpHalvesBackoff() {
+        QualityLadder ladder = new QualityLadder();
+        long now = stepDown(ladder, T0, 1);
+        now += cleanReportsBeforeUp(ladder, now) * REPORT_MS;
+        now = stepDown(ladder, now, 1);
+        now += cleanReportsBeforeUp(ladder, now) * REPORT_MS;
+        now = stepDown(ladder, now, 1);
+        assertEquals(40, cleanReportsBeforeUp(ladder, now));
+        now += 40 * REPORT_MS;
+
+        // this step up holds: the link only fails again a minute later
+        now = stepDown(ladder, now + 60_000, 1);
+        assertEquals(20, cleanReportsBeforeUp(ladder, now));
+        now += 20 * REPORT_MS;
+        now = stepDown(ladder, now + 60_000, 1);
+        assertEquals(10, cleanReportsBeforeUp(ladder, now));
+        now += 10 * REPORT_MS;
+        // never below the base wait
+        now = stepDown(ladder, now + 60_000, 1);
+        assertEquals(10, cleanReportsBeforeUp(ladder, now));
+    }
+
+    private static int congestedAtMin(QualityLadder ladder, long nowMs) {
+        return ladder.onFeedback(nowMs, true, true, false);
+    }
+
+    private static int cleanAtMax(QualityLadder ladder, long nowMs) {
+        return ladder.onFeedback(nowMs, false, false, true);
+    }
+
+    /**
+     * @return the time of the last report
+     */
+    private static long stepDown(QualityLadder ladder, long nowMs, int steps) {
+        int target = ladder.getStep() + steps;
+        while (ladder.getStep() < target) {
+            congestedAtMin(ladder, nowMs += REPORT_MS);
+        }
+        return nowMs;
+    }
+
+    private static long stepUp(QualityLadder ladder, long nowMs) {
+        int target = ladder.getStep() - 1;
+        while (ladder.getStep() > target) {
+            cleanAtMax(ladder, nowMs += REPORT_MS);
+        }
+        return nowMs;
+    }
+
+    /**
+     * Send clean reports until the ladder steps up.
+     *
+     * @return the number of reports it took
+     */
+    private static int cleanReportsBeforeUp(QualityLadder ladder, long nowMs) {
+        int step = ladder.getStep();
+        int reports = 0;
+        while (ladder.getStep() == step) {
+            cleanAtMax(ladder, nowMs += REPORT_MS);
+            ++reports;
+        }
+        return reports;
+    }
+}
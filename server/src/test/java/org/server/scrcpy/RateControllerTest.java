@@ -0,0 +1,132 @@
+package org.server.scrcpy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RateControllerTest {
+
+    private static final int MAX = 8_000_000;
+    // max / 10
+    private static final int MIN = 800_000;
+    // uptime of the server when the first report arrives
+    private static final long T0 = 100_000;
+
+    @Test
+    public void startsAtSessionBitRate() {
+        RateController controller = new RateController(MAX);
+        assertEquals(MAX, controller.getBitRate());
+        // already at the max, clean reports change nothing
+        for (int i = 0; i < 20; ++i) {
+            assertEquals(-1, clean(controller, T0 + i * 1000));
+        }
+        assertEquals(MAX, controller.getBitRate());
+    }
+
+    @Test
+    public void cutsOnLossOrDecoderQueue() {
+        RateController controller = new RateController(MAX);
+        assertEquals(6_000_000, controller.onFeedback(T0, 1000, 0, 0, 1));
+
+        controller = new RateController(MAX);
+        assertEquals(-1, controller.onFeedback(T0, 1000, 0, 3, 0));
+        assertEquals(6_000_000, controller.onFeedback(T0, 1000, 0, 4, 0));
+    }
+
+    @Test
+    public void holdsOffAfterCut() {
+        RateController controller = new RateController(MAX);
+        assertEquals(6_000_000, congested(controller, T0));
+        // the cut has not had any effect yet
+        assertEquals(-1, congested(controller, T0 + 500));
+        assertEquals(-1, congested(controller, T0 + 999));
+        assertEquals(4_500_000, congested(controller, T0 + 1000));
+    }
+
+    @Test
+    public void followsMeasuredThroughputButNeverHalvesMore() {
+        RateController controller = new RateController(MAX);
+        // 90% of what got through, below the 3/4 step
+        assertEquals(4_500_000, controller.onFeedback(T0, 1000, 5_000, 0, 1));
+
+        controller = new RateController(MAX);
+        // the link looks much slower, still at most halved in one step
+        assertEquals(4_000_000, controller.onFeedback(T0, 1000, 1_000, 0, 1));
+
+        controller = new RateController(MAX);
+        // more got through than the 3/4 step: the step wins
+        assertEquals(6_000_000, controller.onFeedback(T0, 1000, 7_900, 0, 1));
+    }
+
+    @Test
+    public void neverGoesBelowFloor() {
+        RateController controller = new RateController(MAX);
+        long now = T0;
+        for (int i = 0; i < 20; ++i) {
+            congested(controller, now);
+            now += 1000;
+            assertTrue(controller.getBitRate() >= MIN);
+        }
+        // reached exactly, although the last step is below the minimum change
+        assertEquals(MIN, controller.getBitRate());
+        assertEquals(-1, congested(controller, now));
+    }
+
+    @Test
+    public void raisesOnlyAfterConsecutiveCleanReports() {
+        RateController controller = new RateController(MAX);
+        congested(controller, T0);
+        assertEquals(6_000_000, controller.getBitRate());
+        for (int i = 1; i < 5; ++i) {
+            assertEquals(-1, clean(controller, T0 + i * 1000));
+        }
+        // +10% of the max
+        assertEquals(6_800_000, clean(controller, T0 + 5000));
+
+        // a congested report restarts the count
+        for (int i = 1; i < 5; ++i) {
+            assertEquals(-1, clean(controller, T0 + 5000 + i * 1000));
+        }
+        assertEquals(5_100_000, congested(controller, T0 + 9500));
+        for (int i = 1; i < 5; ++i) {
+            assertEquals(-1, clean(controller, T0 + 9500 + i * 1000));
+        }
+        assertEquals(5_900_000, clean(controller, T0 + 14_500));
+    }
+
+    @Test
+    public void reachesMaxExactly() {
+        RateController controller = new RateController(MAX);
+        congested(controller, T0);
+        long now = T0;
+        int bitRate = controller.getBitRate();
+        while (bitRate < MAX) {
+            now += 1000;
+            int changed = clean(controller, now);
+            if (changed != -1) {
+                assertTrue(changed > bitRate);
+                bitRate = changed;
+            }
+        }
+        // 7.6 Mbps + 10% is capped, the last step is smaller than the others
+        assertEquals(MAX, controller.getBitRate());
+        assertEquals(T0 + 15_000, now);
+    }
+
+    @Test
+    public void lowSessionBitRateIsLeftAlone() {
+        // below the absolute floor: nothing to adapt
+        RateController controller = new RateController(400_000);
+        assertEquals(-1, congested(controller, T0));
+        assertEquals(400_000, controller.getBitRate());
+    }
+
+    private static int congested(RateController controller, long nowMs) {
+        return controller.onFeedback(nowMs, 1000, 0, 0, 1);
+    }
+
+    private static int clean(RateController controller, long nowMs) {
+        return controller.onFeedback(nowMs, 1000, 0, 0, 0);
+    }
+}